@@ -0,0 +1,49 @@
+import java.io.*;
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * Sent by the server once it has recorded some results, so the client can remove them from its Outbox.
+ */
+public class Acknowledgement implements Serializable, Immutable
+{
+    /** For serialization. */
+    public static final long serialVersionUID = 1L;
+
+    /** The serverIDs of the results that were recorded. */
+    public final List<Long> serverIDs;
+
+    /** Create an Acknowledgement for some results. */
+    public Acknowledgement(Collection<Long> serverIDs)
+    {
+        if ( serverIDs == null )
+            throw new NullPointerException("null serverIDs");
+        this.serverIDs = ImmutableList.copyOf(serverIDs);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Acknowledgement of %d results", serverIDs.size());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(serverIDs);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if ( obj == null )
+            return false;
+        if ( obj == this )
+            return true;
+        if ( !(obj instanceof Acknowledgement) )
+            return false;
+
+        Acknowledgement a = (Acknowledgement)obj;
+        return Objects.equals(serverIDs, a.serverIDs);
+    }
+}
@@ -0,0 +1,12 @@
+import java.util.*;
+
+/**
+ * A Result that comes with output files.  A client sends the files to the server before it sends
+ * the result, so by the time the server has the result, Attachment.getFile finds the server's copies
+ * in Settings.ATTACHMENT_DIRECTORY.
+ */
+public interface AttachedResult extends Result
+{
+    /** The files that go with this result. */
+    public List<Attachment> getAttachments();
+}
@@ -0,0 +1,12 @@
+import java.util.*;
+
+/**
+ * A WorkUnit that needs files from the server.  Before the unit runs on a client,
+ * GeneralThreadService fetches its attachments into Settings.ATTACHMENT_SCRATCH_DIRECTORY,
+ * where Attachment.getFile finds them.  The copies are deleted when the unit finishes.
+ */
+public interface AttachedWorkUnit extends WorkUnit
+{
+    /** The files this unit needs. */
+    public List<Attachment> getAttachments();
+}
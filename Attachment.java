@@ -0,0 +1,91 @@
+import java.io.*;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * A reference to a file that goes along with a work unit or a result, such as a checkpoint file,
+ * a basis set, or a wavefunction.  Only the reference is serialized with the unit or result.  The
+ * file itself is streamed separately by AttachmentService, straight from disk to disk, so it never
+ * has to fit on the heap or in a codec's maximum message size.  Files are identified by the
+ * SHA-256 of their contents.
+ */
+public class Attachment implements Serializable
+{
+    /** For serialization. */
+    public static final long serialVersionUID = 1L;
+
+    /** The SHA-256 of the file's contents in lowercase hex. */
+    public final String id;
+
+    /** The name of the original file, without any directories. */
+    public final String name;
+
+    /** How big the file is in bytes. */
+    public final long size;
+
+    /** Where the file is on this machine, or null if it has not been fetched here. */
+    private transient volatile File file;
+
+    /**
+     * Makes a reference to a file on this machine.  The file is read once to compute its hash and
+     * should not change afterwards.  Use AttachmentService.attach on the server so that clients can
+     * fetch it, and return it in an AttachedResult on a client so that it is sent to the server.
+     * @param file the file
+     */
+    public Attachment(File file) throws IOException
+    {
+        if ( file == null )
+            throw new NullPointerException("null file");
+        if ( !file.isFile() )
+            throw new FileNotFoundException(file.toString());
+        this.id = Files.hash(file, Hashing.sha256()).toString();
+        this.name = file.getName();
+        this.size = file.length();
+        this.file = file;
+    }
+
+    /**
+     * Where the file is on this machine.  On a client, this is the fetched copy while the unit
+     * runs.  On the server, this is the original file or the copy that a client sent.
+     * @return the file, or null if it is not available here
+     */
+    public File getFile()
+    {
+        File f = file;
+        if ( f == null )
+            f = AttachmentService.lookup(id);
+        return f;
+    }
+
+    /** Records where the file was put on this machine.  For AttachmentService. */
+    void setFile(File file)
+    {
+        this.file = file;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (%s, %d bytes)", name, id.substring(0, 12), size);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return id.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if ( obj == null )
+            return false;
+        if ( obj == this )
+            return true;
+        if ( !(obj instanceof Attachment) )
+            return false;
+
+        Attachment a = (Attachment)obj;
+        return id.equals(a.id) && name.equals(a.name) && size == a.size;
+    }
+}
@@ -0,0 +1,522 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.google.common.hash.Hashing;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+
+/**
+ * Moves Attachments between the server and clients.  Files go over their own connections to
+ * Settings.ATTACHMENT_PORT rather than over the main session, so a large transfer never holds up
+ * work, results, or heartbeats.  Each connection moves one file.  A client asks for a file with
+ * "GET id" and the server sends it with a FileRegion, which the operating system copies straight
+ * from the page cache to the socket.  A client sends a file with "PUT id size" followed by the
+ * bytes, and the server answers with a single 1 once the file is on disk.  On the client, files
+ * go between the socket and the disk with FileChannel.transferFrom and transferTo, so they never
+ * pass through the Java heap.
+ */
+public class AttachmentService implements Singleton
+{
+    /** The longest request line the server will read. */
+    private static final int MAX_REQUEST_LENGTH = 256;
+
+    /** How big the server's read buffer is for incoming files. */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /** The session attribute that holds a partial request line. */
+    private static final String REQUEST_ATTRIBUTE = "attachment.request";
+
+    /** The session attribute that holds an incoming file. */
+    private static final String UPLOAD_ATTRIBUTE = "attachment.upload";
+
+    /** How many threads write incoming files to disk, so that slow disks do not hold up the I/O processor. */
+    private static final int TRANSFER_THREADS = 8;
+
+    /**
+     * The file in Settings.ATTACHMENT_DIRECTORY that lists where each attached file is, one
+     * "id path" line per file, so that a restarted server can still serve the attachments of
+     * units it recovers from its journal.  Guarded by FILES.
+     */
+    private static final String INDEX_FILE = "index";
+
+    /** The files the server has made available, by ID. */
+    private static final ConcurrentMap<String,File> FILES = new ConcurrentHashMap<>();
+
+    /** How long clients take to fetch attachments. */
+    private static final Histogram FETCH = Metrics.histogram("client.attachment.fetch");
+
+    /** How long clients take to send attachments. */
+    private static final Histogram UPLOAD = Metrics.histogram("client.attachment.upload");
+
+    /** How many attachment bytes this client has fetched. */
+    private static final LongAdder FETCHED_BYTES = Metrics.counter("client.attachment.fetched.bytes");
+
+    /** How many attachment bytes this client has sent. */
+    private static final LongAdder UPLOADED_BYTES = Metrics.counter("client.attachment.uploaded.bytes");
+
+    /** How many attachments the server has sent. */
+    private static final LongAdder SERVED = Metrics.counter("server.attachment.served");
+
+    /** How many attachments the server has received. */
+    private static final LongAdder RECEIVED = Metrics.counter("server.attachment.received");
+
+    /** Not instantiable. */
+    private AttachmentService()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /**
+     * Makes a file available to clients.  Call this on the server for each file a unit needs.
+     * @param file the file, which should not change while units that need it are out
+     * @return the reference to put in the unit
+     */
+    public static Attachment attach(File file) throws IOException
+    {
+        Attachment attachment = new Attachment(file);
+        File absoluteFile = file.getAbsoluteFile();
+        synchronized (FILES)
+            {
+                if ( !absoluteFile.equals(FILES.put(attachment.id, absoluteFile)) )
+                    {
+                        // remember the file across restarts before any unit that needs it can be journaled
+                        File directory = new File(Settings.ATTACHMENT_DIRECTORY);
+                        if ( !directory.isDirectory() && !directory.mkdirs() )
+                            throw new IOException("unable to create attachment directory " + directory);
+                        try ( FileOutputStream out = new FileOutputStream(new File(directory, INDEX_FILE), true) )
+                            {
+                                out.write((attachment.id + " " + absoluteFile.getPath() + "\n").getBytes(StandardCharsets.UTF_8));
+                                out.getFD().sync();
+                            }
+                    }
+            }
+        return attachment;
+    }
+
+    /** Reads back the files that were attached before the server was restarted. */
+    private static void loadIndex() throws IOException
+    {
+        File index = new File(Settings.ATTACHMENT_DIRECTORY, INDEX_FILE);
+        if ( !index.isFile() )
+            return;
+        synchronized (FILES)
+            {
+                for (String line : java.nio.file.Files.readAllLines(index.toPath(), StandardCharsets.UTF_8))
+                    {
+                        int space = line.indexOf(' ');
+                        if ( space < 0 || !isValidID(line.substring(0, space)) )
+                            continue;
+                        File file = new File(line.substring(space+1));
+                        if ( file.isFile() )
+                            FILES.putIfAbsent(line.substring(0, space), file);
+                    }
+            }
+    }
+
+    /**
+     * Finds a file that was attached on this machine or sent here by a client.
+     * @param id the SHA-256 of the file
+     * @return the file, or null if it is not here
+     */
+    public static File lookup(String id)
+    {
+        File file = FILES.get(id);
+        if ( file != null || !isValidID(id) )
+            return file;
+        file = new File(Settings.ATTACHMENT_DIRECTORY, id);
+        return file.isFile() ? file : null;
+    }
+
+    /** Whether a string looks like a SHA-256 in lowercase hex, so it is safe to use as a filename. */
+    private static boolean isValidID(String id)
+    {
+        if ( id == null || id.length() != 64 )
+            return false;
+        for (int i=0; i < id.length(); i++)
+            {
+                char c = id.charAt(i);
+                if ( ( c < '0' || c > '9' ) && ( c < 'a' || c > 'f' ) )
+                    return false;
+            }
+        return true;
+    }
+
+    /**
+     * Starts serving attachments.  The server calls this when it starts.  If the port cannot be
+     * bound, the server still runs, but units with attachments will fail.
+     * @param port the port to listen on
+     */
+    public static void start(int port)
+    {
+        File directory = new File(Settings.ATTACHMENT_DIRECTORY);
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+            throw new IllegalArgumentException("unable to create attachment directory " + directory);
+        try
+            {
+                loadIndex();
+            }
+        catch (IOException e)
+            {
+                System.out.println("Unable to read the attachment index:");
+                e.printStackTrace();
+            }
+
+        NioSocketAcceptor acceptor = new NioSocketAcceptor();
+        acceptor.setReuseAddress(true);
+        acceptor.getSessionConfig().setReadBufferSize(READ_BUFFER_SIZE);
+        acceptor.getFilterChain().addLast("executor", new ExecutorFilter(TRANSFER_THREADS));
+        acceptor.setHandler(new TransferHandler());
+        try
+            {
+                acceptor.bind(new InetSocketAddress(port));
+                System.out.printf("Serving attachments on port %d.\n", port);
+            }
+        catch (IOException e)
+            {
+                System.out.printf("Unable to serve attachments on port %d:\n", port);
+                e.printStackTrace();
+                acceptor.dispose();
+            }
+    }
+
+    /** Handles the server's end of attachment connections. */
+    private static class TransferHandler extends IoHandlerAdapter
+    {
+        @Override
+        public void messageReceived(IoSession session, Object message) throws Exception
+        {
+            IoBuffer buffer = (IoBuffer)message;
+            Upload upload = (Upload)session.getAttribute(UPLOAD_ATTRIBUTE);
+            if ( upload == null )
+                {
+                    // read the request line
+                    StringBuilder request = (StringBuilder)session.getAttribute(REQUEST_ATTRIBUTE);
+                    if ( request == null )
+                        {
+                            request = new StringBuilder();
+                            session.setAttribute(REQUEST_ATTRIBUTE, request);
+                        }
+                    boolean complete = false;
+                    while ( buffer.hasRemaining() && !complete )
+                        {
+                            char c = (char)buffer.get();
+                            if ( c == '\n' )
+                                complete = true;
+                            else
+                                request.append(c);
+                        }
+                    if ( !complete )
+                        {
+                            if ( request.length() > MAX_REQUEST_LENGTH )
+                                session.close(true);
+                            return;
+                        }
+                    session.removeAttribute(REQUEST_ATTRIBUTE);
+
+                    String[] fields = request.toString().trim().split(" ");
+                    if ( fields.length == 2 && fields[0].equals("GET") )
+                        {
+                            serve(session, fields[1]);
+                            return;
+                        }
+                    if ( fields.length != 3 || !fields[0].equals("PUT") || !isValidID(fields[1]) )
+                        {
+                            EventLog.warning("Bad attachment request from %s: %s", session.getRemoteAddress(), request);
+                            session.close(true);
+                            return;
+                        }
+                    upload = new Upload(fields[1], Long.parseLong(fields[2]));
+                    session.setAttribute(UPLOAD_ATTRIBUTE, upload);
+                }
+
+            // write whatever has arrived of the file
+            upload.write(buffer.buf());
+            if ( upload.isComplete() )
+                {
+                    session.removeAttribute(UPLOAD_ATTRIBUTE);
+                    upload.finish();
+                    RECEIVED.increment();
+                    IoBuffer ack = IoBuffer.allocate(1);
+                    ack.put((byte)1).flip();
+                    session.write(ack);
+                    session.close(false);
+                }
+        }
+
+        /** Sends a file, or hangs up if there is no such file. */
+        private void serve(final IoSession session, String id) throws IOException
+        {
+            File file = lookup(id);
+            if ( file == null )
+                {
+                    EventLog.warning("%s asked for attachment %s, which is not here.", session.getRemoteAddress(), id);
+                    session.close(true);
+                    return;
+                }
+            final FileChannel channel = new FileInputStream(file).getChannel();
+            WriteFuture future = session.write(new DefaultFileRegion(channel, 0L, channel.size()));
+            future.addListener(new IoFutureListener<WriteFuture>()
+                {
+                    public void operationComplete(WriteFuture future)
+                    {
+                        try
+                            {
+                                channel.close();
+                            }
+                        catch (IOException e)
+                            {
+                                e.printStackTrace();
+                            }
+                        if ( future.isWritten() )
+                            SERVED.increment();
+                        session.close(false);
+                    }
+                });
+        }
+
+        @Override
+        public void sessionClosed(IoSession session) throws Exception
+        {
+            // throw away files that did not arrive in full
+            Upload upload = (Upload)session.removeAttribute(UPLOAD_ATTRIBUTE);
+            if ( upload != null )
+                upload.abort();
+        }
+
+        @Override
+        public void exceptionCaught(IoSession session, Throwable cause) throws Exception
+        {
+            System.out.printf("Attachment transfer with %s failed:\n", session.getRemoteAddress());
+            cause.printStackTrace();
+            session.close(true);
+        }
+    }
+
+    /** A file that is arriving on the server. */
+    private static class Upload
+    {
+        /** The ID of the file. */
+        private final String id;
+
+        /** How many bytes are still to come. */
+        private long remaining;
+
+        /** Where the bytes go until they have all arrived. */
+        private final File partial;
+
+        /** The open partial file. */
+        private final FileChannel channel;
+
+        public Upload(String id, long size) throws IOException
+        {
+            if ( size < 0L )
+                throw new IllegalArgumentException("negative size");
+            this.id = id;
+            this.remaining = size;
+            this.partial = File.createTempFile(id + "-", ".part", new File(Settings.ATTACHMENT_DIRECTORY));
+            this.channel = new RandomAccessFile(partial, "rw").getChannel();
+        }
+
+        /** Writes the bytes in a buffer, ignoring any beyond the size that was announced. */
+        public void write(ByteBuffer buffer) throws IOException
+        {
+            if ( buffer.remaining() > remaining )
+                buffer.limit(buffer.position() + (int)remaining);
+            while ( buffer.hasRemaining() )
+                remaining -= channel.write(buffer);
+        }
+
+        /** Whether every byte has arrived. */
+        public boolean isComplete()
+        {
+            return remaining == 0L;
+        }
+
+        /** Makes the file available under its ID. */
+        public void finish() throws IOException
+        {
+            channel.force(true);
+            channel.close();
+            // another upload of the same file may have finished first, but it has the same contents
+            File file = new File(Settings.ATTACHMENT_DIRECTORY, id);
+            java.nio.file.Files.move(partial.toPath(), file.toPath(), java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /** Throws away what has arrived. */
+        public void abort() throws IOException
+        {
+            channel.close();
+            partial.delete();
+        }
+    }
+
+    /** Opens a connection to the attachment port of the server or this rack's relay and sends a request line. */
+    private static SocketChannel connect(String request) throws IOException
+    {
+        SocketChannel socket = SocketChannel.open(new InetSocketAddress(Settings.UPSTREAM_HOSTNAME, Settings.ATTACHMENT_PORT));
+        try
+            {
+                ByteBuffer line = ByteBuffer.wrap((request + "\n").getBytes(StandardCharsets.US_ASCII));
+                while ( line.hasRemaining() )
+                    socket.write(line);
+                return socket;
+            }
+        catch (IOException e)
+            {
+                socket.close();
+                throw e;
+            }
+    }
+
+    /**
+     * Fetches a file from the server.  The bytes go from the socket to the file without being
+     * copied onto the heap.
+     * @param attachment the file to fetch
+     * @param target where to put it
+     */
+    public static void fetch(Attachment attachment, File target) throws IOException
+    {
+        long start = System.nanoTime();
+        File partial = new File(target.getPath() + ".part");
+        partial.delete();
+        try ( SocketChannel socket = connect("GET " + attachment.id);
+              FileChannel out = new RandomAccessFile(partial, "rw").getChannel() )
+            {
+                long position = 0L;
+                while ( position < attachment.size )
+                    {
+                        long count = out.transferFrom(socket, position, attachment.size - position);
+                        if ( count <= 0L )
+                            throw new EOFException(String.format("server closed the connection after %d of %d bytes of %s", position, attachment.size, attachment));
+                        position += count;
+                    }
+            }
+        catch (IOException e)
+            {
+                partial.delete();
+                throw e;
+            }
+        if ( !partial.renameTo(target) )
+            throw new IOException("unable to rename " + partial + " to " + target);
+        attachment.setFile(target);
+        FETCHED_BYTES.add(attachment.size);
+        FETCH.record(Metrics.microsSince(start));
+    }
+
+    /**
+     * Sends a file to the server and waits until the server has it on disk.
+     * @param attachment the file to send, which must be on this machine
+     */
+    public static void upload(Attachment attachment) throws IOException
+    {
+        long start = System.nanoTime();
+        File file = attachment.getFile();
+        if ( file == null )
+            throw new FileNotFoundException("attachment " + attachment + " is not on this machine");
+        try ( SocketChannel socket = connect("PUT " + attachment.id + " " + attachment.size);
+              FileChannel in = new FileInputStream(file).getChannel() )
+            {
+                long position = 0L;
+                while ( position < attachment.size )
+                    {
+                        long count = in.transferTo(position, attachment.size - position, socket);
+                        if ( count <= 0L )
+                            throw new EOFException(file + " is shorter than when it was attached");
+                        position += count;
+                    }
+                ByteBuffer ack = ByteBuffer.allocate(1);
+                while ( ack.hasRemaining() )
+                    {
+                        if ( socket.read(ack) < 0 )
+                            throw new EOFException("server closed the connection before it acknowledged " + attachment);
+                    }
+                if ( ack.get(0) != 1 )
+                    throw new IOException("server did not accept " + attachment);
+            }
+        UPLOADED_BYTES.add(attachment.size);
+        UPLOAD.record(Metrics.microsSince(start));
+    }
+
+    /**
+     * Fetches the files a unit needs into a directory of its own.  If Settings.USE_BLOB_CACHE
+     * is on, files that are in BlobCache are not fetched again.
+     * @param serverID the unit
+     * @param attachments the files it needs
+     */
+    public static void fetchAll(long serverID, List<Attachment> attachments) throws IOException
+    {
+        File directory = getDirectory(serverID);
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+            throw new IOException("unable to create " + directory);
+        Set<String> names = new HashSet<>();
+        for (Attachment attachment : attachments)
+            {
+                if ( !names.add(attachment.name) )
+                    throw new IOException("more than one attachment is named " + attachment.name);
+                File target = new File(directory, attachment.name);
+                if ( Settings.USE_BLOB_CACHE )
+                    BlobCache.fetch(attachment, target);
+                else
+                    fetch(attachment, target);
+            }
+    }
+
+    /**
+     * Fetches files into Settings.ATTACHMENT_DIRECTORY, unless they are already there, so that
+     * this machine can serve them.  A Relay does this so that each file crosses to its rack once.
+     * @param attachments the files to fetch
+     */
+    public static void mirror(List<Attachment> attachments) throws IOException
+    {
+        for (Attachment attachment : attachments)
+            {
+                if ( !isValidID(attachment.id) )
+                    throw new IOException("invalid attachment ID " + attachment.id);
+                if ( lookup(attachment.id) != null )
+                    continue;
+                File target = new File(Settings.ATTACHMENT_DIRECTORY, attachment.id);
+                fetch(attachment, target);
+
+                // a bad file would be served to the whole rack, so check it once here
+                String id = com.google.common.io.Files.hash(target, Hashing.sha256()).toString();
+                if ( !id.equals(attachment.id) )
+                    {
+                        target.delete();
+                        throw new IOException("fetched " + attachment + " but its contents hash to " + id);
+                    }
+            }
+    }
+
+    /**
+     * Deletes the files that were fetched for a unit.
+     * @param serverID the unit
+     */
+    public static void deleteAll(long serverID)
+    {
+        File directory = getDirectory(serverID);
+        File[] files = directory.listFiles();
+        if ( files != null )
+            {
+                for (File f : files)
+                    f.delete();
+            }
+        directory.delete();
+    }
+
+    /** Where a unit's attachments go on this client. */
+    private static File getDirectory(long serverID)
+    {
+        return new File(Settings.ATTACHMENT_SCRATCH_DIRECTORY, String.valueOf(serverID));
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * A small benchmark harness.  Each Benchmark is run a few times so the JIT can settle and
+ * then measured several more times.  Only the time that run() reports is counted, so setup
+ * such as filling the database is left out.  Output from the code being measured is
+ * discarded so that logging does not end up in the report.
+ */
+public abstract class Benchmark
+{
+    /** How many times each benchmark is run before it is measured. */
+    public static final int WARMUP_ITERATIONS = 3;
+
+    /** How many times each benchmark is measured. */
+    public static final int MEASUREMENT_ITERATIONS = 5;
+
+    /** What is being measured, e.g. "WorkUnitDatabase.submit". */
+    public final String name;
+
+    /** What it is being measured with, e.g. "size=1000". */
+    public final String parameter;
+
+    /** How many operations each iteration does. */
+    public final int operations;
+
+    /**
+     * Creates a benchmark.
+     * @param name what is being measured
+     * @param parameter what it is being measured with
+     * @param operations how many operations each iteration does
+     */
+    public Benchmark(String name, String parameter, int operations)
+    {
+        if ( name == null || parameter == null )
+            throw new NullPointerException("null name or parameter");
+        if ( operations < 1 )
+            throw new IllegalArgumentException("must do at least one operation");
+        this.name = name;
+        this.parameter = parameter;
+        this.operations = operations;
+    }
+
+    /**
+     * Does the specified number of operations.
+     * @param operations how many operations to do
+     * @return how long the operations took in nanoseconds, not counting any setup
+     */
+    public abstract long run(int operations) throws Exception;
+
+    /**
+     * Warms up and then measures this benchmark.
+     * @return the time per operation in nanoseconds for each measurement iteration
+     */
+    public double[] measure() throws Exception
+    {
+        for (int i=0; i < WARMUP_ITERATIONS; i++)
+            run(operations);
+        double[] nanos = new double[MEASUREMENT_ITERATIONS];
+        for (int i=0; i < MEASUREMENT_ITERATIONS; i++)
+            nanos[i] = (double)run(operations) / operations;
+        return nanos;
+    }
+
+    /** The column headings for the report. */
+    public static String header()
+    {
+        return String.format("%-40s %-22s %10s %12s %10s %14s", "benchmark", "parameter", "ops", "ns/op", "error", "ops/s");
+    }
+
+    /**
+     * Formats one line of the report.  The error is the standard deviation of the iterations.
+     * @param nanos the time per operation in nanoseconds for each iteration
+     * @return the line
+     */
+    public String format(double[] nanos)
+    {
+        double mean = 0.0;
+        for (double n : nanos)
+            mean += n;
+        mean /= nanos.length;
+        double variance = 0.0;
+        for (double n : nanos)
+            variance += (n - mean) * (n - mean);
+        double error = nanos.length > 1 ? Math.sqrt(variance / (nanos.length - 1)) : 0.0;
+        return String.format("%-40s %-22s %,10d %,12.1f %,10.1f %,14.0f", name, parameter, operations, mean, error, 1.0E9 / mean);
+    }
+
+    /**
+     * Measures some benchmarks and prints a line for each one as it finishes.
+     * @param benchmarks the benchmarks to run
+     * @param filters only benchmarks whose names contain one of these are run; if there are none, everything is run
+     */
+    public static void runAll(List<Benchmark> benchmarks, String... filters) throws Exception
+    {
+        PrintStream out = System.out;
+        out.println(header());
+        try
+            {
+                System.setOut(new PrintStream(new OutputStream() { public void write(int b) {} }));
+                for (Benchmark benchmark : benchmarks)
+                    {
+                        if ( !matches(benchmark.name, filters) )
+                            continue;
+                        out.println(benchmark.format(benchmark.measure()));
+                    }
+            }
+        finally
+            {
+                System.setOut(out);
+            }
+    }
+
+    /** Whether a benchmark name contains any of the filters, ignoring case. */
+    private static boolean matches(String name, String[] filters)
+    {
+        if ( filters == null || filters.length == 0 )
+            return true;
+        for (String filter : filters)
+            {
+                if ( name.toLowerCase().contains(filter.toLowerCase()) )
+                    return true;
+            }
+        return false;
+    }
+}
@@ -0,0 +1,44 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Runs every benchmark: WorkUnitDatabase, the codecs and GeneralThreadService.  Use the
+ * benchmark script to compile and run it.  The numbers from the last accepted run are kept
+ * in benchmark_baseline.txt so that a change can be compared against them.
+ */
+public class BenchmarkSuite implements Singleton
+{
+    /** Not instantiable. */
+    private BenchmarkSuite()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /** Runs the benchmarks.  Any arguments pick which ones to run by name, e.g. "codec.binary" or "markAsDead". */
+    public static void main(String[] args) throws Exception
+    {
+        // load Settings and GeneralThreadService now so that their startup messages go to stderr instead of into the baseline
+        PrintStream out = System.out;
+        System.setOut(System.err);
+        Class.forName("Settings");
+        Class.forName("GeneralThreadService");
+        System.setOut(out);
+
+        System.out.printf("# %s, Java %s, %d processors, %,d MB heap\n", new Date().toString(), System.getProperty("java.version"),
+                          Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / (1024*1024));
+        System.out.printf("# %d warmup and %d measurement iterations; error is one standard deviation\n",
+                          Benchmark.WARMUP_ITERATIONS, Benchmark.MEASUREMENT_ITERATIONS);
+        List<Integer> threadCounts = WorkUnitDatabaseBenchmark.getContentionThreadCounts();
+        if ( threadCounts.isEmpty() )
+            System.out.printf("# contention benchmark not run: it needs more than one processor\n");
+        else if ( threadCounts.size() < WorkUnitDatabaseBenchmark.THREAD_COUNTS.length )
+            System.out.printf("# contention runs with more threads than processors are skipped\n");
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.addAll(WorkUnitDatabaseBenchmark.benchmarks());
+        benchmarks.addAll(CodecBenchmark.benchmarks());
+        benchmarks.addAll(GeneralThreadServiceBenchmark.benchmarks());
+        Benchmark.runAll(benchmarks, args);
+        WorkUnitDatabase.clear();
+        System.exit(0);
+    }
+}
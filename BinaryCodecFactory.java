@@ -0,0 +1,389 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolCodecFactory;
+import org.apache.mina.filter.codec.ProtocolCodecSession;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.apache.mina.filter.codec.serialization.ObjectSerializationCodecFactory;
+
+/**
+ * A compact alternative to ObjectSerializationCodecFactory.  Every message is framed as a
+ * four-byte length, a one-byte message type, and a body.  Envelope headers are written field
+ * by field, and WorkUnits and Results are written with PayloadSerializers.  The origin of
+ * an envelope is not sent at all: it is filled in from the hostname the other end sent in
+ * its handshake.  Message types without a compact form are sent with Java serialization.
+ */
+public class BinaryCodecFactory implements ProtocolCodecFactory
+{
+    /** The largest frame the decoder will accept in bytes. */
+    public static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /** The session attribute that holds the hostname of the other end of the connection. */
+    public static final String ORIGIN_ATTRIBUTE = "binaryCodecOrigin";
+
+    /** Message type for anything that is sent with Java serialization. */
+    private static final byte OBJECT = 0;
+
+    /** Message type for a handshake. */
+    private static final byte HANDSHAKE = 1;
+
+    /** Message type for a WorkEnvelope. */
+    private static final byte WORK = 2;
+
+    /** Message type for a WorkBatch. */
+    private static final byte WORK_BATCH = 3;
+
+    /** Message type for a ResultEnvelope. */
+    private static final byte RESULT = 4;
+
+    /** Message type for a ResultBatch. */
+    private static final byte RESULT_BATCH = 5;
+
+    /** Message type for a Heartbeat. */
+    private static final byte HEARTBEAT = 6;
+
+    /** Message type for a ClientInfo handshake. */
+    private static final byte CLIENT_INFO = 7;
+
+    /** Message type for an Acknowledgement. */
+    private static final byte ACKNOWLEDGEMENT = 8;
+
+    /** Result status for a successful unit. */
+    private static final byte COMPLETED = 0;
+
+    /** Result status for a unit that failed. */
+    private static final byte FAILED = 1;
+
+    /** Encoders and decoders have no state of their own, so they are shared. */
+    private final ProtocolEncoder encoder = new Encoder();
+
+    /** Encoders and decoders have no state of their own, so they are shared. */
+    private final ProtocolDecoder decoder = new Decoder();
+
+    /**
+     * Creates the codec selected by Settings.USE_BINARY_CODEC.
+     * @return a BinaryCodecFactory or an ObjectSerializationCodecFactory
+     */
+    public static ProtocolCodecFactory create()
+    {
+        if ( Settings.USE_BINARY_CODEC )
+            return new BinaryCodecFactory();
+        return new ObjectSerializationCodecFactory();
+    }
+
+    @Override
+    public ProtocolEncoder getEncoder(IoSession session)
+    {
+        return encoder;
+    }
+
+    @Override
+    public ProtocolDecoder getDecoder(IoSession session)
+    {
+        return decoder;
+    }
+
+    /** Writes a string that may be longer than DataOutput.writeUTF allows.  Null is allowed. */
+    private static void writeString(String string, DataOutput out) throws IOException
+    {
+        if ( string == null )
+            {
+                out.writeInt(-1);
+                return;
+            }
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Reads a string written by writeString. */
+    private static String readString(DataInput in) throws IOException
+    {
+        int length = in.readInt();
+        if ( length < 0 )
+            return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Writes a list of serverIDs. */
+    private static void writeIDs(List<Long> serverIDs, DataOutput out) throws IOException
+    {
+        out.writeInt(serverIDs.size());
+        for (Long serverID : serverIDs)
+            out.writeLong(serverID);
+    }
+
+    /** Reads a list of serverIDs written by writeIDs. */
+    private static List<Long> readIDs(DataInput in) throws IOException
+    {
+        int size = in.readInt();
+        List<Long> serverIDs = new ArrayList<>(size);
+        for (int i=0; i < size; i++)
+            serverIDs.add(in.readLong());
+        return serverIDs;
+    }
+
+    /** Writes a WorkEnvelope without its type byte or origin. */
+    private static void writeWork(WorkEnvelope envelope, DataOutput out) throws IOException
+    {
+        out.writeLong(envelope.serverID);
+        PayloadSerializers.write(envelope.workUnit, out);
+    }
+
+    /** Reads a WorkEnvelope written by writeWork. */
+    private static WorkEnvelope readWork(DataInput in, String origin) throws IOException
+    {
+        long serverID = in.readLong();
+        WorkUnit workUnit = (WorkUnit)PayloadSerializers.read(in);
+        return new WorkEnvelope(workUnit, origin, serverID);
+    }
+
+    /** Writes a ResultEnvelope without its type byte or origin. */
+    private static void writeResult(ResultEnvelope envelope, DataOutput out) throws IOException
+    {
+        out.writeLong(envelope.serverID);
+        if ( envelope.result != null )
+            {
+                out.writeByte(COMPLETED);
+                PayloadSerializers.write(envelope.result, out);
+            }
+        else
+            {
+                out.writeByte(FAILED);
+                writeString(envelope.errorMessage, out);
+            }
+    }
+
+    /** Reads a ResultEnvelope written by writeResult. */
+    private static ResultEnvelope readResult(DataInput in, String origin) throws IOException
+    {
+        long serverID = in.readLong();
+        byte status = in.readByte();
+        if ( status == COMPLETED )
+            return new ResultEnvelope((Result)PayloadSerializers.read(in), null, origin, serverID);
+        else if ( status == FAILED )
+            return new ResultEnvelope(null, readString(in), origin, serverID);
+        throw new IOException("unrecognized result status " + status);
+    }
+
+    /** Turns messages into frames. */
+    private static class Encoder extends ProtocolEncoderAdapter
+    {
+        @Override
+        public void encode(IoSession session, Object message, ProtocolEncoderOutput out) throws Exception
+        {
+            IoBuffer buffer = IoBuffer.allocate(256).setAutoExpand(true);
+            buffer.putInt(0); // the length goes here once it is known
+            DataOutputStream data = new DataOutputStream(buffer.asOutputStream());
+            if ( message instanceof String )
+                {
+                    data.writeByte(HANDSHAKE);
+                    writeString((String)message, data);
+                }
+            else if ( message instanceof WorkEnvelope )
+                {
+                    data.writeByte(WORK);
+                    writeWork((WorkEnvelope)message, data);
+                }
+            else if ( message instanceof WorkBatch )
+                {
+                    List<WorkEnvelope> envelopes = ((WorkBatch)message).envelopes;
+                    data.writeByte(WORK_BATCH);
+                    data.writeInt(envelopes.size());
+                    for (WorkEnvelope envelope : envelopes)
+                        writeWork(envelope, data);
+                }
+            else if ( message instanceof ResultEnvelope )
+                {
+                    data.writeByte(RESULT);
+                    writeResult((ResultEnvelope)message, data);
+                }
+            else if ( message instanceof ResultBatch )
+                {
+                    List<ResultEnvelope> envelopes = ((ResultBatch)message).envelopes;
+                    data.writeByte(RESULT_BATCH);
+                    data.writeInt(envelopes.size());
+                    for (ResultEnvelope envelope : envelopes)
+                        writeResult(envelope, data);
+                }
+            else if ( message instanceof ClientInfo )
+                {
+                    ClientInfo info = (ClientInfo)message;
+                    data.writeByte(CLIENT_INFO);
+                    writeString(info.hostname, data);
+                    data.writeInt(info.threads);
+                    data.writeInt(info.cores);
+                    data.writeLong(info.memory);
+                    data.writeLong(info.unitMemory);
+                    data.writeBoolean(info.usesOutbox);
+                }
+            else if ( message instanceof Heartbeat )
+                {
+                    data.writeByte(HEARTBEAT);
+                    writeIDs(((Heartbeat)message).running, data);
+                }
+            else if ( message instanceof Acknowledgement )
+                {
+                    data.writeByte(ACKNOWLEDGEMENT);
+                    writeIDs(((Acknowledgement)message).serverIDs, data);
+                }
+            else if ( message instanceof Serializable )
+                {
+                    data.writeByte(OBJECT);
+                    ObjectOutputStream stream = new ObjectOutputStream(data);
+                    stream.writeObject(message);
+                    stream.flush();
+                }
+            else
+                throw new IllegalArgumentException("unrecognized object type");
+            data.flush();
+
+            int length = buffer.position() - 4;
+            if ( length > MAX_FRAME_SIZE )
+                throw new IllegalArgumentException(String.format("message too large (%d bytes)", length));
+            buffer.putInt(0, length);
+            buffer.flip();
+            out.write(buffer);
+        }
+    }
+
+    /** Turns frames back into messages. */
+    private static class Decoder extends CumulativeProtocolDecoder
+    {
+        @Override
+        protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception
+        {
+            if ( !in.prefixedDataAvailable(4, MAX_FRAME_SIZE) )
+                return false;
+            int length = in.getInt();
+            DataInputStream data = new DataInputStream(in.getSlice(length).asInputStream());
+            String origin = (String)session.getAttribute(ORIGIN_ATTRIBUTE, "unknown");
+
+            byte type = data.readByte();
+            if ( type == HANDSHAKE )
+                {
+                    String hostname = readString(data);
+                    session.setAttribute(ORIGIN_ATTRIBUTE, hostname);
+                    out.write(hostname);
+                }
+            else if ( type == WORK )
+                out.write(readWork(data, origin));
+            else if ( type == WORK_BATCH )
+                {
+                    int size = data.readInt();
+                    List<WorkEnvelope> envelopes = new ArrayList<>(size);
+                    for (int i=0; i < size; i++)
+                        envelopes.add(readWork(data, origin));
+                    out.write(new WorkBatch(envelopes));
+                }
+            else if ( type == RESULT )
+                out.write(readResult(data, origin));
+            else if ( type == RESULT_BATCH )
+                {
+                    int size = data.readInt();
+                    List<ResultEnvelope> envelopes = new ArrayList<>(size);
+                    for (int i=0; i < size; i++)
+                        envelopes.add(readResult(data, origin));
+                    out.write(new ResultBatch(envelopes));
+                }
+            else if ( type == CLIENT_INFO )
+                {
+                    String hostname = readString(data);
+                    int threads = data.readInt();
+                    ClientInfo info = new ClientInfo(hostname, threads, data.readInt(), data.readLong(), data.readLong(), data.readBoolean());
+                    session.setAttribute(ORIGIN_ATTRIBUTE, hostname);
+                    out.write(info);
+                }
+            else if ( type == HEARTBEAT )
+                out.write(new Heartbeat(readIDs(data)));
+            else if ( type == ACKNOWLEDGEMENT )
+                out.write(new Acknowledgement(readIDs(data)));
+            else if ( type == OBJECT )
+                {
+                    ObjectInputStream stream = new ObjectInputStream(data);
+                    out.write(stream.readObject());
+                }
+            else
+                throw new IOException("unrecognized message type " + type);
+            return true;
+        }
+    }
+
+    /** Encodes a message and returns the frame, length included. */
+    private static byte[] frame(ProtocolCodecSession session, Object message) throws Exception
+    {
+        new Encoder().encode(session, message, session.getEncoderOutput());
+        IoBuffer buffer = (IoBuffer)session.getEncoderOutputQueue().poll();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * For testing.  Sends one of every kind of message through the codec in a single stream
+     * and checks that each comes back as the same class, encodes to the same bytes, and carries
+     * the origin from the handshake.  Exits with status 1 if anything does not match.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        String origin = "roundtrip";
+        List<Object> messages = new ArrayList<>();
+        messages.add(origin);
+        messages.add(new ClientInfo(origin, 4, 8, 16L << 30, 2L << 30, true));
+        messages.add(new WorkEnvelope(new DummyWorkUnit(true), origin, 1L));
+        messages.add(new WorkEnvelope(new LoadWorkUnit(1000L, false, new byte[100], 10), origin, 2L)); // not registered, so Java serialization
+        messages.add(new WorkBatch(Arrays.asList(new WorkEnvelope(new DummyWorkUnit(false), origin, 3L), new WorkEnvelope(new DummyWorkUnit(true), origin, 4L))));
+        messages.add(new ResultEnvelope(new DummyResult(), null, origin, 5L));
+        messages.add(new ResultEnvelope(null, "a contrived error \u00e9", origin, 6L));
+        messages.add(new ResultBatch(Arrays.asList(new ResultEnvelope(new DummyResult(), null, origin, 7L), new ResultEnvelope(null, "another error", origin, 8L))));
+        messages.add(new Heartbeat(Arrays.asList(9L, 10L)));
+        messages.add(new Acknowledgement(Arrays.asList(11L, 12L, 13L)));
+        messages.add(new ArrayList<Long>(Arrays.asList(14L))); // no compact form, so Java serialization
+
+        // encode everything into one stream so the decoder has to find the frame boundaries
+        ProtocolCodecSession session = new ProtocolCodecSession();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        List<byte[]> frames = new ArrayList<>();
+        for (Object message : messages)
+            {
+                byte[] bytes = frame(session, message);
+                frames.add(bytes);
+                stream.write(bytes);
+            }
+        byte[] bytes = stream.toByteArray();
+        new Decoder().decode(session, IoBuffer.wrap(bytes), session.getDecoderOutput());
+
+        int failures = 0;
+        for (int i=0; i < messages.size(); i++)
+            {
+                Object message = messages.get(i);
+                Object decoded = session.getDecoderOutputQueue().poll();
+                boolean same = decoded != null && decoded.getClass() == message.getClass() && Arrays.equals(frames.get(i), frame(session, decoded));
+                if ( decoded instanceof WorkEnvelope )
+                    same = same && origin.equals(((WorkEnvelope)decoded).origin);
+                else if ( decoded instanceof ResultEnvelope )
+                    same = same && origin.equals(((ResultEnvelope)decoded).origin);
+                else if ( !(decoded instanceof WorkBatch) && !(decoded instanceof ResultBatch) )
+                    same = same && message.equals(decoded);
+                System.out.printf("%-50s %s\n", message, same ? "ok" : "MISMATCH (" + decoded + ")");
+                if ( !same )
+                    failures++;
+            }
+        if ( session.getDecoderOutputQueue().poll() != null )
+            {
+                System.out.println("decoded more messages than were sent");
+                failures++;
+            }
+        System.out.printf("%d of %d messages survived the round trip.\n", messages.size() - failures, messages.size());
+        System.exit(failures == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.google.common.base.Supplier;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.*;
+
+/**
+ * Keeps the attachments a client has fetched in Settings.BLOB_CACHE_DIRECTORY, named by their
+ * SHA-256, so that a file many units share crosses the network once per node instead of once per
+ * unit.  The cache outlives the client, so later campaigns that use the same files start warm.
+ * When the cache grows past Settings.BLOB_CACHE_SIZE bytes, the files that were used least
+ * recently are deleted.  Units get hard links to the cached files, so a file that is evicted
+ * while a unit is using it stays on disk until the unit is done with it.  If several units need
+ * a file that is not cached yet, only one of them fetches it and the rest wait.
+ */
+public class BlobCache implements Singleton
+{
+    /** The cached files and their sizes, least recently used first.  Guarded by INDEX. */
+    private static final LinkedHashMap<String,Long> INDEX = new LinkedHashMap<>(16, 0.75f, true);
+
+    /** How many bytes the cached files take up.  Guarded by INDEX. */
+    private static long TOTAL_SIZE = 0L;
+
+    /** The fetches that are in progress, by ID. */
+    private static final ConcurrentMap<String,SettableFuture<File>> FETCHES = new ConcurrentHashMap<>();
+
+    /** How many attachments were found in the cache or fetched by another unit that needed them at the same time. */
+    private static final LongAdder HITS = Metrics.counter("client.blobcache.hits");
+
+    /** How many attachments had to be fetched. */
+    private static final LongAdder MISSES = Metrics.counter("client.blobcache.misses");
+
+    /** How many files were evicted. */
+    private static final LongAdder EVICTIONS = Metrics.counter("client.blobcache.evictions");
+
+    /** Not instantiable. */
+    private BlobCache()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /** Static initializer. */
+    static
+    {
+        File directory = new File(Settings.BLOB_CACHE_DIRECTORY);
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+            throw new IllegalArgumentException("unable to create blob cache directory " + directory);
+
+        // pick up the files from earlier runs in the order they were last used
+        File[] files = directory.listFiles();
+        if ( files == null )
+            files = new File[0];
+        Arrays.sort(files, new Comparator<File>()
+            {
+                public int compare(File f1, File f2)
+                {
+                    return Long.compare(f1.lastModified(), f2.lastModified());
+                }
+            });
+        for (File f : files)
+            {
+                if ( f.getName().endsWith(".part") )
+                    f.delete();
+                else if ( f.isFile() )
+                    {
+                        INDEX.put(f.getName(), f.length());
+                        TOTAL_SIZE += f.length();
+                    }
+            }
+        evict();
+        System.out.printf("Blob cache has %d files (%d MB) in %s.\n", INDEX.size(), TOTAL_SIZE / (1024*1024), directory);
+
+        Metrics.gauge("client.blobcache.bytes", new Supplier<Long>()
+            {
+                public Long get()
+                {
+                    synchronized (INDEX)
+                        {
+                            return TOTAL_SIZE;
+                        }
+                }
+            });
+    }
+
+    /**
+     * Puts an attachment at the specified place, fetching it from the server only if it is not cached.
+     * @param attachment the file
+     * @param target where the unit expects it
+     */
+    public static void fetch(Attachment attachment, File target) throws IOException
+    {
+        // files that could never fit are not cached
+        if ( attachment.size > Settings.BLOB_CACHE_SIZE )
+            {
+                MISSES.increment();
+                AttachmentService.fetch(attachment, target);
+                return;
+            }
+
+        while (true)
+            {
+                File cached = get(attachment);
+                try
+                    {
+                        Files.createLink(target.toPath(), cached.toPath());
+                    }
+                catch (NoSuchFileException e)
+                    {
+                        // another unit's fetch may have evicted the file in the meantime, in which case get fetches it again
+                        if ( cached.isFile() )
+                            throw e;
+                        continue;
+                    }
+                catch (FileSystemException e)
+                    {
+                        // the cache and the target are on different file systems
+                        if ( e.getReason() == null || !e.getReason().toLowerCase().contains("cross-device") )
+                            throw e;
+                        Files.copy(cached.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                catch (UnsupportedOperationException e)
+                    {
+                        // the file system does not do hard links
+                        Files.copy(cached.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                attachment.setFile(target);
+                return;
+            }
+    }
+
+    /**
+     * Finds an attachment in the cache, fetching it if necessary.
+     * @param attachment the file
+     * @return the cached file, which may be evicted at any time after this returns
+     */
+    private static File get(Attachment attachment) throws IOException
+    {
+        File file = new File(Settings.BLOB_CACHE_DIRECTORY, attachment.id);
+        synchronized (INDEX)
+            {
+                Long size = INDEX.get(attachment.id);
+                if ( size != null && file.isFile() )
+                    {
+                        HITS.increment();
+                        file.setLastModified(System.currentTimeMillis());
+                        return file;
+                    }
+
+                // the file was deleted by something else, such as a scratch cleaner, so fetch it again
+                if ( size != null )
+                    {
+                        INDEX.remove(attachment.id);
+                        TOTAL_SIZE -= size;
+                    }
+            }
+
+        // only one thread fetches each file
+        SettableFuture<File> future = SettableFuture.create();
+        SettableFuture<File> existing = FETCHES.putIfAbsent(attachment.id, future);
+        if ( existing != null )
+            {
+                try
+                    {
+                        HITS.increment();
+                        return Uninterruptibles.getUninterruptibly(existing);
+                    }
+                catch (ExecutionException e)
+                    {
+                        throw new IOException("fetching " + attachment + " failed", e.getCause());
+                    }
+            }
+        try
+            {
+                MISSES.increment();
+                File partial = new File(Settings.BLOB_CACHE_DIRECTORY, attachment.id + ".part");
+                AttachmentService.fetch(attachment, partial);
+
+                // a bad file would be handed to every unit that needs it from now on, so check it once here
+                String id = com.google.common.io.Files.hash(partial, Hashing.sha256()).toString();
+                if ( !id.equals(attachment.id) )
+                    {
+                        partial.delete();
+                        throw new IOException("fetched " + attachment + " but its contents hash to " + id);
+                    }
+                if ( !partial.renameTo(file) )
+                    throw new IOException("unable to rename " + partial + " to " + file);
+                synchronized (INDEX)
+                    {
+                        INDEX.put(attachment.id, attachment.size);
+                        TOTAL_SIZE += attachment.size;
+                    }
+                evict();
+                future.set(file);
+                return file;
+            }
+        catch (IOException | RuntimeException e)
+            {
+                future.setException(e);
+                throw e;
+            }
+        finally
+            {
+                FETCHES.remove(attachment.id, future);
+            }
+    }
+
+    /** Deletes the least recently used files until the cache fits in Settings.BLOB_CACHE_SIZE. */
+    private static void evict()
+    {
+        synchronized (INDEX)
+            {
+                Iterator<Map.Entry<String,Long>> iterator = INDEX.entrySet().iterator();
+                while ( TOTAL_SIZE > Settings.BLOB_CACHE_SIZE && iterator.hasNext() )
+                    {
+                        Map.Entry<String,Long> entry = iterator.next();
+                        new File(Settings.BLOB_CACHE_DIRECTORY, entry.getKey()).delete();
+                        TOTAL_SIZE -= entry.getValue();
+                        iterator.remove();
+                        EVICTIONS.increment();
+                    }
+            }
+    }
+
+    /** How many files are cached. */
+    public static int size()
+    {
+        synchronized (INDEX)
+            {
+                return INDEX.size();
+            }
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.google.common.util.concurrent.*;
+
+/**
+ * A named group of work units that are submitted together.  A campaign has a future that
+ * completes once it has been closed and every unit in it has COMPLETED or FAILED, so a driver
+ * can react as soon as the work is done and submit follow-up work in the same server process.
+ * Each campaign also gets its own lane in the queue: see FairShareQueue for how the priority and
+ * weight decide which campaign's units go out next.
+ */
+public class Campaign
+{
+    /** The name of this campaign. */
+    public final String name;
+
+    /** Units in campaigns with higher priorities are always sent out first. */
+    public final int priority;
+
+    /** Among campaigns with the same priority, each gets a share of the clients in proportion to its weight. */
+    public final double weight;
+
+    /** The IDs of the units in this campaign. */
+    private final Set<Long> serverIDs;
+
+    /** Called when each unit finishes. */
+    private final List<CompletionListener> listeners;
+
+    /** How many units have been submitted. */
+    private final AtomicInteger submitted;
+
+    /** How many units have completed. */
+    private final AtomicInteger completed;
+
+    /** How many units have failed. */
+    private final AtomicInteger failed;
+
+    /** Whether more units may be added. */
+    private volatile boolean closed;
+
+    /** Completes when this campaign is closed and all its units have finished. */
+    private final SettableFuture<Campaign> future;
+
+    /** Creates a campaign with priority zero and weight one, which is what units outside of campaigns get. */
+    public Campaign(String name)
+    {
+        this(name, 0, 1.0);
+    }
+
+    public Campaign(String name, int priority, double weight)
+    {
+        if ( name == null )
+            throw new NullPointerException("null name");
+        if ( !(weight > 0.0) || Double.isInfinite(weight) )
+            throw new IllegalArgumentException("weight must be positive");
+        this.name = name;
+        this.priority = priority;
+        this.weight = weight;
+        this.serverIDs = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+        this.listeners = new CopyOnWriteArrayList<>();
+        this.submitted = new AtomicInteger();
+        this.completed = new AtomicInteger();
+        this.failed = new AtomicInteger();
+        this.closed = false;
+        this.future = SettableFuture.create();
+    }
+
+    /**
+     * Adds a unit to this campaign and puts it in the queue.
+     * @param workUnit the work to do
+     * @return the serverID of the unit
+     */
+    public long submit(WorkUnit workUnit)
+    {
+        if ( closed )
+            throw new IllegalArgumentException("campaign " + name + " is closed");
+        WorkEnvelope envelope = new WorkEnvelope(workUnit);
+        serverIDs.add(envelope.serverID);
+        submitted.incrementAndGet();
+        WorkUnitDatabase.submit(envelope, this);
+        return envelope.serverID;
+    }
+
+    /** Says that no more units will be added.  The future cannot complete until this is called. */
+    public void close()
+    {
+        closed = true;
+        checkDone();
+    }
+
+    /** Adds a listener that is told when each unit in this campaign finishes. */
+    public void addListener(CompletionListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    /** Completes when this campaign is closed and all its units have finished. */
+    public ListenableFuture<Campaign> getFuture()
+    {
+        return future;
+    }
+
+    /** The IDs of the units in this campaign. */
+    public Set<Long> getServerIDs()
+    {
+        return Collections.unmodifiableSet(serverIDs);
+    }
+
+    /** How many units have completed. */
+    public int getCompleted()
+    {
+        return completed.get();
+    }
+
+    /** How many units have failed. */
+    public int getFailed()
+    {
+        return failed.get();
+    }
+
+    /** How many units have not finished yet. */
+    public int getRemaining()
+    {
+        return submitted.get() - completed.get() - failed.get();
+    }
+
+    /** Called by WorkUnitDatabase when a unit in this campaign finishes. */
+    void unitFinished(ResultEnvelope envelope)
+    {
+        if ( envelope.result != null )
+            completed.incrementAndGet();
+        else
+            failed.incrementAndGet();
+        for (CompletionListener listener : listeners)
+            {
+                try
+                    {
+                        listener.unitFinished(envelope);
+                    }
+                catch (Exception e)
+                    {
+                        System.out.printf("Listener for campaign %s failed:\n", name);
+                        e.printStackTrace();
+                    }
+            }
+        checkDone();
+    }
+
+    /** Completes the future if everything is done. */
+    private void checkDone()
+    {
+        if ( closed && getRemaining() == 0 )
+            future.set(this);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Campaign %s (%d completed, %d failed, %d remaining)", name, getCompleted(), getFailed(), getRemaining());
+    }
+}
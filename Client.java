@@ -2,11 +2,12 @@ import java.net.*;
 import java.io.*;
 import java.util.concurrent.*;
 import org.apache.mina.core.service.IoConnector;  
+import org.apache.mina.core.service.IoService;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;  
-import org.apache.mina.filter.codec.serialization.ObjectSerializationCodecFactory;  
 import org.apache.mina.transport.socket.nio.NioSocketConnector;  
 import org.apache.mina.core.future.ConnectFuture;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.service.IoHandler;
 import org.apache.mina.core.service.IoHandlerAdapter;  
 import org.apache.mina.core.session.IoSession;  
 
@@ -15,25 +16,51 @@ public class Client implements Singleton
     /** The connection to the server. */
     private static IoSession IO_SESSION;
 
-    /** Start the client. */
-    public static void start()
+    /** Sends heartbeats to the server. */
+    private static final ScheduledExecutorService HEARTBEAT_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "Heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Start the client.
+     * @return true if the client connected to the server
+     */
+    public static boolean start()
+    {
+        Metrics.start();
+        IO_SESSION = connect(Settings.UPSTREAM_HOSTNAME, Settings.LISTENING_PORT, new ClientHandler());
+        return IO_SESSION != null;
+    }
+
+    /**
+     * Connects to a server, trying up to Settings.MAX_CONNECTION_ATTEMPTS times.
+     * @param hostname where the server is
+     * @param port the port it listens on
+     * @param handler what to do with the connection
+     * @return the connection, or null if the server could not be reached
+     */
+    public static IoSession connect(String hostname, int port, IoHandler handler)
     {
         int attempts = 0;
-        boolean connected = false;
         while (attempts < Settings.MAX_CONNECTION_ATTEMPTS)
             {
                 IoConnector connector = new NioSocketConnector();  
                 connector.setConnectTimeoutMillis(3000);  
-                connector.getFilterChain().addLast("codec", new ProtocolCodecFilter(new ObjectSerializationCodecFactory()));  
-                connector.setHandler(new ClientHandler());  
+                connector.getFilterChain().addLast("codec", new ProtocolCodecFilter(BinaryCodecFactory.create()));  
+                connector.setHandler(handler);  
                 try
                     {
-                        ConnectFuture future = connector.connect(new InetSocketAddress(Settings.SERVER_HOSTNAME, Settings.LISTENING_PORT));  
+                        ConnectFuture future = connector.connect(new InetSocketAddress(hostname, port));  
                         future.awaitUninterruptibly();
-                        IO_SESSION = future.getSession();
-                        System.out.printf("Connected to server (%s:%d).\n", Settings.SERVER_HOSTNAME, Settings.LISTENING_PORT);
-                        connected = true;
-                        break;
+                        IoSession session = future.getSession();
+                        System.out.printf("Connected to server (%s:%d).\n", hostname, port);
+                        return session;
                     }
                 catch (Exception e)
                     {
@@ -55,8 +82,8 @@ public class Client implements Singleton
                     }
                 attempts++;
             }
-        if ( !connected )
-            System.out.println("Maximum connection attempts exceeded.");
+        System.out.println("Maximum connection attempts exceeded.");
+        return null;
     }
 
     /** Not instantiable. */
@@ -70,6 +97,18 @@ public class Client implements Singleton
      */
     public static class ClientHandler extends IoHandlerAdapter
     {
+        /**
+         * Runs a unit unless its result is already in the Outbox.  That happens when the server
+         * hands out work again after reconnecting, before it has seen the results that were resent.
+         */
+        private static void submit(WorkEnvelope envelope, IoSession session)
+        {
+            if ( Settings.USE_OUTBOX && Outbox.contains(envelope.serverID) )
+                EventLog.unit("Already finished work unit %d.", envelope.serverID);
+            else
+                GeneralThreadService.submit(envelope, session);
+        }
+
         private String serverHostname = "unknown";
 
         public ClientHandler()
@@ -79,7 +118,23 @@ public class Client implements Singleton
         public void sessionCreated(IoSession session) throws Exception
         {
             System.out.println("Session created.");
-            session.write(Settings.HOSTNAME);
+            session.write(ClientInfo.local());
+
+            // send any results that finished while there was no connection
+            if ( Settings.USE_OUTBOX )
+                Outbox.setSession(session);
+
+            // tell the server which units are running so it knows this client is not hung
+            final IoSession heartbeatSession = session;
+            ScheduledFuture<?> heartbeat = HEARTBEAT_TIMER.scheduleAtFixedRate(new Runnable()
+                {
+                    public void run()
+                    {
+                        if ( heartbeatSession.isConnected() )
+                            heartbeatSession.write(new Heartbeat(GeneralThreadService.getRunning()));
+                    }
+                }, Settings.HEARTBEAT_INTERVAL, Settings.HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+            session.setAttribute("heartbeat", heartbeat);
         }
 
         public void messageReceived(IoSession session, Object message) throws Exception
@@ -87,8 +142,22 @@ public class Client implements Singleton
             if (message instanceof WorkEnvelope)
                 {
                     WorkEnvelope envelope = (WorkEnvelope)message;
-                    System.out.printf("Received work unit %d.\n", envelope.serverID);
-                    GeneralThreadService.submit(envelope, session);
+                    EventLog.unit("Received work unit %d.", envelope.serverID);
+                    submit(envelope, session);
+                }
+            else if (message instanceof WorkBatch)
+                {
+                    WorkBatch batch = (WorkBatch)message;
+                    for (WorkEnvelope envelope : batch.envelopes)
+                        {
+                            EventLog.unit("Received work unit %d in a batch of %d.", envelope.serverID, batch.envelopes.size());
+                            submit(envelope, session);
+                        }
+                }
+            else if (message instanceof Acknowledgement)
+                {
+                    if ( Settings.USE_OUTBOX )
+                        Outbox.acknowledge((Acknowledgement)message);
                 }
             else if (message instanceof String)
                 {
@@ -102,8 +171,27 @@ public class Client implements Singleton
         public void sessionClosed(IoSession session)
         {
             System.out.println("Connection to server closed.");
-            session.getService().dispose();
-            System.exit(0);
+            ScheduledFuture<?> heartbeat = (ScheduledFuture<?>)session.getAttribute("heartbeat");
+            if ( heartbeat != null )
+                heartbeat.cancel(false);
+            if ( !Settings.USE_OUTBOX )
+                {
+                    session.getService().dispose();
+                    System.exit(0);
+                }
+
+            // keep working and reconnect in the background, giving up if the server does not come back
+            Outbox.setSession(null);
+            final IoService service = session.getService();
+            new Thread("Reconnect")
+                {
+                    public void run()
+                    {
+                        service.dispose();
+                        if ( !Client.start() )
+                            System.exit(0);
+                    }
+                }.start();
         }
 
         public void exceptionCaught(IoSession session, Throwable cause) throws Exception
@@ -0,0 +1,123 @@
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * The handshake a client sends when it connects: its name and the resources it has.  The server
+ * uses this instead of guessing the thread count from Settings.NUMBER_OF_THREADS_MAP.  Older
+ * clients send just their hostname as a String, which the server still accepts.
+ */
+public class ClientInfo implements Serializable, Immutable
+{
+    /** For serialization. */
+    public static final long serialVersionUID = 1L;
+
+    /** The first field of the client's hostname. */
+    public final String hostname;
+
+    /** How many threads the client runs work units on. */
+    public final int threads;
+
+    /** How many cores the client has for work units.  A ResourceWorkUnit that needs more will not be sent to it. */
+    public final int cores;
+
+    /** How much memory the client has for work units in bytes, or zero if it is not known. */
+    public final long memory;
+
+    /**
+     * The most memory one unit may need in bytes, or zero if one unit may use all of memory.  A Relay
+     * reports its whole rack's memory in memory and the memory of its largest client here.
+     */
+    public final long unitMemory;
+
+    /** Whether the client keeps its results in an Outbox, so the server should acknowledge them. */
+    public final boolean usesOutbox;
+
+    public ClientInfo(String hostname, int threads, int cores, long memory, long unitMemory, boolean usesOutbox)
+    {
+        if ( hostname == null )
+            throw new NullPointerException("null hostname");
+        if ( threads < 1 || cores < 1 )
+            throw new IllegalArgumentException("a client needs at least one thread and one core");
+        if ( memory < 0L || unitMemory < 0L )
+            throw new IllegalArgumentException("negative memory");
+        this.hostname = hostname;
+        this.threads = threads;
+        this.cores = cores;
+        this.memory = memory;
+        this.unitMemory = unitMemory;
+        this.usesOutbox = usesOutbox;
+    }
+
+    /** Describes a client whose units may use all of its memory. */
+    public ClientInfo(String hostname, int threads, int cores, long memory, boolean usesOutbox)
+    {
+        this(hostname, threads, cores, memory, 0L, usesOutbox);
+    }
+
+    /** Describes a client that does not use an Outbox. */
+    public ClientInfo(String hostname, int threads, int cores, long memory)
+    {
+        this(hostname, threads, cores, memory, false);
+    }
+
+    /** Describes a client with one core per thread. */
+    public ClientInfo(String hostname, int threads, long memory)
+    {
+        this(hostname, threads, threads, memory);
+    }
+
+    /** Describes this machine.  Waiting units count as threads when they have threads of their own. */
+    public static ClientInfo local()
+    {
+        int threads = Settings.NUMBER_OF_THREADS;
+        if ( Settings.USE_VIRTUAL_THREADS )
+            threads += Settings.MAX_WAITING_UNITS;
+        return new ClientInfo(Settings.HOSTNAME, threads, Settings.NUMBER_OF_THREADS, getPhysicalMemory(), Settings.USE_OUTBOX);
+    }
+
+    /**
+     * Finds out how much memory this machine has, since work units like Gaussian jobs use memory
+     * outside the JVM.  Falls back to the JVM's own limit if the JVM cannot tell.
+     * @return the memory in bytes
+     */
+    @SuppressWarnings("deprecation")
+    private static long getPhysicalMemory()
+    {
+        OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+        if ( bean instanceof com.sun.management.OperatingSystemMXBean )
+            return ((com.sun.management.OperatingSystemMXBean)bean).getTotalPhysicalMemorySize();
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (%d threads, %d cores, %d MB)", hostname, threads, cores, memory / (1024*1024));
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(hostname, threads, cores, memory, unitMemory, usesOutbox);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if ( obj == null )
+            return false;
+        if ( obj == this )
+            return true;
+        if ( !(obj instanceof ClientInfo) )
+            return false;
+
+        ClientInfo c = (ClientInfo)obj;
+        return Objects.equals(hostname, c.hostname) &&
+               threads == c.threads &&
+               cores == c.cores &&
+               memory == c.memory &&
+               unitMemory == c.unitMemory &&
+               usesOutbox == c.usesOutbox;
+    }
+}
@@ -0,0 +1,148 @@
+import java.util.*;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.filter.codec.ProtocolCodecFactory;
+import org.apache.mina.filter.codec.ProtocolCodecSession;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.filter.codec.serialization.ObjectSerializationCodecFactory;
+
+/**
+ * Compares BinaryCodecFactory with ObjectSerializationCodecFactory: how many bytes each
+ * message takes on the wire and how many messages per second can be encoded and decoded.
+ */
+public class CodecBenchmark implements Singleton
+{
+    /** How many messages to encode and decode per measurement. */
+    public static final int OPERATIONS = 100_000;
+
+    /** Not instantiable. */
+    private CodecBenchmark()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /**
+     * Encodes a message once and reports its size.
+     * @param factory the codec to use
+     * @param message the message to encode
+     * @return the encoded message
+     */
+    public static IoBuffer encode(ProtocolCodecFactory factory, Object message) throws Exception
+    {
+        ProtocolCodecSession session = new ProtocolCodecSession();
+        factory.getEncoder(session).encode(session, message, session.getEncoderOutput());
+        return (IoBuffer)session.getEncoderOutputQueue().poll();
+    }
+
+    /**
+     * Times encoding a message.
+     * @param factory the codec to use
+     * @param message the message to encode
+     * @param operations how many times to do it
+     * @return how long the encodes took in nanoseconds
+     */
+    public static long runEncode(ProtocolCodecFactory factory, Object message, int operations) throws Exception
+    {
+        ProtocolCodecSession session = new ProtocolCodecSession();
+        ProtocolEncoder encoder = factory.getEncoder(session);
+        long start = System.nanoTime();
+        for (int i=0; i < operations; i++)
+            {
+                encoder.encode(session, message, session.getEncoderOutput());
+                session.getEncoderOutputQueue().poll();
+            }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Times decoding a message.
+     * @param factory the codec to use
+     * @param message the message to encode once and then decode
+     * @param operations how many times to decode it
+     * @return how long the decodes took in nanoseconds
+     */
+    public static long runDecode(ProtocolCodecFactory factory, Object message, int operations) throws Exception
+    {
+        ProtocolCodecSession session = new ProtocolCodecSession();
+        session.setAttribute(BinaryCodecFactory.ORIGIN_ATTRIBUTE, "benchmark");
+        ProtocolDecoder decoder = factory.getDecoder(session);
+        IoBuffer encoded = encode(factory, message);
+        long start = System.nanoTime();
+        for (int i=0; i < operations; i++)
+            {
+                decoder.decode(session, encoded.duplicate(), session.getDecoderOutput());
+                if ( session.getDecoderOutputQueue().poll() == null )
+                    throw new IllegalArgumentException("nothing was decoded");
+            }
+        return System.nanoTime() - start;
+    }
+
+    /** The messages to try, by name. */
+    public static Map<String,Object> messages()
+    {
+        Map<String,Object> messages = new LinkedHashMap<>();
+        messages.put("WorkEnvelope", new WorkEnvelope(new DummyWorkUnit(false)));
+        messages.put("ResultEnvelope", new ResultEnvelope(new DummyResult(), null, Settings.HOSTNAME, 1L));
+        messages.put("failed ResultEnvelope", new ResultEnvelope(null, "this is a contrived error", Settings.HOSTNAME, 2L));
+        List<WorkEnvelope> envelopes = new ArrayList<>();
+        for (int i=0; i < Settings.MAX_DISPATCH_BATCH_SIZE; i++)
+            envelopes.add(new WorkEnvelope(new DummyWorkUnit(false)));
+        messages.put("WorkBatch", new WorkBatch(envelopes));
+        return messages;
+    }
+
+    /** The codecs to try, by name. */
+    public static Map<String,ProtocolCodecFactory> factories()
+    {
+        Map<String,ProtocolCodecFactory> factories = new LinkedHashMap<>();
+        factories.put("serialization", new ObjectSerializationCodecFactory());
+        factories.put("binary", new BinaryCodecFactory());
+        return factories;
+    }
+
+    /**
+     * Lists the benchmarks.
+     * @return an encode and a decode benchmark for each message with each codec
+     */
+    public static List<Benchmark> benchmarks()
+    {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        Map<String,ProtocolCodecFactory> factories = factories();
+        Map<String,Object> messages = messages();
+        for (String factoryName : factories.keySet())
+            {
+                final ProtocolCodecFactory factory = factories.get(factoryName);
+                for (String messageName : messages.keySet())
+                    {
+                        final Object message = messages.get(messageName);
+                        benchmarks.add(new Benchmark("codec." + factoryName + ".encode", messageName, OPERATIONS)
+                            {
+                                public long run(int operations) throws Exception { return runEncode(factory, message, operations); }
+                            });
+                        benchmarks.add(new Benchmark("codec." + factoryName + ".decode", messageName, OPERATIONS)
+                            {
+                                public long run(int operations) throws Exception { return runDecode(factory, message, operations); }
+                            });
+                    }
+            }
+        return benchmarks;
+    }
+
+    /** Prints how big each message is with each codec and then runs the benchmarks.  Any arguments pick which ones to run by name. */
+    public static void main(String[] args) throws Exception
+    {
+        Map<String,Object> messages = messages();
+        Map<String,ProtocolCodecFactory> factories = factories();
+        System.out.printf("%-24s %-14s %8s\n", "message", "codec", "bytes");
+        for (String messageName : messages.keySet())
+            {
+                for (String factoryName : factories.keySet())
+                    {
+                        int bytes = encode(factories.get(factoryName), messages.get(messageName)).remaining();
+                        System.out.printf("%-24s %-14s %8d\n", messageName, factoryName, bytes);
+                    }
+            }
+        System.out.println();
+        Benchmark.runAll(benchmarks(), args);
+    }
+}
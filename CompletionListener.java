@@ -0,0 +1,12 @@
+/**
+ * Is told when work units finish.  Listeners are called on the thread that received the
+ * result, so they should be quick.  Anything slow should be handed off to another thread.
+ */
+public interface CompletionListener
+{
+    /**
+     * Called once when a unit becomes COMPLETED or FAILED.
+     * @param envelope the result, or the error message if the unit failed
+     */
+    public void unitFinished(ResultEnvelope envelope);
+}
@@ -0,0 +1,327 @@
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs events without making the caller wait for the console.  Events go into a fixed ring of
+ * preallocated slots and a background thread formats and prints them, so a slow terminal or a
+ * redirected stdout never holds up dispatch.  If the ring fills up, new events are dropped and
+ * counted instead of blocking.  Formatting, including the date, happens on the background thread.
+ *
+ * Events below Settings.LOG_LEVEL are discarded.  Per-unit events are logged at Level.UNIT for
+ * one unit in every Settings.UNIT_EVENT_SAMPLING, chosen by serverID so that every event for a
+ * sampled unit is kept.  The unit methods take the serverID as a long and up to two more
+ * arguments, or a second long, so that they do not allocate on the caller's thread.
+ *
+ * The background thread parks when the ring is empty and the next publisher wakes it, so an idle
+ * program does not poll the ring.
+ */
+public class EventLog implements Singleton
+{
+    /** How important an event is. */
+    public enum Level
+    {
+        /** Something happened to one work unit. */
+        UNIT,
+
+        /** Something happened to a client or to the campaign. */
+        INFO,
+
+        /** Something went wrong that the program can recover from. */
+        WARNING,
+
+        /** Something went wrong that the program cannot recover from. */
+        ERROR;
+    }
+
+    /** How long flush waits before checking for new events when there are none, in nanoseconds. */
+    private static final long IDLE_WAIT = 1_000_000L;
+
+    /** The longest the background thread sleeps without being woken, so dropped events are still reported, in nanoseconds. */
+    private static final long MAX_IDLE_WAIT = 1_000_000_000L;
+
+    /** How many characters to collect before printing them. */
+    private static final int PRINT_CHUNK_SIZE = 64 * 1024;
+
+    /** The slots.  The number of slots is a power of two. */
+    private static final Slot[] SLOTS;
+
+    /** Finds the slot for a sequence number. */
+    private static final int MASK;
+
+    /** The sequence number of the next event to be logged. */
+    private static final AtomicLong NEXT = new AtomicLong();
+
+    /** The sequence number of the next event to be printed. */
+    private static final AtomicLong PRINTED = new AtomicLong();
+
+    /** The background thread. */
+    private static final Thread PRINTER;
+
+    /** Whether the background thread is parked, or about to park, waiting for events. */
+    private static volatile boolean SLEEPING = false;
+
+    /** How many events were dropped because the ring was full. */
+    private static final LongAdder DROPPED = Metrics.counter("eventlog.dropped");
+
+    /** How many dropped events have been reported.  Guarded by EventLog.class. */
+    private static long REPORTED_DROPS = 0L;
+
+    /** Not instantiable. */
+    private EventLog()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /** Holds one event until it is printed. */
+    private static class Slot
+    {
+        /** The sequence number of the event in this slot once it is ready to print.  Written last. */
+        public volatile long published = -1L;
+
+        /** When the event happened, from System.currentTimeMillis. */
+        public long time;
+
+        /** The format string. */
+        public String format;
+
+        /** The arguments, or null if they are in serverID, first, and second. */
+        public Object[] args;
+
+        /** The serverID of a unit event. */
+        public long serverID;
+
+        /** The second argument of a unit event, or null. */
+        public Object first;
+
+        /** The second argument of a unit event that was logged as a long. */
+        public long number;
+
+        /** Whether the second argument is in number rather than first. */
+        public boolean numeric;
+
+        /** The third argument of a unit event, or null. */
+        public Object second;
+
+        /** How many of serverID, first, and second are used. */
+        public int count;
+    }
+
+    /** Static initializer. */
+    static
+    {
+        int capacity = Integer.highestOneBit(Math.max(2, Settings.EVENT_LOG_CAPACITY - 1)) << 1;
+        SLOTS = new Slot[capacity];
+        for (int i=0; i < capacity; i++)
+            SLOTS[i] = new Slot();
+        MASK = capacity - 1;
+
+        PRINTER = new Thread("EventLog")
+            {
+                public void run()
+                {
+                    while (true)
+                        {
+                            if ( drain() )
+                                continue;
+
+                            // announce that we are going to sleep, then look once more so that an
+                            // event published in between is not left waiting for the next one
+                            SLEEPING = true;
+                            if ( !isReady() )
+                                LockSupport.parkNanos(MAX_IDLE_WAIT);
+                            SLEEPING = false;
+                        }
+                }
+            };
+        PRINTER.setDaemon(true);
+        PRINTER.start();
+
+        // print whatever is left when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread("EventLogShutdown")
+            {
+                public void run()
+                {
+                    flush();
+                }
+            });
+    }
+
+    /**
+     * Whether events for a unit are logged.  Call this before building arguments that are expensive to make.
+     * @param serverID the unit
+     * @return true if unit events for this unit are logged
+     */
+    public static boolean isLogged(long serverID)
+    {
+        return Settings.LOG_LEVEL == Level.UNIT && serverID % Settings.UNIT_EVENT_SAMPLING == 0L;
+    }
+
+    /** Logs an event about a unit.  The format takes the serverID as its only argument. */
+    public static void unit(String format, long serverID)
+    {
+        if ( isLogged(serverID) )
+            publish(format, null, serverID, null, null, 1, 0L, false);
+    }
+
+    /** Logs an event about a unit.  The format takes the serverID and one more argument. */
+    public static void unit(String format, long serverID, Object first)
+    {
+        if ( isLogged(serverID) )
+            publish(format, null, serverID, first, null, 2, 0L, false);
+    }
+
+    /** Logs an event about a unit.  The format takes the serverID and a number, such as a batch size. */
+    public static void unit(String format, long serverID, long number)
+    {
+        if ( isLogged(serverID) )
+            publish(format, null, serverID, null, null, 2, number, true);
+    }
+
+    /** Logs an event about a unit.  The format takes the serverID and two more arguments. */
+    public static void unit(String format, long serverID, Object first, Object second)
+    {
+        if ( isLogged(serverID) )
+            publish(format, null, serverID, first, second, 3, 0L, false);
+    }
+
+    /**
+     * Logs an event.
+     * @param level how important the event is
+     * @param format the format string, as for String.format
+     * @param args the arguments
+     */
+    public static void log(Level level, String format, Object... args)
+    {
+        if ( level.compareTo(Settings.LOG_LEVEL) >= 0 )
+            publish(format, args, 0L, null, null, 0, 0L, false);
+    }
+
+    /** Logs an INFO event. */
+    public static void info(String format, Object... args)
+    {
+        log(Level.INFO, format, args);
+    }
+
+    /** Logs a WARNING event. */
+    public static void warning(String format, Object... args)
+    {
+        log(Level.WARNING, format, args);
+    }
+
+    /** Puts an event in the next free slot, or drops it if there is none. */
+    private static void publish(String format, Object[] args, long serverID, Object first, Object second, int count, long number, boolean numeric)
+    {
+        long sequence;
+        do
+            {
+                sequence = NEXT.get();
+                if ( sequence - PRINTED.get() >= SLOTS.length )
+                    {
+                        DROPPED.increment();
+                        return;
+                    }
+            }
+        while ( !NEXT.compareAndSet(sequence, sequence+1) );
+
+        Slot slot = SLOTS[(int)(sequence & MASK)];
+        slot.time = System.currentTimeMillis();
+        slot.format = format;
+        slot.args = args;
+        slot.serverID = serverID;
+        slot.first = first;
+        slot.second = second;
+        slot.count = count;
+        slot.number = number;
+        slot.numeric = numeric;
+        slot.published = sequence;
+        if ( SLEEPING )
+            LockSupport.unpark(PRINTER);
+    }
+
+    /** Whether the next event to print has been published. */
+    private static boolean isReady()
+    {
+        long sequence = PRINTED.get();
+        return SLOTS[(int)(sequence & MASK)].published == sequence;
+    }
+
+    /**
+     * Prints every event that is ready.  Only the background thread and the shutdown hook call this.
+     * @return true if anything was printed
+     */
+    private static synchronized boolean drain()
+    {
+        long sequence = PRINTED.get();
+        long start = sequence;
+        StringBuilder builder = new StringBuilder();
+        while (true)
+            {
+                Slot slot = SLOTS[(int)(sequence & MASK)];
+                if ( slot.published != sequence )
+                    break;
+                builder.append(format(slot)).append('\n');
+                slot.format = null;
+                slot.args = null;
+                slot.first = null;
+                slot.second = null;
+                sequence++;
+                PRINTED.lazySet(sequence);
+
+                // print in chunks so the console sees a few large writes instead of many small ones
+                if ( builder.length() >= PRINT_CHUNK_SIZE )
+                    {
+                        System.out.print(builder);
+                        builder.setLength(0);
+                    }
+            }
+        System.out.print(builder);
+        long dropped = DROPPED.sum();
+        if ( dropped > REPORTED_DROPS )
+            {
+                System.out.printf("[ %s ] %d log events were dropped because the log could not keep up.\n", new Date().toString(), dropped - REPORTED_DROPS);
+                REPORTED_DROPS = dropped;
+            }
+        if ( sequence == start )
+            return false;
+        System.out.flush();
+        return true;
+    }
+
+    /** Formats the event in a slot. */
+    private static String format(Slot slot)
+    {
+        Object[] args = slot.args;
+        if ( args == null )
+            {
+                args = new Object[slot.count];
+                if ( slot.count > 0 )
+                    args[0] = slot.serverID;
+                if ( slot.count > 1 )
+                    args[1] = slot.numeric ? (Object)slot.number : slot.first;
+                if ( slot.count > 2 )
+                    args[2] = slot.second;
+            }
+        String message = null;
+        try
+            {
+                message = String.format(slot.format, args);
+            }
+        catch (IllegalFormatException e)
+            {
+                message = slot.format + " " + Arrays.toString(args);
+            }
+        return String.format("[ %s ] %s", new Date(slot.time).toString(), message);
+    }
+
+    /** Waits until every event that has been logged so far is printed. */
+    public static void flush()
+    {
+        long target = NEXT.get();
+        while ( PRINTED.get() < target )
+            {
+                if ( !drain() )
+                    LockSupport.parkNanos(IDLE_WAIT);
+            }
+    }
+}
@@ -0,0 +1,336 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The work that is waiting to be sent out.  Each campaign has its own lane, and units that do
+ * not belong to a campaign share a default lane.  Lanes with a higher priority are always served
+ * first.  Lanes with the same priority share the clients in proportion to their weights using
+ * stride scheduling: every lane has a pass that advances by 1/weight each time a unit is taken
+ * from it, and the nonempty lane with the lowest pass goes next.  Units that are taken but not
+ * sent out are given back with pushBack or refund, so their lanes are not charged for them.  Taking a unit costs time
+ * proportional to the number of lanes, not the number of queued units.  Concurrent callers may
+ * occasionally pick lanes slightly out of order, but no lock is taken.
+ */
+public class FairShareQueue
+{
+    /** The pass of a lane with weight one advances by this much per unit. */
+    private static final long STRIDE_SCALE = 1L << 20;
+
+    /** The lane for units that do not belong to a campaign. */
+    private final Lane defaultLane;
+
+    /** Maps campaigns to their lanes. */
+    private final ConcurrentMap<Campaign,Lane> lanesByCampaign;
+
+    /** All the lanes, including the default one. */
+    private final List<Lane> lanes;
+
+    /** The pass of the lane that was served most recently.  Lanes that become busy again start here so they cannot claim the time they spent idle. */
+    private final AtomicLong virtualTime;
+
+    public FairShareQueue()
+    {
+        defaultLane = new Lane(null, 0, 1.0, 0L);
+        lanesByCampaign = new ConcurrentHashMap<>();
+        lanes = new CopyOnWriteArrayList<>();
+        lanes.add(defaultLane);
+        virtualTime = new AtomicLong();
+    }
+
+    /**
+     * Adds a unit to the back of its lane.
+     * @param envelope the work
+     * @param campaign the campaign it belongs to, or null if it does not belong to one
+     */
+    public void add(WorkEnvelope envelope, Campaign campaign)
+    {
+        Lane lane = getLane(campaign);
+        catchUp(lane);
+        lane.queue.add(envelope);
+    }
+
+    /**
+     * Adds a unit to the front of its lane.  Used for urgent work and for work that is being requeued.
+     * @param envelope the work
+     * @param campaign the campaign it belongs to, or null if it does not belong to one
+     */
+    public void addFirst(WorkEnvelope envelope, Campaign campaign)
+    {
+        Lane lane = getLane(campaign);
+        catchUp(lane);
+        lane.queue.addFirst(envelope);
+    }
+
+    /**
+     * Puts back a unit that was taken with poll but not sent out, such as one that does not fit
+     * the client that asked, at the front of its lane.  The lane gets back what it was charged,
+     * so a lane of units that few clients can run does not lose its share while it waits.
+     * @param envelope the work
+     * @param campaign the campaign it belongs to, or null if it does not belong to one
+     */
+    public void pushBack(WorkEnvelope envelope, Campaign campaign)
+    {
+        Lane lane = getLane(campaign);
+        lane.pass.addAndGet(-lane.stride);
+        lane.queue.addFirst(envelope);
+    }
+
+    /**
+     * Gives a lane back what it was charged for a unit that was taken with poll and then dropped
+     * because it was stale, such as a unit that finished after it had been requeued.
+     * @param campaign the campaign the unit belongs to, or null if it does not belong to one
+     */
+    public void refund(Campaign campaign)
+    {
+        Lane lane = getLane(campaign);
+        lane.pass.addAndGet(-lane.stride);
+    }
+
+    /**
+     * Takes the next unit to send out.
+     * @return the unit, or null if the queue is empty
+     */
+    public WorkEnvelope poll()
+    {
+        while (true)
+            {
+                Lane best = null;
+                long bestPass = 0L;
+                for (Lane lane : lanes)
+                    {
+                        if ( lane.queue.isEmpty() )
+                            {
+                                // forget about campaigns that are over
+                                if ( lane.campaign != null && lane.campaign.getFuture().isDone() )
+                                    {
+                                        lanes.remove(lane);
+                                        lanesByCampaign.remove(lane.campaign, lane);
+                                    }
+                                continue;
+                            }
+                        long pass = lane.pass.get();
+                        if ( best == null || lane.priority > best.priority || ( lane.priority == best.priority && pass < bestPass ) )
+                            {
+                                best = lane;
+                                bestPass = pass;
+                            }
+                    }
+                if ( best == null )
+                    return null;
+                WorkEnvelope envelope = best.queue.poll();
+                if ( envelope == null )
+                    continue; // another thread emptied the lane first
+                long pass = best.pass.getAndAdd(best.stride);
+                while (true)
+                    {
+                        long current = virtualTime.get();
+                        if ( pass <= current || virtualTime.compareAndSet(current, pass) )
+                            break;
+                    }
+                return envelope;
+            }
+    }
+
+    /** Whether there is no work waiting. */
+    public boolean isEmpty()
+    {
+        for (Lane lane : lanes)
+            {
+                if ( !lane.queue.isEmpty() )
+                    return false;
+            }
+        return true;
+    }
+
+    /** Removes all the work. */
+    public void clear()
+    {
+        for (Lane lane : lanes)
+            lane.queue.clear();
+        lanes.retainAll(Collections.singleton(defaultLane));
+        lanesByCampaign.clear();
+    }
+
+    /** Gets the lane for a campaign, creating it if necessary. */
+    private Lane getLane(Campaign campaign)
+    {
+        if ( campaign == null )
+            return defaultLane;
+        Lane lane = lanesByCampaign.get(campaign);
+        if ( lane == null )
+            {
+                Lane newLane = new Lane(campaign, campaign.priority, campaign.weight, virtualTime.get());
+                lane = lanesByCampaign.putIfAbsent(campaign, newLane);
+                if ( lane == null )
+                    {
+                        lane = newLane;
+                        lanes.add(lane);
+                    }
+            }
+        return lane;
+    }
+
+    /** Moves an idle lane's pass up to the current virtual time. */
+    private void catchUp(Lane lane)
+    {
+        if ( !lane.queue.isEmpty() )
+            return;
+        long now = virtualTime.get();
+        while (true)
+            {
+                long current = lane.pass.get();
+                if ( current >= now || lane.pass.compareAndSet(current, now) )
+                    return;
+            }
+    }
+
+    /**
+     * Fills the queue with units from each campaign, polls it the specified number of times,
+     * and counts how many units each campaign got.
+     * @param queue the queue to use
+     * @param campaigns the campaigns to fill it with, or null for the default lane
+     * @param perCampaign how many units to add for each campaign
+     * @param polls how many units to take
+     * @param pushBackRate if more than one, units of the first campaign are pushed back except on every pushBackRate-th poll
+     * @return how many units each campaign got, in the same order, followed by how many units were already in the queue
+     */
+    private static int[] share(FairShareQueue queue, Campaign[] campaigns, int perCampaign, int polls, int pushBackRate)
+    {
+        Map<WorkEnvelope,Integer> owners = new IdentityHashMap<>();
+        for (int i=0; i < perCampaign; i++)
+            {
+                for (int j=0; j < campaigns.length; j++)
+                    {
+                        WorkEnvelope envelope = new WorkEnvelope(new DummyWorkUnit(false));
+                        owners.put(envelope, j);
+                        queue.add(envelope, campaigns[j]);
+                    }
+            }
+        int[] counts = new int[campaigns.length + 1];
+        int taken = 0;
+        int tries = 0;
+        while ( taken < polls )
+            {
+                WorkEnvelope envelope = queue.poll();
+                Integer owner = owners.get(envelope);
+                if ( owner == null )
+                    owner = campaigns.length;
+                tries++;
+                if ( owner == 0 && pushBackRate > 1 && tries % pushBackRate != 0 )
+                    {
+                        queue.pushBack(envelope, campaigns[0]);
+                        continue;
+                    }
+                counts[owner]++;
+                taken++;
+            }
+        return counts;
+    }
+
+    /** Checks that a count is within one percent, or two units, of what was expected. */
+    private static boolean near(int count, double expected)
+    {
+        return Math.abs(count - expected) <= Math.max(2.0, expected / 100.0);
+    }
+
+    /**
+     * For testing.  Checks that lanes of equal priority share in proportion to their weights,
+     * that a higher priority lane goes first, that pushing units back does not cost a lane its
+     * share, and that a lane that was idle does not get to catch up.  Exits with status 1 if
+     * any of these does not hold.
+     */
+    public static void main(String[] args)
+    {
+        List<String> failures = new ArrayList<>();
+
+        // weights 1, 3 and 1 (the default lane) get 1/5, 3/5 and 1/5 of the units
+        FairShareQueue queue = new FairShareQueue();
+        Campaign light = new Campaign("light", 0, 1.0);
+        Campaign heavy = new Campaign("heavy", 0, 3.0);
+        int[] counts = share(queue, new Campaign[] { light, heavy, null }, 10_000, 5_000, 1);
+        System.out.printf("weights 1:3:1            %s\n", Arrays.toString(counts));
+        if ( !near(counts[0], 1_000) || !near(counts[1], 3_000) || !near(counts[2], 1_000) )
+            failures.add("weighted lanes did not split 1000:3000:1000");
+
+        // a higher priority lane is drained before anything else
+        Campaign urgent = new Campaign("urgent", 1, 1.0);
+        counts = share(queue, new Campaign[] { urgent }, 100, 100, 1);
+        System.out.printf("priority 1               %s\n", Arrays.toString(counts));
+        if ( counts[0] != 100 )
+            failures.add("the priority lane was not served first");
+
+        // a lane whose units only fit one poll in three keeps its half
+        queue = new FairShareQueue();
+        Campaign picky = new Campaign("picky", 0, 1.0);
+        Campaign easy = new Campaign("easy", 0, 1.0);
+        counts = share(queue, new Campaign[] { picky, easy }, 10_000, 4_000, 3);
+        System.out.printf("pushBack 1:1             %s\n", Arrays.toString(counts));
+        if ( !near(counts[0], 2_000) || !near(counts[1], 2_000) )
+            failures.add("pushed back units cost their lane its share");
+
+        // a campaign that starts late splits evenly from then on instead of making up for lost time
+        Campaign late = new Campaign("late", 0, 1.0);
+        Map<Campaign,Integer> lateCounts = new HashMap<>();
+        Map<WorkEnvelope,Campaign> owners = new IdentityHashMap<>();
+        queue = new FairShareQueue();
+        for (Campaign c : new Campaign[] { picky, easy })
+            {
+                for (int i=0; i < 3_000; i++)
+                    {
+                        WorkEnvelope envelope = new WorkEnvelope(new DummyWorkUnit(false));
+                        owners.put(envelope, c);
+                        queue.add(envelope, c);
+                    }
+            }
+        for (int i=0; i < 2_000; i++)
+            queue.poll();
+        for (int i=0; i < 3_000; i++)
+            {
+                WorkEnvelope envelope = new WorkEnvelope(new DummyWorkUnit(false));
+                owners.put(envelope, late);
+                queue.add(envelope, late);
+            }
+        for (int i=0; i < 1_500; i++)
+            {
+                Campaign c = owners.get(queue.poll());
+                lateCounts.put(c, lateCounts.containsKey(c) ? lateCounts.get(c) + 1 : 1);
+            }
+        int lateCount = lateCounts.containsKey(late) ? lateCounts.get(late) : 0;
+        System.out.printf("late start               %d of 1500\n", lateCount);
+        if ( !near(lateCount, 500) )
+            failures.add("a late campaign did not get an even third");
+
+        for (String failure : failures)
+            System.out.println(failure);
+        System.out.println(failures.size() == 0 ? "ok" : failures.size() + " problems");
+        System.exit(failures.size() == 0 ? 0 : 1);
+    }
+
+    /** The queue for one campaign. */
+    private static class Lane
+    {
+        /** The campaign, or null for the default lane. */
+        private final Campaign campaign;
+
+        /** Lanes with higher priorities are served first. */
+        private final int priority;
+
+        /** How far the pass advances per unit. */
+        private final long stride;
+
+        /** The work in this lane. */
+        private final Deque<WorkEnvelope> queue = new ConcurrentLinkedDeque<>();
+
+        /** Lanes with lower passes are served first. */
+        private final AtomicLong pass;
+
+        public Lane(Campaign campaign, int priority, double weight, long pass)
+        {
+            this.campaign = campaign;
+            this.priority = priority;
+            this.stride = Math.max(1L, (long)(STRIDE_SCALE / weight));
+            this.pass = new AtomicLong(pass);
+        }
+    }
+}
@@ -1,20 +1,70 @@
 import com.google.common.util.concurrent.*;
 import com.google.common.collect.*;
+import java.lang.reflect.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.*;
 import org.apache.mina.core.session.IoSession;
 
 /**
- * Runs WorkUnits.
+ * Runs WorkUnits.  Remote work that arrives while every thread is busy waits in the
+ * thread pool's queue, which is where units prefetched by the server (see
+ * Settings.PREFETCH_DEPTH) sit until a thread is free.
+ *
+ * To keep the cores from being oversubscribed, a unit needs one of Settings.NUMBER_OF_THREADS
+ * permits to run, or one per core if it is a ResourceWorkUnit, so that a unit that uses several
+ * cores keeps other units from starting until it finishes.  If Settings.USE_VIRTUAL_THREADS is on,
+ * WaitingWorkUnits run on a thread of their own instead, so that many of them can wait at once,
+ * and only need a permit for their runOnCpu sections.
  */
 public class GeneralThreadService
 {
     /** The thread pool. */
     private static final ListeningExecutorService SERVICE;
 
+    /** Runs WaitingWorkUnits, or null if Settings.USE_VIRTUAL_THREADS is off. */
+    private static final ListeningExecutorService WAITING_SERVICE;
+
+    /** Limits how many WaitingWorkUnits run at once, since a virtual thread is made for every one. */
+    private static final Semaphore WAITING_PERMITS = new Semaphore(Settings.MAX_WAITING_UNITS);
+
+    /** Limits how many cores are in use at once.  Fair, so that a unit waiting for several cores is not passed over. */
+    private static final Semaphore CPU_PERMITS = new Semaphore(Settings.NUMBER_OF_THREADS, true);
+
+    /** Whether the current thread holds any of the CPU_PERMITS. */
+    private static final ThreadLocal<Boolean> HOLDS_CPU_PERMIT = new ThreadLocal<Boolean>()
+        {
+            @Override
+            protected Boolean initialValue()
+            {
+                return Boolean.FALSE;
+            }
+        };
+
+    /**
+     * How many units submitAndStream keeps running or queued at once if it is not told otherwise.  This
+     * is large enough that short units do not sit idle while the caller reads results.
+     */
+    public static final int DEFAULT_STREAM_WINDOW = Math.max(256, 2 * ClientInfo.local().threads);
+
     /** A default callback that prints out any errors. */
     private static final FutureCallback<Result> DEFAULT_CALLBACK;
 
+    /** How long remote units wait for a thread after they arrive. */
+    private static final Histogram QUEUE_WAIT = Metrics.histogram("client.queue.wait");
+
+    /** How long remote units take to run. */
+    private static final Histogram EXECUTION = Metrics.histogram("client.execution");
+
+    /** How many remote units completed. */
+    private static final LongAdder COMPLETED = Metrics.counter("client.completed");
+
+    /** How many remote units failed. */
+    private static final LongAdder FAILED = Metrics.counter("client.failed");
+
+    /** The serverIDs of the remote units that are running right now, as opposed to waiting in the queue. */
+    private static final Set<Long> RUNNING = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+
     /** Static initializer. */
     static
     {
@@ -22,6 +72,7 @@ public class GeneralThreadService
         ExecutorService fixedThreadPool = Executors.newFixedThreadPool(Settings.NUMBER_OF_THREADS);
         SERVICE = MoreExecutors.listeningDecorator(fixedThreadPool);
         System.out.printf("GeneralThreadService started on %s with %d threads.\n", Settings.HOSTNAME, Settings.NUMBER_OF_THREADS);
+        WAITING_SERVICE = Settings.USE_VIRTUAL_THREADS ? MoreExecutors.listeningDecorator(createWaitingExecutor()) : null;
     
         // create a default callback
         DEFAULT_CALLBACK = new FutureCallback<Result>()
@@ -44,11 +95,126 @@ public class GeneralThreadService
         throw new IllegalArgumentException("not instantiable");
     }
 
+    /**
+     * Makes the executor for WaitingWorkUnits: one virtual thread per unit if this JVM has virtual
+     * threads, and otherwise a pool of up to Settings.MAX_WAITING_UNITS ordinary threads that are
+     * only kept while there is work for them.  Virtual threads are looked up by reflection so that
+     * this still compiles and runs on older JVMs.
+     */
+    private static ExecutorService createWaitingExecutor()
+    {
+        try
+            {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ExecutorService executor = (ExecutorService)method.invoke(null);
+                System.out.printf("Running waiting units on virtual threads, up to %d at once.\n", Settings.MAX_WAITING_UNITS);
+                return executor;
+            }
+        catch (ReflectiveOperationException | RuntimeException e)
+            {
+                // this JVM is too old or has virtual threads turned off
+            }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(Settings.MAX_WAITING_UNITS, Settings.MAX_WAITING_UNITS, 60L, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "WaitingUnit-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        System.out.printf("Virtual threads are not available, so waiting units will run on up to %d ordinary threads.\n", Settings.MAX_WAITING_UNITS);
+        return executor;
+    }
+
+    /**
+     * Runs a CPU-heavy section of a WaitingWorkUnit.  This waits until a core is free, unless
+     * this thread is already running a unit that holds one, in which case the section just runs.
+     * @param section the work to do
+     * @return what the section returns
+     */
+    public static <T> T runOnCpu(Callable<T> section) throws Exception
+    {
+        return runOnCpu(section, 1);
+    }
+
+    /**
+     * Runs something once enough cores are free.
+     * @param section the work to do
+     * @param cores how many cores it uses, which is capped at Settings.NUMBER_OF_THREADS
+     * @return what the section returns
+     */
+    private static <T> T runOnCpu(Callable<T> section, int cores) throws Exception
+    {
+        if ( HOLDS_CPU_PERMIT.get() )
+            return section.call();
+        int permits = Math.max(1, Math.min(cores, Settings.NUMBER_OF_THREADS));
+        CPU_PERMITS.acquire(permits);
+        HOLDS_CPU_PERMIT.set(Boolean.TRUE);
+        try
+            {
+                return section.call();
+            }
+        finally
+            {
+                HOLDS_CPU_PERMIT.set(Boolean.FALSE);
+                CPU_PERMITS.release(permits);
+            }
+    }
+
+    /** Starts a job on the right executor. */
+    private static ListenableFuture<Result> execute(WorkUnit workUnit)
+    {
+        return execute(workUnit, workUnit);
+    }
+
+    /**
+     * Starts a job on the right executor.  WaitingWorkUnits get a thread of their own if
+     * Settings.USE_VIRTUAL_THREADS is on, and everything else runs on the fixed pool once
+     * it has the cores it needs.
+     * @param workUnit the unit, to decide where it runs and how many cores it needs
+     * @param task what to run, which may wrap the unit
+     * @return the result
+     */
+    private static ListenableFuture<Result> execute(WorkUnit workUnit, final Callable<Result> task)
+    {
+        if ( WAITING_SERVICE != null && workUnit instanceof WaitingWorkUnit )
+            {
+                return WAITING_SERVICE.submit(new Callable<Result>()
+                    {
+                        public Result call() throws Exception
+                        {
+                            WAITING_PERMITS.acquire();
+                            try
+                                {
+                                    return task.call();
+                                }
+                            finally
+                                {
+                                    WAITING_PERMITS.release();
+                                }
+                        }
+                    });
+            }
+        final int cores = workUnit instanceof ResourceWorkUnit ? ((ResourceWorkUnit)workUnit).getCores() : 1;
+        return SERVICE.submit(new Callable<Result>()
+            {
+                public Result call() throws Exception
+                {
+                    return runOnCpu(task, cores);
+                }
+            });
+    }
+
     /** Run a job with the default callback. */
     public static ListenableFuture<Result> submit(WorkUnit workUnit)
     {
         // add a default callback that prints out any error if one occurred
-        ListenableFuture<Result> f = SERVICE.submit(workUnit);
+        ListenableFuture<Result> f = execute(workUnit, workUnit);
         Futures.addCallback(f, DEFAULT_CALLBACK);
         return f;
     }
@@ -56,7 +222,7 @@ public class GeneralThreadService
     /** Run a job with a callback. */
     public static ListenableFuture<Result> submit(WorkUnit workUnit, FutureCallback<Result> callback)
     {
-        ListenableFuture<Result> f = SERVICE.submit(workUnit);
+        ListenableFuture<Result> f = execute(workUnit, workUnit);
         Futures.addCallback(f, callback);
         return f;
     }
@@ -151,7 +317,99 @@ public class GeneralThreadService
     }
 
     /**
-     * Run a remote job and automatically send back the result when it is finished.
+     * Run a stream of jobs and return their results as they finish.  Units are taken from the
+     * iterator only as results are taken from the returned iterator, so no more than window
+     * units are running or waiting for a thread at once, and the results that have not been
+     * read take no memory beyond that.  This means a lazily generated sweep of any length runs
+     * in constant memory, and the caller can work on the first results while later ones run.
+     * As in submitAndWait, failed units are printed and skipped.
+     * @param workUnits the work to do, which is read from the thread that reads the results
+     * @param window the most units to have running or queued at once
+     * @return the results, in the order the units finish
+     */
+    public static Iterator<Result> submitAndStream(Iterator<? extends WorkUnit> workUnits, int window)
+    {
+        if ( workUnits == null )
+            throw new NullPointerException("work units cannot be null");
+        if ( window < 1 )
+            throw new IllegalArgumentException("window must be at least one");
+        return new ResultStream(workUnits, window);
+    }
+
+    /** Run a stream of jobs and return their results as they finish, with DEFAULT_STREAM_WINDOW units in flight. */
+    public static Iterator<Result> submitAndStream(Iterable<? extends WorkUnit> workUnits)
+    {
+        if ( workUnits == null )
+            throw new NullPointerException("work units cannot be null");
+        return submitAndStream(workUnits.iterator(), DEFAULT_STREAM_WINDOW);
+    }
+
+    /**
+     * Yields the results of a stream of units in completion order.  Each finished future is put
+     * on a queue by whichever thread completes it; the reading thread takes them off and tops up
+     * the units in flight from the source before each result.
+     */
+    private static class ResultStream extends AbstractIterator<Result>
+    {
+        /** Where the units come from. */
+        private final Iterator<? extends WorkUnit> source;
+
+        /** The most units to have in flight. */
+        private final int window;
+
+        /** The futures of the units that have finished but whose results have not been read. */
+        private final BlockingQueue<ListenableFuture<Result>> finished = new LinkedBlockingQueue<>();
+
+        /** How many units have been submitted but whose results have not been read.  Only used by the reading thread. */
+        private int inFlight = 0;
+
+        public ResultStream(Iterator<? extends WorkUnit> source, int window)
+        {
+            this.source = source;
+            this.window = window;
+        }
+
+        @Override
+        protected Result computeNext()
+        {
+            while (true)
+                {
+                    // top up the units in flight
+                    while ( inFlight < window && source.hasNext() )
+                        {
+                            final ListenableFuture<Result> f = execute(source.next());
+                            f.addListener(new Runnable()
+                                {
+                                    public void run()
+                                    {
+                                        finished.add(f);
+                                    }
+                                }, MoreExecutors.directExecutor());
+                            inFlight++;
+                        }
+                    if ( inFlight == 0 )
+                        return endOfData();
+
+                    // wait for the next unit to finish
+                    ListenableFuture<Result> f = Uninterruptibles.takeUninterruptibly(finished);
+                    inFlight--;
+                    try
+                        {
+                            return Uninterruptibles.getUninterruptibly(f);
+                        }
+                    catch (ExecutionException e)
+                        {
+                            System.out.println("=== EXECUTION EXCEPTION ===");
+                            e.getCause().printStackTrace();
+                        }
+                }
+        }
+    }
+
+    /**
+     * Run a remote job and automatically send back the result when it is finished.  If
+     * Settings.USE_OUTBOX is on, the result goes through the Outbox, which sends it on
+     * whatever connection to the server is current by then.
      * @param workEnvelope the work to do
      * @param session where to send the result back to
      */
@@ -164,8 +422,9 @@ public class GeneralThreadService
                 {
                     long serverID = workEnvelope.serverID;
                     ResultEnvelope resultEnvelope = new ResultEnvelope(result, null, Settings.HOSTNAME, serverID);
-                    session.write(resultEnvelope);
-                    System.out.printf("Sent back work unit %d.\n", serverID);
+                    COMPLETED.increment();
+                    sendBack(resultEnvelope, session);
+                    EventLog.unit("Finished work unit %d.", serverID);
                 }
 
                 public void onFailure(Throwable t)
@@ -173,16 +432,69 @@ public class GeneralThreadService
                     System.out.println("=== EXECUTION EXCEPTION ===");
                     t.printStackTrace();
                     long serverID = workEnvelope.serverID;
-                    ResultEnvelope resultEnvelope = new ResultEnvelope(null, t.getMessage(), Settings.HOSTNAME, serverID);
-                    session.write(resultEnvelope);
+                    ResultEnvelope resultEnvelope = new ResultEnvelope(null, String.valueOf(t.getMessage()), Settings.HOSTNAME, serverID);
+                    FAILED.increment();
+                    sendBack(resultEnvelope, session);
+                }
+            };
+
+        // keep track of when the job is running so heartbeats can report it
+        final long arrived = System.nanoTime();
+        Callable<Result> task = new Callable<Result>()
+            {
+                public Result call() throws Exception
+                {
+                    long serverID = workEnvelope.serverID;
+                    long started = System.nanoTime();
+                    QUEUE_WAIT.record((started - arrived) / 1000L);
+                    RUNNING.add(serverID);
+                    WorkUnit workUnit = workEnvelope.workUnit;
+                    try
+                        {
+                            // the unit's input files have to be here before it runs, and its output files have to be on the server before its result
+                            if ( workUnit instanceof AttachedWorkUnit )
+                                AttachmentService.fetchAll(serverID, ((AttachedWorkUnit)workUnit).getAttachments());
+                            Result result = workUnit.call();
+                            if ( result instanceof AttachedResult )
+                                {
+                                    for (Attachment attachment : ((AttachedResult)result).getAttachments())
+                                        AttachmentService.upload(attachment);
+                                }
+                            return result;
+                        }
+                    finally
+                        {
+                            if ( workUnit instanceof AttachedWorkUnit )
+                                AttachmentService.deleteAll(serverID);
+                            RUNNING.remove(serverID);
+                            EXECUTION.record(Metrics.microsSince(started));
+                        }
                 }
             };
 
         // submit the job
-        ListenableFuture<Result> f = SERVICE.submit(workEnvelope.workUnit);
+        ListenableFuture<Result> f = execute(workEnvelope.workUnit, task);
         Futures.addCallback(f, callback);
     }
 
+    /** Sends a result to the server through the Outbox if it is in use. */
+    private static void sendBack(ResultEnvelope resultEnvelope, IoSession session)
+    {
+        if ( Settings.USE_OUTBOX )
+            Outbox.send(resultEnvelope);
+        else
+            ResultBatcher.send(session, resultEnvelope);
+    }
+
+    /**
+     * Lists the remote units that are running right now.  Units that are waiting for a thread are not included.
+     * @return the serverIDs of the running units
+     */
+    public static List<Long> getRunning()
+    {
+        return ImmutableList.copyOf(RUNNING);
+    }
+
     /** For testing. */
     public static void main(String[] args)
     {
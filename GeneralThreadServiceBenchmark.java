@@ -0,0 +1,124 @@
+import java.util.*;
+
+/**
+ * Measures the overhead GeneralThreadService adds to every unit by running units that do
+ * no work at all through submitAndWait in batches of various sizes, and through
+ * submitAndStream.
+ */
+public class GeneralThreadServiceBenchmark implements Singleton
+{
+    /** The batch sizes to try. */
+    public static final int[] BATCH_SIZES = { 1, 100, 10_000 };
+
+    /** How many units to run per measurement. */
+    public static final int OPERATIONS = 100_000;
+
+    /** Not instantiable. */
+    private GeneralThreadServiceBenchmark()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /** A unit that returns immediately. */
+    private static class TrivialWorkUnit implements Immutable, WorkUnit
+    {
+        /** Every unit returns the same result. */
+        private static final Result RESULT = new DummyResult();
+
+        public Result call()
+        {
+            return RESULT;
+        }
+    }
+
+    /**
+     * Times running trivial units through submitAndWait.
+     * @param batchSize how many units to pass to each call of submitAndWait
+     * @param operations how many units to run in total
+     * @return how long the units took in nanoseconds
+     */
+    public static long run(int batchSize, int operations)
+    {
+        List<WorkUnit> batch = new ArrayList<>(batchSize);
+        for (int i=0; i < batchSize; i++)
+            batch.add(new TrivialWorkUnit());
+        int batches = operations / batchSize;
+        long start = System.nanoTime();
+        for (int i=0; i < batches; i++)
+            {
+                List<Result> results = GeneralThreadService.submitAndWaitSilently(batch);
+                if ( results.size() != batchSize )
+                    throw new IllegalArgumentException("unexpected number of results");
+            }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Times streaming trivial units through submitAndStream.  The units are made as they are needed.
+     * @param operations how many units to run
+     * @return how long the units took in nanoseconds
+     */
+    public static long runStream(final int operations)
+    {
+        final WorkUnit unit = new TrivialWorkUnit();
+        Iterator<WorkUnit> units = new Iterator<WorkUnit>()
+            {
+                private int count = 0;
+
+                public boolean hasNext()
+                {
+                    return count < operations;
+                }
+
+                public WorkUnit next()
+                {
+                    count++;
+                    return unit;
+                }
+
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        long start = System.nanoTime();
+        int count = 0;
+        Iterator<Result> results = GeneralThreadService.submitAndStream(units, GeneralThreadService.DEFAULT_STREAM_WINDOW);
+        while ( results.hasNext() )
+            {
+                results.next();
+                count++;
+            }
+        if ( count != operations )
+            throw new IllegalArgumentException("unexpected number of results");
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Lists the benchmarks.
+     * @return a benchmark for each batch size, and one for streaming
+     */
+    public static List<Benchmark> benchmarks()
+    {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (final int batchSize : BATCH_SIZES)
+            {
+                benchmarks.add(new Benchmark("GeneralThreadService.submitAndWait", "batch=" + batchSize, OPERATIONS / batchSize * batchSize)
+                    {
+                        public long run(int operations) { return GeneralThreadServiceBenchmark.run(batchSize, operations); }
+                    });
+            }
+        benchmarks.add(new Benchmark("GeneralThreadService.submitAndStream", "window=" + GeneralThreadService.DEFAULT_STREAM_WINDOW, OPERATIONS)
+            {
+                public long run(int operations) { return GeneralThreadServiceBenchmark.runStream(operations); }
+            });
+        return benchmarks;
+    }
+
+    /** Runs the benchmarks.  Any arguments pick which ones to run by name. */
+    public static void main(String[] args) throws Exception
+    {
+        Benchmark.runAll(benchmarks(), args);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.*;
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * Sent by a client every Settings.HEARTBEAT_INTERVAL seconds to renew its lease on the work it
+ * holds.  Lists the units that are actually running, as opposed to waiting in the prefetch queue,
+ * so the server knows when their deadlines started.
+ */
+public class Heartbeat implements Serializable, Immutable
+{
+    /** For serialization. */
+    public static final long serialVersionUID = 1L;
+
+    /** The serverIDs of the units that are running. */
+    public final List<Long> running;
+
+    /** Create a Heartbeat that lists some running units. */
+    public Heartbeat(Collection<Long> running)
+    {
+        if ( running == null )
+            throw new NullPointerException("null running units");
+        this.running = ImmutableList.copyOf(running);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Heartbeat with %d running units", running.size());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(running);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if ( obj == null )
+            return false;
+        if ( obj == this )
+            return true;
+        if ( !(obj instanceof Heartbeat) )
+            return false;
+
+        Heartbeat h = (Heartbeat)obj;
+        return Objects.equals(running, h.running);
+    }
+}
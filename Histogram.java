@@ -0,0 +1,129 @@
+import java.util.concurrent.atomic.*;
+
+/**
+ * Records a distribution of non-negative values, such as latencies in microseconds, without
+ * locking.  Values are counted in buckets whose width grows with the value: each power of two is
+ * split into four buckets, so any percentile is accurate to within about 12%.  Recording a
+ * value costs two atomic increments.
+ */
+public class Histogram
+{
+    /** How many sub-buckets each power of two is split into, as a power of two. */
+    private static final int SUB_BUCKET_BITS = 2;
+
+    /** How many sub-buckets each power of two is split into. */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /** Enough buckets for any long. */
+    private static final int BUCKETS = SUB_BUCKETS * (64 - SUB_BUCKET_BITS + 1);
+
+    /** How many values fell in each bucket. */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /** The total of all the values. */
+    private final LongAdder sum = new LongAdder();
+
+    /** The largest value. */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value.  Negative values are counted as zero.
+     * @param value the value
+     */
+    public void record(long value)
+    {
+        if ( value < 0L )
+            value = 0L;
+        counts.incrementAndGet(bucket(value));
+        sum.add(value);
+        while (true)
+            {
+                long current = max.get();
+                if ( value <= current || max.compareAndSet(current, value) )
+                    break;
+            }
+    }
+
+    /** How many values have been recorded. */
+    public long getCount()
+    {
+        long count = 0L;
+        for (int i=0; i < BUCKETS; i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    /** The total of the values that have been recorded. */
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+    /** The average value, or zero if nothing has been recorded. */
+    public double getMean()
+    {
+        long count = getCount();
+        return count == 0L ? 0.0 : getSum() / (double)count;
+    }
+
+    /** The largest value that has been recorded. */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Estimates a percentile.
+     * @param percentile between 0 and 100
+     * @return the middle of the bucket the percentile falls in, or zero if nothing has been recorded
+     */
+    public long getPercentile(double percentile)
+    {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0L;
+        for (int i=0; i < BUCKETS; i++)
+            {
+                snapshot[i] = counts.get(i);
+                count += snapshot[i];
+            }
+        if ( count == 0L )
+            return 0L;
+        long rank = (long)Math.ceil(count * Math.min(100.0, Math.max(0.0, percentile)) / 100.0);
+        long seen = 0L;
+        for (int i=0; i < BUCKETS; i++)
+            {
+                seen += snapshot[i];
+                if ( seen >= Math.max(1L, rank) )
+                    return Math.min(getMax(), middle(i));
+            }
+        return getMax();
+    }
+
+    /** Finds the bucket for a value. */
+    private static int bucket(long value)
+    {
+        if ( value < SUB_BUCKETS )
+            return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    /** The middle of the range of values in a bucket. */
+    private static long middle(int bucket)
+    {
+        if ( bucket < SUB_BUCKETS )
+            return bucket;
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long lower = (long)(SUB_BUCKETS + sub) << shift;
+        return lower + ((1L << shift) >>> 1);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("count=%d mean=%.1f p50=%d p99=%d max=%d", getCount(), getMean(), getPercentile(50.0), getPercentile(99.0), getMax());
+    }
+}
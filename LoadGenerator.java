@@ -0,0 +1,580 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.google.common.collect.*;
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.session.IoSessionInitializer;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+
+/**
+ * Measures how much load one Server can take.  Runs a real Server and hundreds of simulated
+ * clients that talk to it over TCP, either all in one JVM or, to keep the clients' CPU out of
+ * the server's numbers, with mode=server in one JVM and mode=clients in one or more others.
+ * A simulated client is only a connection: it acts out each LoadWorkUnit by waiting for the
+ * unit's duration on a shared timer and then sending back a result, so one JVM can play
+ * hundreds of clients.  The server keeps a fixed backlog of units by submitting a new one
+ * whenever one finishes.  See LoadProfile for the options.  When the clients are in other JVMs,
+ * give the server a longer duration so that it outlasts their measurements.
+ *
+ * Every interval, a line is printed with the throughput, dispatch latency, CPU, and heap, and a
+ * summary follows the measurement.  Dispatch latency is the time from a simulated client sending
+ * back a result to the server's Acknowledgement arriving.  The server sends the acknowledgement
+ * while handling the result, just before it refills the slot the result freed, so this is how
+ * long a client waits for the server to turn a finished unit around.
+ * If Settings.USE_RESULT_STORE is on, ResultStore does not reclaim space, so long runs with large
+ * results use a lot of disk.
+ */
+public class LoadGenerator implements Singleton
+{
+    /** Dispatch latency in microseconds since the start. */
+    private static final Histogram DISPATCH = Metrics.histogram("load.dispatch");
+
+    /** Dispatch latency since the last progress line. */
+    private static final AtomicReference<Histogram> INTERVAL_DISPATCH = new AtomicReference<>(new Histogram());
+
+    /** Dispatch latency since the warmup ended, or null during the warmup. */
+    private static final AtomicReference<Histogram> MEASURED_DISPATCH = new AtomicReference<>();
+
+    /** How many units the server has seen finish, successfully or not. */
+    private static final LongAdder FINISHED = Metrics.counter("load.finished");
+
+    /** How many units the server has seen fail. */
+    private static final LongAdder FAILED = Metrics.counter("load.failed");
+
+    /** How many results the simulated clients have sent. */
+    private static final LongAdder RETURNED = Metrics.counter("load.returned");
+
+    /** How many times a simulated client has dropped its connection and reconnected. */
+    private static final LongAdder RECONNECTS = Metrics.counter("load.reconnects");
+
+    /** Acts out units, sends heartbeats, and reconnects clients. */
+    private static final ScheduledExecutorService TIMER = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "LoadTimer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** The current connection of each simulated client, by name. */
+    private static final ConcurrentMap<String,SimulatedClient> CLIENTS = new ConcurrentHashMap<>();
+
+    /** The session attribute that holds the SimulatedClient. */
+    private static final String CLIENT_ATTRIBUTE = "simulatedClient";
+
+    /** Not instantiable. */
+    private LoadGenerator()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /**
+     * One connection of a simulated client.  Units beyond its thread count wait in a local queue,
+     * as they would in GeneralThreadService.  When the client reconnects, a new SimulatedClient
+     * with the same name takes its place and anything still pending on the old one is dropped,
+     * since the server requeues it.
+     */
+    private static class SimulatedClient
+    {
+        /** The client's name. */
+        public final String name;
+
+        /** How many units the client runs at once. */
+        public final int threads;
+
+        /** The connection, once it is open. */
+        private volatile IoSession session;
+
+        /** Units that have arrived but are waiting for a thread.  Guarded by this. */
+        private final Deque<WorkEnvelope> waiting = new ArrayDeque<>();
+
+        /** How many units are running.  Guarded by this. */
+        private int busy;
+
+        /** The serverIDs of the running units, for heartbeats. */
+        private final Set<Long> running = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+
+        /** When each unacknowledged result was sent, from System.nanoTime, by serverID. */
+        private final ConcurrentMap<Long,Long> sent = new ConcurrentHashMap<>();
+
+        public SimulatedClient(String name, int threads)
+        {
+            this.name = name;
+            this.threads = threads;
+        }
+
+        /**
+         * Opens the connection and waits for it.
+         * @param connector the connector all simulated clients share
+         * @param address where the server is
+         * @return true if the connection was opened
+         */
+        public boolean connect(NioSocketConnector connector, InetSocketAddress address)
+        {
+            ConnectFuture future = connector.connect(address, new IoSessionInitializer<ConnectFuture>()
+                {
+                    public void initializeSession(IoSession newSession, ConnectFuture future)
+                    {
+                        newSession.setAttribute(CLIENT_ATTRIBUTE, SimulatedClient.this);
+                    }
+                });
+            future.awaitUninterruptibly();
+            if ( !future.isConnected() )
+                return false;
+            session = future.getSession();
+            return true;
+        }
+
+        /** Closes the connection.  The server requeues whatever was out on it. */
+        public void close()
+        {
+            IoSession s = session;
+            if ( s != null )
+                s.close(true);
+        }
+
+        /** Whether the connection is open. */
+        public boolean isConnected()
+        {
+            IoSession s = session;
+            return s != null && s.isConnected();
+        }
+
+        /** Records how long the server took to acknowledge some results. */
+        public void acknowledged(Acknowledgement acknowledgement)
+        {
+            for (Long serverID : acknowledgement.serverIDs)
+                {
+                    Long start = sent.remove(serverID);
+                    if ( start == null )
+                        continue;
+                    long micros = Metrics.microsSince(start);
+                    DISPATCH.record(micros);
+                    INTERVAL_DISPATCH.get().record(micros);
+                    Histogram measured = MEASURED_DISPATCH.get();
+                    if ( measured != null )
+                        measured.record(micros);
+                }
+        }
+
+        /** Accepts a unit from the server, starting it if there is a free thread. */
+        public void arrived(WorkEnvelope envelope)
+        {
+            synchronized (this)
+                {
+                    if ( busy >= threads )
+                        {
+                            waiting.add(envelope);
+                            return;
+                        }
+                    busy++;
+                }
+            start(envelope);
+        }
+
+        /** Starts the timer for a unit. */
+        private void start(final WorkEnvelope envelope)
+        {
+            long duration = envelope.workUnit instanceof LoadWorkUnit ? ((LoadWorkUnit)envelope.workUnit).duration : 0L;
+            running.add(envelope.serverID);
+            TIMER.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        finish(envelope);
+                    }
+                }, duration, TimeUnit.MICROSECONDS);
+        }
+
+        /** Sends back the result of a unit whose time is up and starts the next one. */
+        private void finish(WorkEnvelope envelope)
+        {
+            IoSession s = session;
+            if ( s == null || !s.isConnected() )
+                return;
+            running.remove(envelope.serverID);
+            ResultEnvelope resultEnvelope = null;
+            if ( !(envelope.workUnit instanceof LoadWorkUnit) )
+                resultEnvelope = new ResultEnvelope(null, "simulated clients only run LoadWorkUnits", name, envelope.serverID);
+            else
+                {
+                    LoadWorkUnit unit = (LoadWorkUnit)envelope.workUnit;
+                    if ( unit.throwError )
+                        resultEnvelope = new ResultEnvelope(null, "this is a simulated error", name, envelope.serverID);
+                    else
+                        resultEnvelope = new ResultEnvelope(new LoadResult(new byte[unit.resultSize]), null, name, envelope.serverID);
+                }
+            sent.put(envelope.serverID, System.nanoTime());
+            s.write(resultEnvelope);
+            RETURNED.increment();
+
+            WorkEnvelope next = null;
+            synchronized (this)
+                {
+                    next = waiting.poll();
+                    if ( next == null )
+                        busy--;
+                }
+            if ( next != null )
+                start(next);
+        }
+
+        /** Tells the server which units are running. */
+        public void heartbeat()
+        {
+            IoSession s = session;
+            if ( s != null && s.isConnected() )
+                s.write(new Heartbeat(ImmutableList.copyOf(running)));
+        }
+    }
+
+    /** Handles the connections of all the simulated clients. */
+    private static class SimulatedClientHandler extends IoHandlerAdapter
+    {
+        public void sessionCreated(IoSession session)
+        {
+            SimulatedClient client = (SimulatedClient)session.getAttribute(CLIENT_ATTRIBUTE);
+            // ask for acknowledgements, since they are how dispatch latency is measured
+            session.write(new ClientInfo(client.name, client.threads, client.threads, 0L, true));
+        }
+
+        public void messageReceived(IoSession session, Object message)
+        {
+            SimulatedClient client = (SimulatedClient)session.getAttribute(CLIENT_ATTRIBUTE);
+            if ( message instanceof WorkEnvelope )
+                client.arrived((WorkEnvelope)message);
+            else if ( message instanceof WorkBatch )
+                {
+                    for (WorkEnvelope envelope : ((WorkBatch)message).envelopes)
+                        client.arrived(envelope);
+                }
+            else if ( message instanceof Acknowledgement )
+                client.acknowledged((Acknowledgement)message);
+            else if ( !(message instanceof String) )
+                throw new IllegalArgumentException("unexpected object type");
+        }
+
+        public void exceptionCaught(IoSession session, Throwable cause)
+        {
+            System.out.println(session.getRemoteAddress() + ":[" + cause.getMessage() + "]");
+            session.close(true);
+        }
+    }
+
+    /** Starts the server and fills the database with the backlog. */
+    private static void startServer(final LoadProfile profile)
+    {
+        // keep the backlog constant by replacing every unit that finishes
+        WorkUnitDatabase.addListener(new CompletionListener()
+            {
+                public void unitFinished(ResultEnvelope envelope)
+                {
+                    FINISHED.increment();
+                    if ( envelope.errorMessage != null )
+                        FAILED.increment();
+                    WorkUnitDatabase.submit(new WorkEnvelope(profile.newUnit()));
+                }
+            });
+        for (int i=0; i < profile.backlog; i++)
+            WorkUnitDatabase.submit(new WorkEnvelope(profile.newUnit()));
+        Server.start(profile.port);
+    }
+
+    /** Connects the simulated clients and starts their heartbeats and churn. */
+    private static void startClients(final LoadProfile profile)
+    {
+        final NioSocketConnector connector = new NioSocketConnector();
+        connector.setConnectTimeoutMillis(3000);
+        connector.getFilterChain().addLast("codec", new ProtocolCodecFilter(BinaryCodecFactory.create()));
+        connector.setHandler(new SimulatedClientHandler());
+        final InetSocketAddress address = new InetSocketAddress(profile.host, profile.port);
+        for (int i=0; i < profile.clients; i++)
+            {
+                SimulatedClient client = new SimulatedClient(String.format("load%04d", i), profile.threads);
+                if ( !client.connect(connector, address) )
+                    throw new IllegalArgumentException("unable to connect to " + address);
+                CLIENTS.put(client.name, client);
+            }
+
+        TIMER.scheduleAtFixedRate(new Runnable()
+            {
+                public void run()
+                {
+                    for (SimulatedClient client : CLIENTS.values())
+                        client.heartbeat();
+                }
+            }, Settings.HEARTBEAT_INTERVAL, Settings.HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+
+        if ( profile.churn > 0.0 && profile.clients > 0 )
+            {
+                final List<String> names = ImmutableList.copyOf(CLIENTS.keySet());
+                long period = (long)(1.0E6 / profile.churn);
+                TIMER.scheduleAtFixedRate(new Runnable()
+                    {
+                        public void run()
+                        {
+                            // drop a random client and bring it back under the same name, as if it had restarted
+                            String name = names.get(ThreadLocalRandom.current().nextInt(names.size()));
+                            CLIENTS.get(name).close();
+                            SimulatedClient client = new SimulatedClient(name, profile.threads);
+                            if ( client.connect(connector, address) )
+                                {
+                                    CLIENTS.put(name, client);
+                                    RECONNECTS.increment();
+                                }
+                        }
+                    }, period, period, TimeUnit.MICROSECONDS);
+            }
+    }
+
+    /** Counters and resource usage at one moment. */
+    private static class Sample implements Immutable
+    {
+        /** When the sample was taken, from System.nanoTime. */
+        public final long time = System.nanoTime();
+
+        /** Units the server has seen finish. */
+        public final long finished = FINISHED.sum();
+
+        /** Units the server has seen fail. */
+        public final long failed = FAILED.sum();
+
+        /** Results the simulated clients have sent. */
+        public final long returned = RETURNED.sum();
+
+        /** CPU time this process has used in nanoseconds, or -1 if the JVM cannot tell. */
+        public final long cpu = cpuTime();
+
+        /** How many garbage collections there have been. */
+        public final long gcCount;
+
+        /** How long garbage collection has taken in milliseconds. */
+        public final long gcTime;
+
+        public Sample()
+        {
+            long count = 0L;
+            long millis = 0L;
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans())
+                {
+                    count += Math.max(0L, bean.getCollectionCount());
+                    millis += Math.max(0L, bean.getCollectionTime());
+                }
+            gcCount = count;
+            gcTime = millis;
+        }
+
+        /** Reads the CPU time of this process. */
+        private static long cpuTime()
+        {
+            java.lang.management.OperatingSystemMXBean bean = ManagementFactory.getOperatingSystemMXBean();
+            if ( bean instanceof com.sun.management.OperatingSystemMXBean )
+                return ((com.sun.management.OperatingSystemMXBean)bean).getProcessCpuTime();
+            return -1L;
+        }
+
+        /** How many seconds passed between an earlier sample and this one. */
+        public double secondsSince(Sample earlier)
+        {
+            return (time - earlier.time) * 1.0E-9;
+        }
+
+        /** How many units finished per second since an earlier sample, counted at the server if it is in this JVM. */
+        public double throughputSince(Sample earlier, LoadProfile profile)
+        {
+            long units = profile.mode == LoadProfile.Mode.CLIENTS ? returned - earlier.returned : finished - earlier.finished;
+            return units / secondsSince(earlier);
+        }
+
+        /** How many cores this process kept busy on average since an earlier sample, or NaN if unknown. */
+        public double coresSince(Sample earlier)
+        {
+            if ( cpu < 0L || earlier.cpu < 0L )
+                return Double.NaN;
+            return (cpu - earlier.cpu) / (double)(time - earlier.time);
+        }
+    }
+
+    /** How much of the heap is in use in MB. */
+    private static long heapUsed()
+    {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() / (1024*1024);
+    }
+
+    /**
+     * Registers the binary serializers for LoadWorkUnit and LoadResult.  Both the server and the
+     * simulated clients run in LoadGenerator, so this is done once at startup in either mode.
+     */
+    private static void registerSerializers()
+    {
+        PayloadSerializers.register(3, LoadWorkUnit.class, new PayloadSerializer<LoadWorkUnit>()
+            {
+                public void write(LoadWorkUnit unit, DataOutput out) throws IOException
+                {
+                    out.writeLong(unit.duration);
+                    out.writeBoolean(unit.throwError);
+                    out.writeInt(unit.resultSize);
+                    out.writeInt(unit.payload.length);
+                    out.write(unit.payload);
+                }
+
+                public LoadWorkUnit read(DataInput in) throws IOException
+                {
+                    long duration = in.readLong();
+                    boolean throwError = in.readBoolean();
+                    int resultSize = in.readInt();
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    return new LoadWorkUnit(duration, throwError, payload, resultSize);
+                }
+            });
+        PayloadSerializers.register(4, LoadResult.class, new PayloadSerializer<LoadResult>()
+            {
+                public void write(LoadResult result, DataOutput out) throws IOException
+                {
+                    out.writeInt(result.payload.length);
+                    out.write(result.payload);
+                }
+
+                public LoadResult read(DataInput in) throws IOException
+                {
+                    byte[] payload = new byte[in.readInt()];
+                    in.readFully(payload);
+                    return new LoadResult(payload);
+                }
+            });
+    }
+
+    /**
+     * Sends a LoadWorkUnit and a LoadResult through PayloadSerializers and checks that they come
+     * back the same and were written with their own tags rather than Java serialization.
+     * @throws IllegalArgumentException if either does not survive the round trip
+     */
+    private static void checkSerializers() throws IOException
+    {
+        byte[] payload = new byte[100];
+        new Random(1L).nextBytes(payload);
+        LoadWorkUnit unit = new LoadWorkUnit(12345L, true, payload, 678);
+        byte[] bytes = PayloadSerializers.toBytes(unit);
+        LoadWorkUnit unitCopy = (LoadWorkUnit)PayloadSerializers.fromBytes(bytes);
+        if ( bytes[0] != 3 || unitCopy.duration != unit.duration || unitCopy.throwError != unit.throwError ||
+             unitCopy.resultSize != unit.resultSize || !Arrays.equals(unitCopy.payload, unit.payload) )
+            throw new IllegalArgumentException("LoadWorkUnit did not survive a round trip through PayloadSerializers");
+
+        LoadResult result = new LoadResult(payload);
+        bytes = PayloadSerializers.toBytes(result);
+        LoadResult resultCopy = (LoadResult)PayloadSerializers.fromBytes(bytes);
+        if ( bytes[0] != 4 || !Arrays.equals(resultCopy.payload, result.payload) )
+            throw new IllegalArgumentException("LoadResult did not survive a round trip through PayloadSerializers");
+    }
+
+    /** Runs a load test.  See LoadProfile for the options. */
+    public static void main(String[] args) throws Exception
+    {
+        LoadProfile profile = null;
+        try
+            {
+                profile = new LoadProfile(args);
+            }
+        catch (IllegalArgumentException e)
+            {
+                System.out.println(e.getMessage());
+                System.out.print(LoadProfile.usage());
+                System.exit(1);
+            }
+        registerSerializers();
+        checkSerializers();
+
+        // the server and clients log every unit, which would bury the report
+        PrintStream out = System.out;
+        PrintStream log = null;
+        if ( profile.log == null )
+            log = new PrintStream(new OutputStream() { public void write(int b) {} });
+        else
+            log = new PrintStream(new BufferedOutputStream(new FileOutputStream(profile.log)));
+        System.setOut(log);
+
+        out.printf("[ %s ] Load test with %s, %d processors, %,d MB heap.\n", new Date().toString(), profile,
+                   Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() / (1024*1024));
+        if ( profile.mode != LoadProfile.Mode.CLIENTS )
+            startServer(profile);
+        if ( profile.mode != LoadProfile.Mode.SERVER )
+            startClients(profile);
+
+        // report on progress until the measurement is over
+        boolean server = profile.mode != LoadProfile.Mode.CLIENTS;
+        Sample start = new Sample();
+        Sample previous = start;
+        Sample measureStart = null;
+        long maxHeap = 0L;
+        long end = start.time + (profile.warmup + profile.duration) * 1_000_000_000L;
+        while ( true )
+            {
+                long remaining = end - System.nanoTime();
+                Thread.sleep(Math.max(0L, Math.min(profile.interval * 1000L, remaining / 1_000_000L)));
+                if ( server )
+                    WorkUnitDatabase.purge();
+                Sample sample = new Sample();
+                Histogram dispatch = INTERVAL_DISPATCH.getAndSet(new Histogram());
+                long heap = heapUsed();
+                if ( measureStart != null )
+                    maxHeap = Math.max(maxHeap, heap);
+
+                StringBuilder line = new StringBuilder();
+                line.append(String.format("[ %6.1f s ] %,9.0f units/s", sample.secondsSince(start), sample.throughputSince(previous, profile)));
+                if ( server )
+                    line.append(String.format(", %,d queued, %,d out", WorkUnitDatabase.count(WorkUnitDatabase.Status.SUBMITTED),
+                                              WorkUnitDatabase.count(WorkUnitDatabase.Status.SENT_OUT)));
+                if ( profile.mode != LoadProfile.Mode.SERVER )
+                    line.append(String.format(", dispatch p50 %,d us p99 %,d us", dispatch.getPercentile(50.0), dispatch.getPercentile(99.0)));
+                line.append(String.format(", %.2f cores, %,d MB heap", sample.coresSince(previous), heap));
+                if ( measureStart == null )
+                    line.append(" (warmup)");
+                out.println(line);
+                previous = sample;
+
+                if ( measureStart == null && sample.time - start.time >= profile.warmup * 1_000_000_000L )
+                    {
+                        measureStart = sample;
+                        MEASURED_DISPATCH.set(new Histogram());
+                    }
+                if ( sample.time >= end )
+                    break;
+            }
+
+        // summarize the measurement
+        Sample last = previous;
+        out.printf("[ %s ] Measured for %.1f s:\n", new Date().toString(), last.secondsSince(measureStart));
+        out.printf("  throughput     %,.0f units/s\n", last.throughputSince(measureStart, profile));
+        if ( server )
+            {
+                long finished = last.finished - measureStart.finished;
+                out.printf("  failed         %.2f%%\n", finished == 0L ? 0.0 : 100.0 * (last.failed - measureStart.failed) / finished);
+                out.printf("  server.handle  %s us\n", Metrics.histogram("server.handle"));
+                out.printf("  queue wait     %s us\n", Metrics.histogram("server.queue.wait"));
+            }
+        if ( profile.mode != LoadProfile.Mode.SERVER )
+            {
+                Histogram measured = MEASURED_DISPATCH.get();
+                out.printf("  dispatch       p50 %,d us, p90 %,d us, p99 %,d us, p99.9 %,d us, max %,d us (%,d units)\n",
+                           measured.getPercentile(50.0), measured.getPercentile(90.0), measured.getPercentile(99.0),
+                           measured.getPercentile(99.9), measured.getMax(), measured.getCount());
+                out.printf("  reconnects     %,d\n", RECONNECTS.sum());
+            }
+        double cores = last.coresSince(measureStart);
+        out.printf("  cpu            %.2f cores (%.0f%% of %d)%s\n", cores, 100.0 * cores / Runtime.getRuntime().availableProcessors(),
+                   Runtime.getRuntime().availableProcessors(), profile.mode == LoadProfile.Mode.ALL ? ", including the simulated clients" : "");
+        out.printf("  heap           %,d MB at most\n", maxHeap);
+        out.printf("  gc             %,d collections, %,d ms\n", last.gcCount - measureStart.gcCount, last.gcTime - measureStart.gcTime);
+        log.flush();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,197 @@
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Describes a load test for LoadGenerator: what runs where, what the work looks like, and how
+ * long to measure for.  Options are given on the command line as key=value pairs; anything that
+ * is left out gets the default listed in usage().
+ */
+public class LoadProfile implements Immutable
+{
+    /** Which parts of the test this JVM runs. */
+    public enum Mode
+    {
+        /** The server and the simulated clients. */
+        ALL,
+
+        /** Only the server, which simulated clients in other JVMs connect to. */
+        SERVER,
+
+        /** Only the simulated clients, which connect to a server in another JVM. */
+        CLIENTS;
+    }
+
+    /** How unit durations are spread around the mean. */
+    public enum Distribution
+    {
+        /** Every unit takes exactly the mean. */
+        FIXED,
+
+        /** Uniform between zero and twice the mean. */
+        UNIFORM,
+
+        /** Exponential, so most units are short and a few are long. */
+        EXPONENTIAL,
+
+        /** Log-normal with a shape of LOGNORMAL_SIGMA, which has a longer tail than EXPONENTIAL. */
+        LOGNORMAL;
+    }
+
+    /** The shape parameter of the LOGNORMAL distribution. */
+    public static final double LOGNORMAL_SIGMA = 1.0;
+
+    /** Which parts of the test this JVM runs. */
+    public final Mode mode;
+
+    /** Where the server is, for CLIENTS mode. */
+    public final String host;
+
+    /** The port the server listens on. */
+    public final int port;
+
+    /** How many simulated clients to connect. */
+    public final int clients;
+
+    /** How many units each simulated client runs at once. */
+    public final int threads;
+
+    /** The mean unit duration in milliseconds. */
+    public final double time;
+
+    /** How unit durations are spread around the mean. */
+    public final Distribution distribution;
+
+    /** How big each unit's payload is in bytes. */
+    public final int workSize;
+
+    /** How big each result's payload is in bytes. */
+    public final int resultSize;
+
+    /** The fraction of units that fail. */
+    public final double failureRate;
+
+    /** How many simulated clients drop their connections and reconnect per second, across all clients. */
+    public final double churn;
+
+    /** How many unfinished units the server keeps in the database.  A new unit is submitted whenever one finishes. */
+    public final int backlog;
+
+    /** How long to measure for in seconds, after the warmup. */
+    public final int duration;
+
+    /** How long to run before measuring in seconds. */
+    public final int warmup;
+
+    /** How often to print a progress line in seconds. */
+    public final int interval;
+
+    /** Where the server and clients' own log output goes, or null to discard it. */
+    public final String log;
+
+    /**
+     * Reads a profile from key=value options.
+     * @param args the options
+     * @throws IllegalArgumentException if an option is unknown or its value is out of range
+     */
+    public LoadProfile(String... args)
+    {
+        Map<String,String> options = new HashMap<>();
+        for (String arg : args)
+            {
+                int split = arg.indexOf('=');
+                if ( split < 1 )
+                    throw new IllegalArgumentException("expected key=value but got " + arg);
+                options.put(arg.substring(0, split).toLowerCase(), arg.substring(split+1));
+            }
+
+        mode = Mode.valueOf(take(options, "mode", "all").toUpperCase());
+        host = take(options, "host", "127.0.0.1");
+        port = Integer.parseInt(take(options, "port", String.valueOf(Settings.LISTENING_PORT)));
+        clients = Integer.parseInt(take(options, "clients", "200"));
+        threads = Integer.parseInt(take(options, "threads", "4"));
+        time = Double.parseDouble(take(options, "time", "50"));
+        distribution = Distribution.valueOf(take(options, "distribution", "exponential").toUpperCase());
+        workSize = Integer.parseInt(take(options, "work", "256"));
+        resultSize = Integer.parseInt(take(options, "result", "256"));
+        failureRate = Double.parseDouble(take(options, "failures", "0.01"));
+        churn = Double.parseDouble(take(options, "churn", "0.5"));
+        backlog = Integer.parseInt(take(options, "backlog", "10000"));
+        duration = Integer.parseInt(take(options, "duration", "60"));
+        warmup = Integer.parseInt(take(options, "warmup", "10"));
+        interval = Integer.parseInt(take(options, "interval", "5"));
+        log = take(options, "log", null);
+        if ( options.size() > 0 )
+            throw new IllegalArgumentException("unknown options " + options.keySet());
+
+        if ( clients < 0 || threads < 1 || time < 0.0 || workSize < 0 || resultSize < 0 || backlog < 1 )
+            throw new IllegalArgumentException("invalid size, count, or time");
+        if ( failureRate < 0.0 || failureRate > 1.0 || churn < 0.0 )
+            throw new IllegalArgumentException("invalid failure rate or churn");
+        if ( duration < 1 || warmup < 0 || interval < 1 )
+            throw new IllegalArgumentException("invalid duration, warmup, or interval");
+    }
+
+    /** Removes an option, returning its value or the default. */
+    private static String take(Map<String,String> options, String key, String defaultValue)
+    {
+        String value = options.remove(key);
+        return value == null ? defaultValue : value;
+    }
+
+    /** Describes the options and their defaults. */
+    public static String usage()
+    {
+        return "options (key=value):\n" +
+               "  mode=all|server|clients    what to run in this JVM (all)\n" +
+               "  host=127.0.0.1             where the server is in clients mode\n" +
+               "  port=" + Settings.LISTENING_PORT + "                  the server's port\n" +
+               "  clients=200                simulated clients\n" +
+               "  threads=4                  units each client runs at once\n" +
+               "  time=50                    mean unit duration in ms\n" +
+               "  distribution=exponential   fixed|uniform|exponential|lognormal\n" +
+               "  work=256                   unit payload in bytes\n" +
+               "  result=256                 result payload in bytes\n" +
+               "  failures=0.01              fraction of units that fail\n" +
+               "  churn=0.5                  client reconnects per second\n" +
+               "  backlog=10000              unfinished units kept in the database\n" +
+               "  duration=60                seconds to measure\n" +
+               "  warmup=10                  seconds before measuring\n" +
+               "  interval=5                 seconds between progress lines\n" +
+               "  log=FILE                   keep the server and client log (discarded)\n";
+    }
+
+    /**
+     * Makes a unit with a random duration and outcome.
+     * @return the unit
+     */
+    public LoadWorkUnit newUnit()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double micros = time * 1000.0;
+        switch (distribution)
+            {
+                case UNIFORM:
+                    micros = 2.0 * micros * random.nextDouble();
+                    break;
+                case EXPONENTIAL:
+                    micros = -micros * Math.log(1.0 - random.nextDouble());
+                    break;
+                case LOGNORMAL:
+                    double mu = Math.log(Math.max(micros, 1.0)) - LOGNORMAL_SIGMA * LOGNORMAL_SIGMA / 2.0;
+                    micros = Math.exp(mu + LOGNORMAL_SIGMA * random.nextGaussian());
+                    break;
+                default:
+                    break;
+            }
+        boolean fail = random.nextDouble() < failureRate;
+        return new LoadWorkUnit((long)micros, fail, new byte[workSize], resultSize);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("mode=%s clients=%d threads=%d time=%.1fms distribution=%s work=%dB result=%dB failures=%.3f churn=%.2f/s backlog=%d",
+                             mode.name().toLowerCase(), clients, threads, time, distribution.name().toLowerCase(), workSize, resultSize,
+                             failureRate, churn, backlog);
+    }
+}
@@ -0,0 +1,18 @@
+import java.io.*;
+
+/** The result of a LoadWorkUnit.  It holds nothing but a payload to make it bigger on the wire. */
+public class LoadResult implements Immutable, Serializable, Result
+{
+    /** For serialization. */
+    public static final long serialVersionUID = 1L;
+
+    /** Filler. */
+    public final byte[] payload;
+
+    public LoadResult(byte[] payload)
+    {
+        if ( payload == null )
+            throw new NullPointerException("null payload");
+        this.payload = payload;
+    }
+}
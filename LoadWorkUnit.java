@@ -0,0 +1,51 @@
+import java.io.*;
+
+/**
+ * A WorkUnit for load testing.  It carries a payload of a chosen size, waits for a chosen time,
+ * and either fails or returns a LoadResult of a chosen size.  Everything random about it is
+ * decided when it is created, so a simulated client in LoadGenerator can act it out without
+ * running it.
+ */
+public class LoadWorkUnit implements Immutable, WorkUnit, Serializable
+{
+    /** For serialization. */
+    public static final long serialVersionUID = 1L;
+
+    /** How long the unit takes in microseconds. */
+    public final long duration;
+
+    /** If true, this unit will error out. */
+    public final boolean throwError;
+
+    /** Data that goes along with the unit to make it bigger on the wire. */
+    public final byte[] payload;
+
+    /** How big the result's payload is in bytes. */
+    public final int resultSize;
+
+    public LoadWorkUnit(long duration, boolean throwError, byte[] payload, int resultSize)
+    {
+        if ( payload == null )
+            throw new NullPointerException("null payload");
+        if ( duration < 0L || resultSize < 0 )
+            throw new IllegalArgumentException("negative duration or result size");
+        this.duration = duration;
+        this.throwError = throwError;
+        this.payload = payload;
+        this.resultSize = resultSize;
+    }
+
+    public LoadResult call()
+    {
+        try
+            {
+                Thread.sleep(duration / 1000L, (int)(duration % 1000L) * 1000);
+            }
+        catch (InterruptedException e)
+            {
+            }
+        if ( throwError )
+            throw new IllegalArgumentException("this is a simulated error");
+        return new LoadResult(new byte[resultSize]);
+    }
+}
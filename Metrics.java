@@ -0,0 +1,307 @@
+import java.io.*;
+import java.lang.management.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import com.google.common.base.Supplier;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.future.WriteFuture;
+
+/**
+ * Counters, gauges, and latency histograms for the server and clients.  Metrics are created on
+ * first use and live for the life of the process, so callers on hot paths should look them up
+ * once and keep the reference.  Latencies are recorded in microseconds.  Once start is called,
+ * every metric is visible over JMX as an attribute of the "distributed:type=Metrics" MBean, and
+ * a tab-separated dump is written to Settings.METRICS_DIRECTORY every Settings.METRICS_INTERVAL
+ * seconds.
+ */
+public class Metrics implements Singleton
+{
+    /** Counters by name. */
+    private static final ConcurrentMap<String,LongAdder> COUNTERS = new ConcurrentSkipListMap<>();
+
+    /** Histograms by name. */
+    private static final ConcurrentMap<String,Histogram> HISTOGRAMS = new ConcurrentSkipListMap<>();
+
+    /** Gauges by name. */
+    private static final ConcurrentMap<String,Supplier<? extends Number>> GAUGES = new ConcurrentSkipListMap<>();
+
+    /** Whether start has been called. */
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+
+    /** Not instantiable. */
+    private Metrics()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /**
+     * Gets a counter, creating it if necessary.
+     * @param name the name of the counter
+     * @return the counter
+     */
+    public static LongAdder counter(String name)
+    {
+        LongAdder counter = COUNTERS.get(name);
+        if ( counter == null )
+            {
+                LongAdder newCounter = new LongAdder();
+                counter = COUNTERS.putIfAbsent(name, newCounter);
+                if ( counter == null )
+                    counter = newCounter;
+            }
+        return counter;
+    }
+
+    /**
+     * Gets a histogram, creating it if necessary.
+     * @param name the name of the histogram
+     * @return the histogram
+     */
+    public static Histogram histogram(String name)
+    {
+        Histogram histogram = HISTOGRAMS.get(name);
+        if ( histogram == null )
+            {
+                Histogram newHistogram = new Histogram();
+                histogram = HISTOGRAMS.putIfAbsent(name, newHistogram);
+                if ( histogram == null )
+                    histogram = newHistogram;
+            }
+        return histogram;
+    }
+
+    /**
+     * Adds a gauge, which is read whenever the metrics are looked at.  Replaces any gauge with the same name.
+     * @param name the name of the gauge
+     * @param gauge reads the current value
+     */
+    public static void gauge(String name, Supplier<? extends Number> gauge)
+    {
+        GAUGES.put(name, gauge);
+    }
+
+    /** Converts an interval measured with System.nanoTime into microseconds. */
+    public static long microsSince(long startNanos)
+    {
+        return (System.nanoTime() - startNanos) / 1000L;
+    }
+
+    /**
+     * Records how long a network write takes to reach the socket once it finishes.
+     * @param future the write
+     * @param histogram where to record the time
+     */
+    public static void timeWrite(WriteFuture future, Histogram histogram)
+    {
+        timeWrite(future, histogram, System.nanoTime());
+    }
+
+    /**
+     * Records how long it took for something to reach the socket once the write finishes.
+     * @param future the write
+     * @param histogram where to record the time
+     * @param start when to measure from, from System.nanoTime
+     */
+    public static void timeWrite(WriteFuture future, final Histogram histogram, final long start)
+    {
+        future.addListener(new IoFutureListener<WriteFuture>()
+            {
+                public void operationComplete(WriteFuture f)
+                {
+                    histogram.record(microsSince(start));
+                }
+            });
+    }
+
+    /** Registers the MBean and starts writing dumps.  Does nothing after the first call. */
+    public static void start()
+    {
+        if ( !STARTED.compareAndSet(false, true) )
+            return;
+        try
+            {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("distributed:type=Metrics"));
+            }
+        catch (JMException e)
+            {
+                System.out.println("Unable to register metrics with JMX:");
+                e.printStackTrace();
+            }
+        if ( Settings.METRICS_INTERVAL <= 0 )
+            return;
+
+        // name the dump after the main class and process so servers and clients sharing a directory do not collide
+        String process = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        final File file = new File(Settings.METRICS_DIRECTORY, String.format("%s-%s-%s.tsv", Settings.MAIN_CLASS, Settings.HOSTNAME, process));
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "Metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        timer.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                        {
+                            dump(file);
+                        }
+                    catch (IOException e)
+                        {
+                            System.out.printf("Unable to write metrics to %s:\n", file);
+                            e.printStackTrace();
+                        }
+                }
+            }, Settings.METRICS_INTERVAL, Settings.METRICS_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes every metric to a file, replacing it atomically.  There is one line per metric with the
+     * columns name, type, count, sum, mean, p50, p90, p99, and max.  Counters and gauges only fill in count.
+     * @param file where to write
+     */
+    public static void dump(File file) throws IOException
+    {
+        File directory = file.getParentFile();
+        if ( directory != null && !directory.isDirectory() && !directory.mkdirs() )
+            throw new IOException("unable to create " + directory);
+        File temp = new File(file.getPath() + ".tmp");
+        try ( PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(temp))) )
+            {
+                out.printf("# %d\n", System.currentTimeMillis());
+                out.println("name\ttype\tcount\tsum\tmean\tp50\tp90\tp99\tmax");
+                for (Map.Entry<String,LongAdder> e : COUNTERS.entrySet())
+                    out.printf("%s\tcounter\t%d\t\t\t\t\t\t\n", e.getKey(), e.getValue().sum());
+                for (String name : GAUGES.keySet())
+                    out.printf("%s\tgauge\t%s\t\t\t\t\t\t\n", name, readGauge(name));
+                for (Map.Entry<String,Histogram> e : HISTOGRAMS.entrySet())
+                    {
+                        Histogram h = e.getValue();
+                        out.printf("%s\thistogram\t%d\t%d\t%.1f\t%d\t%d\t%d\t%d\n", e.getKey(), h.getCount(), h.getSum(), h.getMean(),
+                                   h.getPercentile(50.0), h.getPercentile(90.0), h.getPercentile(99.0), h.getMax());
+                    }
+            }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Reads a gauge, or returns null if it throws. */
+    private static Number readGauge(String name)
+    {
+        Supplier<? extends Number> gauge = GAUGES.get(name);
+        if ( gauge == null )
+            return null;
+        try
+            {
+                return gauge.get();
+            }
+        catch (RuntimeException e)
+            {
+                return null;
+            }
+    }
+
+    /**
+     * Exposes the metrics over JMX.  Counters and gauges are attributes with their own names.
+     * Each histogram is split into attributes named after it with .count, .mean, .p50, .p90,
+     * .p99, and .max added.  The set of attributes grows as metrics are created.
+     */
+    private static class MetricsMBean implements DynamicMBean
+    {
+        /** The histogram statistics that are exposed. */
+        private static final String[] STATISTICS = { "count", "mean", "p50", "p90", "p99", "max" };
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException
+        {
+            LongAdder counter = COUNTERS.get(attribute);
+            if ( counter != null )
+                return counter.sum();
+            if ( GAUGES.containsKey(attribute) )
+                {
+                    Number value = readGauge(attribute);
+                    return value == null ? null : value.doubleValue();
+                }
+            int dot = attribute.lastIndexOf('.');
+            Histogram h = dot < 0 ? null : HISTOGRAMS.get(attribute.substring(0, dot));
+            if ( h != null )
+                {
+                    String statistic = attribute.substring(dot+1);
+                    if ( statistic.equals("count") )
+                        return h.getCount();
+                    else if ( statistic.equals("mean") )
+                        return h.getMean();
+                    else if ( statistic.equals("p50") )
+                        return (double)h.getPercentile(50.0);
+                    else if ( statistic.equals("p90") )
+                        return (double)h.getPercentile(90.0);
+                    else if ( statistic.equals("p99") )
+                        return (double)h.getPercentile(99.0);
+                    else if ( statistic.equals("max") )
+                        return (double)h.getMax();
+                }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes)
+        {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes)
+                {
+                    try
+                        {
+                            list.add(new Attribute(attribute, getAttribute(attribute)));
+                        }
+                    catch (AttributeNotFoundException e)
+                        {
+                        }
+                }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+        {
+            throw new AttributeNotFoundException("metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes)
+        {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+        {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo()
+        {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : COUNTERS.keySet())
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Long", "counter", true, false, false));
+            for (String name : GAUGES.keySet())
+                attributes.add(new MBeanAttributeInfo(name, "java.lang.Double", "gauge", true, false, false));
+            for (String name : HISTOGRAMS.keySet())
+                {
+                    for (String statistic : STATISTICS)
+                        {
+                            String type = statistic.equals("count") ? "java.lang.Long" : "java.lang.Double";
+                            attributes.add(new MBeanAttributeInfo(name + "." + statistic, type, "histogram " + statistic + " in microseconds", true, false, false));
+                        }
+                }
+            return new MBeanInfo(Metrics.class.getName(), "work unit metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+                                 null, null, null);
+        }
+    }
+}
@@ -0,0 +1,379 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Keeps a client's finished results until the server acknowledges them.  Every result is appended
+ * to a file in Settings.OUTBOX_DIRECTORY and forced to disk before it is sent, so a result that
+ * finishes while the connection is down, or before the machine crashes, is not lost: it is sent
+ * again when the client reconnects.  Forcing is a group commit: one thread forces everything that
+ * has been appended so far without holding the lock, and results that finish meanwhile share the
+ * next force.  Acknowledgements are not forced, since losing one only means
+ * the server sees a result twice.  Each client
+ * process locks its own file.  When a client starts, it adopts the results in any file that is
+ * not locked, which were left behind by a client that crashed.
+ */
+public class Outbox implements Singleton
+{
+    /** Record type for a result. */
+    private static final byte RESULT = 1;
+
+    /** Record type for an acknowledgement. */
+    private static final byte ACK = 2;
+
+    /** Results that have not been acknowledged, in the order they finished.  Guarded by PENDING. */
+    private static final Map<Long,ResultEnvelope> PENDING = new LinkedHashMap<>();
+
+    /** The file records are appended to, or null if the outbox is in memory only.  Guarded by PENDING. */
+    private static DataOutputStream FILE;
+
+    /** The channel of the file, which holds the lock and is used to truncate it.  Guarded by PENDING. */
+    private static FileChannel CHANNEL;
+
+    /** The current connection to the server, or null if there is none.  Guarded by PENDING. */
+    private static IoSession SESSION;
+
+    /** How many results have been appended to the file.  Guarded by PENDING. */
+    private static long APPENDED = 0L;
+
+    /** Guards SYNCED and SYNCING, and is notified when a force finishes. */
+    private static final Object SYNC = new Object();
+
+    /** How many of the appended results are known to be on the disk.  Guarded by SYNC. */
+    private static long SYNCED = 0L;
+
+    /** Whether some thread is forcing the file right now.  Guarded by SYNC. */
+    private static boolean SYNCING = false;
+
+    /** Not instantiable. */
+    private Outbox()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /** Static initializer. */
+    static
+    {
+        File directory = new File(Settings.OUTBOX_DIRECTORY);
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+            System.out.printf("Unable to create outbox directory %s, keeping results in memory only.\n", directory);
+        else
+            {
+                try
+                    {
+                        File file = File.createTempFile("outbox-" + Settings.HOSTNAME + "-", ".dat", directory);
+                        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                        CHANNEL = raf.getChannel();
+                        CHANNEL.lock();
+                        FILE = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(CHANNEL)));
+                        adoptOrphans(directory, file);
+                    }
+                catch (IOException e)
+                    {
+                        System.out.println("Unable to create outbox file, keeping results in memory only:");
+                        e.printStackTrace();
+                        FILE = null;
+                    }
+            }
+    }
+
+    /**
+     * Records a result and sends it to the server if there is a connection.
+     * @param envelope the result
+     */
+    public static void send(ResultEnvelope envelope)
+    {
+        IoSession session = null;
+        long sequence = 0L;
+        synchronized (PENDING)
+            {
+                PENDING.put(envelope.serverID, envelope);
+                append(envelope);
+                sequence = APPENDED;
+                session = SESSION;
+            }
+        awaitDurable(sequence);
+        if ( session != null && session.isConnected() )
+            ResultBatcher.send(session, envelope);
+        else
+            EventLog.unit("Holding on to work unit %d until the server is back.", envelope.serverID);
+    }
+
+    /**
+     * Forgets about results the server has recorded.
+     * @param acknowledgement the serverIDs of the results
+     */
+    public static void acknowledge(Acknowledgement acknowledgement)
+    {
+        synchronized (PENDING)
+            {
+                for (Long serverID : acknowledgement.serverIDs)
+                    {
+                        if ( PENDING.remove(serverID) == null || FILE == null )
+                            continue;
+                        try
+                            {
+                                FILE.writeByte(ACK);
+                                FILE.writeLong(serverID);
+                            }
+                        catch (IOException e)
+                            {
+                                fail(e);
+                            }
+                    }
+                flush();
+
+                // start the file over once there is nothing left in it
+                if ( PENDING.size() == 0 && FILE != null )
+                    {
+                        try
+                            {
+                                CHANNEL.truncate(0L);
+                            }
+                        catch (IOException e)
+                            {
+                                fail(e);
+                            }
+                    }
+            }
+    }
+
+    /**
+     * Sets the connection to the server and sends it every result that has not been acknowledged.
+     * @param session the new connection, or null if the connection was lost
+     */
+    public static void setSession(IoSession session)
+    {
+        List<ResultEnvelope> unacknowledged = null;
+        synchronized (PENDING)
+            {
+                SESSION = session;
+                unacknowledged = new ArrayList<>(PENDING.values());
+            }
+        if ( session == null || unacknowledged.size() == 0 )
+            return;
+        EventLog.info("Resending %d results that the server has not acknowledged.", unacknowledged.size());
+        for (int i=0; i < unacknowledged.size(); i += Settings.MAX_RESULT_BATCH_SIZE)
+            {
+                List<ResultEnvelope> chunk = unacknowledged.subList(i, Math.min(unacknowledged.size(), i + Settings.MAX_RESULT_BATCH_SIZE));
+                if ( chunk.size() == 1 )
+                    session.write(chunk.get(0));
+                else
+                    session.write(new ResultBatch(chunk));
+            }
+    }
+
+    /**
+     * Checks whether a result is waiting for an acknowledgement.
+     * @param serverID the unit
+     * @return true if the result is in the outbox
+     */
+    public static boolean contains(long serverID)
+    {
+        synchronized (PENDING)
+            {
+                return PENDING.containsKey(serverID);
+            }
+    }
+
+    /** How many results have not been acknowledged. */
+    public static int size()
+    {
+        synchronized (PENDING)
+            {
+                return PENDING.size();
+            }
+    }
+
+    /** Appends a result to the file.  Guarded by PENDING. */
+    private static void append(ResultEnvelope envelope)
+    {
+        if ( FILE == null )
+            return;
+        try
+            {
+                FILE.writeByte(RESULT);
+                FILE.writeLong(envelope.serverID);
+                if ( envelope.result != null )
+                    {
+                        FILE.writeBoolean(true);
+                        PayloadSerializers.write(envelope.result, FILE);
+                    }
+                else
+                    {
+                        FILE.writeBoolean(false);
+                        byte[] bytes = envelope.errorMessage.getBytes(StandardCharsets.UTF_8);
+                        FILE.writeInt(bytes.length);
+                        FILE.write(bytes);
+                    }
+            }
+        catch (IOException e)
+            {
+                fail(e);
+            }
+        flush();
+        APPENDED++;
+    }
+
+    /**
+     * Waits until the specified number of appended results are on the disk itself, since only
+     * then is a result safe from a machine crash.  If no other thread is forcing the file, this
+     * one does, covering everything appended so far; otherwise it waits for that force and
+     * checks again.
+     * @param sequence the value of APPENDED just after the result was appended
+     */
+    private static void awaitDurable(long sequence)
+    {
+        boolean interrupted = false;
+        synchronized (SYNC)
+            {
+                while ( SYNCED < sequence && SYNCING )
+                    {
+                        try { SYNC.wait(); }
+                        catch (InterruptedException e) { interrupted = true; }
+                    }
+                if ( SYNCED >= sequence )
+                    {
+                        if ( interrupted )
+                            Thread.currentThread().interrupt();
+                        return;
+                    }
+                SYNCING = true;
+            }
+
+        long target = 0L;
+        FileChannel channel = null;
+        synchronized (PENDING)
+            {
+                target = APPENDED;
+                if ( FILE != null )
+                    channel = CHANNEL;
+            }
+        try
+            {
+                if ( channel != null )
+                    channel.force(false);
+            }
+        catch (IOException e)
+            {
+                synchronized (PENDING)
+                    {
+                        fail(e);
+                    }
+            }
+        finally
+            {
+                synchronized (SYNC)
+                    {
+                        SYNCED = Math.max(SYNCED, target);
+                        SYNCING = false;
+                        SYNC.notifyAll();
+                    }
+            }
+        if ( interrupted )
+            Thread.currentThread().interrupt();
+    }
+
+    /** Pushes appended records to the operating system.  Guarded by PENDING. */
+    private static void flush()
+    {
+        if ( FILE == null )
+            return;
+        try
+            {
+                FILE.flush();
+            }
+        catch (IOException e)
+            {
+                fail(e);
+            }
+    }
+
+    /** Gives up on the file after an error.  Guarded by PENDING. */
+    private static void fail(IOException e)
+    {
+        System.out.println("Unable to write outbox file, keeping results in memory only:");
+        e.printStackTrace();
+        FILE = null;
+    }
+
+    /**
+     * Takes over the results in outbox files that no running client holds a lock on.
+     * @param directory where to look
+     * @param ownFile the file of this process, which is skipped
+     */
+    private static void adoptOrphans(File directory, File ownFile)
+    {
+        File[] files = directory.listFiles();
+        if ( files == null )
+            return;
+        for (File file : files)
+            {
+                if ( file.equals(ownFile) || !file.getName().startsWith("outbox-") )
+                    continue;
+                try ( RandomAccessFile raf = new RandomAccessFile(file, "rw") )
+                    {
+                        FileLock lock = raf.getChannel().tryLock();
+                        if ( lock == null )
+                            continue; // another client is using it
+                        Map<Long,ResultEnvelope> results = read(file);
+                        long sequence = 0L;
+                        synchronized (PENDING)
+                            {
+                                for (ResultEnvelope envelope : results.values())
+                                    {
+                                        PENDING.put(envelope.serverID, envelope);
+                                        append(envelope);
+                                    }
+                                sequence = APPENDED;
+                            }
+
+                        // the orphan is deleted below, so the copies have to be on the disk first
+                        awaitDurable(sequence);
+                        if ( results.size() > 0 )
+                            System.out.printf("Adopted %d unacknowledged results from %s.\n", results.size(), file.getName());
+                        file.delete();
+                    }
+                catch (IOException | OverlappingFileLockException e)
+                    {
+                        System.out.printf("Unable to read outbox file %s:\n", file);
+                        e.printStackTrace();
+                    }
+            }
+    }
+
+    /** Reads the results that were never acknowledged.  A truncated record at the end is ignored. */
+    private static Map<Long,ResultEnvelope> read(File file) throws IOException
+    {
+        Map<Long,ResultEnvelope> results = new LinkedHashMap<>();
+        try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))) )
+            {
+                while (true)
+                    {
+                        byte type = in.readByte();
+                        long serverID = in.readLong();
+                        if ( type == ACK )
+                            results.remove(serverID);
+                        else if ( type == RESULT )
+                            {
+                                if ( in.readBoolean() )
+                                    results.put(serverID, new ResultEnvelope((Result)PayloadSerializers.read(in), null, Settings.HOSTNAME, serverID));
+                                else
+                                    {
+                                        byte[] bytes = new byte[in.readInt()];
+                                        in.readFully(bytes);
+                                        results.put(serverID, new ResultEnvelope(null, new String(bytes, StandardCharsets.UTF_8), Settings.HOSTNAME, serverID));
+                                    }
+                            }
+                        else
+                            throw new IOException("unrecognized outbox record type " + type);
+                    }
+            }
+        catch (EOFException e)
+            {
+            }
+        return results;
+    }
+}
@@ -0,0 +1,14 @@
+import java.io.*;
+
+/**
+ * Converts one kind of WorkUnit or Result to and from a compact binary form.
+ * Register implementations with PayloadSerializers.register.
+ */
+public interface PayloadSerializer<T>
+{
+    /** Writes the object. */
+    public void write(T object, DataOutput out) throws IOException;
+
+    /** Reads back an object written by write. */
+    public T read(DataInput in) throws IOException;
+}
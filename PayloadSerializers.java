@@ -0,0 +1,170 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps track of the PayloadSerializers for the WorkUnit and Result classes that have them.
+ * Each payload is written as a one-byte tag followed by the serialized object.  Classes without
+ * a registered serializer fall back to Java serialization.  Both ends of a connection must
+ * register the same classes with the same tags before any work is sent.
+ */
+public class PayloadSerializers implements Singleton
+{
+    /** The tag for objects that are written with Java serialization. */
+    public static final int JAVA_SERIALIZATION = 0;
+
+    /** Maps classes to their serializers. */
+    private static final ConcurrentMap<Class<?>,Registration<?>> BY_CLASS;
+
+    /** Maps tags to their serializers. */
+    private static final ConcurrentMap<Integer,Registration<?>> BY_TAG;
+
+    /** Static initializer. */
+    static
+    {
+        BY_CLASS = new ConcurrentHashMap<>();
+        BY_TAG = new ConcurrentHashMap<>();
+
+        // the built-in test classes
+        register(1, DummyWorkUnit.class, new PayloadSerializer<DummyWorkUnit>()
+            {
+                public void write(DummyWorkUnit unit, DataOutput out) throws IOException
+                {
+                    out.writeBoolean(unit.throwError);
+                }
+
+                public DummyWorkUnit read(DataInput in) throws IOException
+                {
+                    return new DummyWorkUnit(in.readBoolean());
+                }
+            });
+        register(2, DummyResult.class, new PayloadSerializer<DummyResult>()
+            {
+                public void write(DummyResult result, DataOutput out)
+                {
+                }
+
+                public DummyResult read(DataInput in)
+                {
+                    return new DummyResult();
+                }
+            });
+    }
+
+    /** Not instantiable. */
+    private PayloadSerializers()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /**
+     * Registers a serializer.  Only objects of exactly this class will use it.
+     * @param tag a number from 1 to 255 that identifies the class on the wire
+     * @param type the class to serialize
+     * @param serializer how to serialize it
+     */
+    public static <T> void register(int tag, Class<T> type, PayloadSerializer<T> serializer)
+    {
+        if ( tag <= JAVA_SERIALIZATION || tag > 255 )
+            throw new IllegalArgumentException("tag must be between 1 and 255");
+        Registration<T> registration = new Registration<>(tag, type, serializer);
+        if ( BY_TAG.putIfAbsent(tag, registration) != null )
+            throw new IllegalArgumentException("tag " + tag + " is already registered");
+        if ( BY_CLASS.putIfAbsent(type, registration) != null )
+            {
+                BY_TAG.remove(tag);
+                throw new IllegalArgumentException(type.getName() + " is already registered");
+            }
+    }
+
+    /**
+     * Writes a payload.
+     * @param object the WorkUnit or Result to write
+     * @param out where to write it
+     */
+    @SuppressWarnings("unchecked")
+    public static void write(Object object, DataOutput out) throws IOException
+    {
+        Registration<Object> registration = (Registration<Object>)BY_CLASS.get(object.getClass());
+        if ( registration == null )
+            {
+                out.writeByte(JAVA_SERIALIZATION);
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try ( ObjectOutputStream stream = new ObjectOutputStream(bytes) )
+                    {
+                        stream.writeObject(object);
+                    }
+                out.writeInt(bytes.size());
+                out.write(bytes.toByteArray());
+            }
+        else
+            {
+                out.writeByte(registration.tag);
+                registration.serializer.write(object, out);
+            }
+    }
+
+    /**
+     * Reads a payload written by write.
+     * @param in where to read from
+     * @return the WorkUnit or Result
+     */
+    public static Object read(DataInput in) throws IOException
+    {
+        int tag = in.readUnsignedByte();
+        if ( tag == JAVA_SERIALIZATION )
+            {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try ( ObjectInputStream stream = new ObjectInputStream(new ByteArrayInputStream(bytes)) )
+                    {
+                        return stream.readObject();
+                    }
+                catch (ClassNotFoundException e)
+                    {
+                        throw new IOException(e);
+                    }
+            }
+        Registration<?> registration = BY_TAG.get(tag);
+        if ( registration == null )
+            throw new IOException("no serializer registered for tag " + tag);
+        return registration.serializer.read(in);
+    }
+
+    /**
+     * Writes a payload to a byte array.
+     * @param object the WorkUnit or Result to write
+     * @return the bytes
+     */
+    public static byte[] toBytes(Object object) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(object, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads a payload from a byte array written by toBytes.
+     * @param bytes the serialized object
+     * @return the WorkUnit or Result
+     */
+    public static Object fromBytes(byte[] bytes) throws IOException
+    {
+        return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /** Associates a class with its tag and serializer. */
+    private static class Registration<T> implements Immutable
+    {
+        private final int tag;
+        private final Class<T> type;
+        private final PayloadSerializer<T> serializer;
+
+        public Registration(int tag, Class<T> type, PayloadSerializer<T> serializer)
+        {
+            this.tag = tag;
+            this.type = type;
+            this.serializer = serializer;
+        }
+    }
+}
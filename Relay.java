@@ -0,0 +1,432 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.google.common.util.concurrent.*;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.service.IoService;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Sits between the server and the clients in one rack, so that the server only has to talk to a
+ * few relays instead of thousands of clients.  A relay connects to the server as one client with
+ * Settings.RELAY_THREADS threads and runs a Server of its own, which the clients in its rack
+ * connect to because of Settings.RELAY_MAP.  Work from the server goes into the relay's
+ * WorkUnitDatabase under the same serverIDs and is handed out to the rack from there.  The relay
+ * tells the server the most cores and memory any one client in the rack has, so the server only
+ * sends it ResourceWorkUnits that some client can run, and tells it again when that changes.  Results
+ * and failures go back up as they arrive, through the Outbox if it is in use.  Otherwise the ones
+ * that finish while the server cannot be reached are kept in memory until the relay reconnects.
+ * Attachments cross to the rack once and are served to it by the relay.  Clients in the rack that
+ * die or hang are dealt with by the relay, so the server never hears about them.
+ */
+public class Relay implements Singleton
+{
+    /** The connection to the server, or null if there is none. */
+    private static volatile IoSession UPSTREAM;
+
+    /** What the server was last told about the rack. */
+    private static volatile ClientInfo REPORTED;
+
+    /** Results that finished while there was no connection to the server and the Outbox is not in use.  Guarded by itself. */
+    private static final List<ResultEnvelope> UNSENT = new ArrayList<>();
+
+    /** The serverIDs of the units the server has given the relay that it has not sent results for yet. */
+    private static final Set<Long> HELD = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+
+    /** Fetches the attachments of incoming units so that large files do not hold up the connection. */
+    private static final ExecutorService INTAKE = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "RelayIntake");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Uploads the attachments of results before sending the results to the server. */
+    private static final ExecutorService FORWARDER = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "RelayForwarder");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** Sends heartbeats to the server and forgets finished units. */
+    private static final ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "RelayHeartbeat");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /** How many units the server has sent. */
+    private static final LongAdder RECEIVED = Metrics.counter("relay.received");
+
+    /** How many results and failures have been sent to the server. */
+    private static final LongAdder FORWARDED = Metrics.counter("relay.forwarded");
+
+    /** Not instantiable. */
+    private Relay()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /**
+     * Starts serving the rack and connects to the server.
+     * @param port the port the clients in the rack connect to
+     * @return true if the relay connected to the server
+     */
+    public static boolean start(int port)
+    {
+        // results are forgotten soon after they are forwarded, so there is no point in keeping them on disk
+        WorkUnitDatabase.disableResultStore();
+        WorkUnitDatabase.addListener(new CompletionListener()
+            {
+                public void unitFinished(ResultEnvelope envelope)
+                {
+                    forward(envelope);
+                }
+            });
+        Server.start(port);
+        TIMER.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                        {
+                            WorkUnitDatabase.purge();
+                        }
+                    catch (Exception e)
+                        {
+                            e.printStackTrace();
+                        }
+                }
+            }, Settings.HEARTBEAT_INTERVAL, Settings.HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+
+        // the server is told what the rack can run, so there has to be a rack first
+        System.out.println("Waiting for a client in the rack before connecting to the server.");
+        while ( Server.getClients().isEmpty() )
+            Uninterruptibles.sleepUninterruptibly(1, TimeUnit.SECONDS);
+        return connect();
+    }
+
+    /**
+     * Describes the rack to the server as one client.  Its cores and unit memory are those of the
+     * largest client, since no unit can run on more than one client, and its memory is the total.
+     * @return the description
+     */
+    private static ClientInfo describeRack()
+    {
+        int cores = 1;
+        long memory = 0L;
+        long unitMemory = 0L;
+        boolean known = true;
+        for (ClientInfo client : Server.getClients())
+            {
+                cores = Math.max(cores, client.cores);
+                memory += client.memory;
+                unitMemory = Math.max(unitMemory, client.unitMemory == 0L ? client.memory : client.unitMemory);
+                known = known && client.memory > 0L;
+            }
+        if ( !known )
+            {
+                // a client that did not say how much memory it has could run anything
+                memory = 0L;
+                unitMemory = 0L;
+            }
+        return new ClientInfo(Settings.HOSTNAME, Settings.RELAY_THREADS, cores, memory, unitMemory, Settings.USE_OUTBOX);
+    }
+
+    /**
+     * Connects to the server.
+     * @return true if the relay connected
+     */
+    private static boolean connect()
+    {
+        UPSTREAM = Client.connect(Settings.SERVER_HOSTNAME, Settings.LISTENING_PORT, new RelayHandler());
+        return UPSTREAM != null;
+    }
+
+    /**
+     * Takes a unit from the server.  A unit the relay already has is not run again.  That happens
+     * when the server hands out work again after reconnecting.
+     * @param envelope the unit
+     */
+    private static void accept(WorkEnvelope envelope)
+    {
+        long serverID = envelope.serverID;
+        if ( Settings.USE_OUTBOX && Outbox.contains(serverID) )
+            {
+                EventLog.unit("Already finished work unit %d.", serverID);
+                return;
+            }
+        WorkUnitDatabase.Status status = WorkUnitDatabase.getStatus(serverID);
+        if ( status == WorkUnitDatabase.Status.COMPLETED || status == WorkUnitDatabase.Status.FAILED )
+            {
+                // the result was acknowledged, but the server has lost it since
+                HELD.add(serverID);
+                forward(Futures.getUnchecked(WorkUnitDatabase.getFuture(serverID)));
+                return;
+            }
+        if ( status != null )
+            {
+                EventLog.unit("Already have work unit %d.", serverID);
+                return;
+            }
+        HELD.add(serverID);
+        RECEIVED.increment();
+        try
+            {
+                WorkUnitDatabase.submit(envelope);
+            }
+        catch (IllegalArgumentException e)
+            {
+                EventLog.unit("Already have work unit %d.", serverID);
+            }
+    }
+
+    /**
+     * Takes some units from the server and sends them out to the rack.  Units with attachments
+     * wait until their files are here.
+     * @param envelopes the units
+     */
+    private static void acceptAll(List<WorkEnvelope> envelopes)
+    {
+        for (final WorkEnvelope envelope : envelopes)
+            {
+                if ( !(envelope.workUnit instanceof AttachedWorkUnit) )
+                    {
+                        accept(envelope);
+                        continue;
+                    }
+                INTAKE.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                                {
+                                    AttachmentService.mirror(((AttachedWorkUnit)envelope.workUnit).getAttachments());
+                                }
+                            catch (IOException | RuntimeException e)
+                                {
+                                    EventLog.warning("Unable to fetch the attachments of work unit %d: %s", envelope.serverID, e);
+                                    HELD.add(envelope.serverID);
+                                    forward(new ResultEnvelope(null, "unable to fetch attachments: " + e.getMessage(), Settings.HOSTNAME, envelope.serverID));
+                                    return;
+                                }
+                            accept(envelope);
+                            Server.dispatch();
+                        }
+                    });
+            }
+        Server.dispatch();
+    }
+
+    /**
+     * Sends a result or failure to the server.  Results with attachments are handed to another
+     * thread, since their files have to reach the server first.
+     * @param envelope the result
+     */
+    private static void forward(final ResultEnvelope envelope)
+    {
+        if ( !(envelope.result instanceof AttachedResult) )
+            {
+                send(envelope);
+                return;
+            }
+        FORWARDER.execute(new Runnable()
+            {
+                public void run()
+                {
+                    ResultEnvelope toSend = envelope;
+                    try
+                        {
+                            for (Attachment attachment : ((AttachedResult)envelope.result).getAttachments())
+                                AttachmentService.upload(attachment);
+                        }
+                    catch (IOException | RuntimeException e)
+                        {
+                            EventLog.warning("Unable to send the attachments of work unit %d: %s", envelope.serverID, e);
+                            toSend = new ResultEnvelope(null, "unable to send attachments: " + e.getMessage(), envelope.origin, envelope.serverID);
+                        }
+                    send(toSend);
+                }
+            });
+    }
+
+    /**
+     * Sends a result to the server through the Outbox if it is in use.  Otherwise a result that
+     * finishes while there is no connection is kept in memory until the relay reconnects.
+     */
+    private static void send(ResultEnvelope envelope)
+    {
+        if ( !HELD.remove(envelope.serverID) )
+            return;
+        if ( Settings.USE_OUTBOX )
+            Outbox.send(envelope);
+        else
+            {
+                synchronized (UNSENT)
+                    {
+                        IoSession upstream = UPSTREAM;
+                        if ( upstream == null )
+                            {
+                                UNSENT.add(envelope);
+                                EventLog.unit("Holding on to work unit %d until the server is back.", envelope.serverID);
+                                return;
+                            }
+                        ResultBatcher.send(upstream, envelope);
+                    }
+            }
+        FORWARDED.increment();
+        EventLog.unit("Forwarded work unit %d.", envelope.serverID);
+    }
+
+    /**
+     * Makes a connection the one results go to, and sends it the results that finished while
+     * there was none.
+     * @param session the connection to the server
+     */
+    private static void setUpstream(IoSession session)
+    {
+        synchronized (UNSENT)
+            {
+                UPSTREAM = session;
+                for (ResultEnvelope envelope : UNSENT)
+                    {
+                        ResultBatcher.send(session, envelope);
+                        FORWARDED.increment();
+                        EventLog.unit("Forwarded work unit %d.", envelope.serverID);
+                    }
+                UNSENT.clear();
+            }
+    }
+
+    /**
+     * Lists the units that are running in the rack.  Units that are still queued on the relay
+     * are not included, so the server does not start their deadlines yet.
+     * @return the serverIDs of the units that are out on clients
+     */
+    private static List<Long> getRunning()
+    {
+        List<Long> running = new ArrayList<>();
+        for (Long serverID : HELD)
+            {
+                if ( WorkUnitDatabase.getStatus(serverID) == WorkUnitDatabase.Status.SENT_OUT )
+                    running.add(serverID);
+            }
+        return running;
+    }
+
+    /**
+     * This class determines what happens when events pertaining to the connection to the server occur.
+     */
+    public static class RelayHandler extends IoHandlerAdapter
+    {
+        public void sessionCreated(IoSession session) throws Exception
+        {
+            System.out.println("Session created.");
+
+            REPORTED = describeRack();
+            session.write(REPORTED);
+
+            // send any results that finished while there was no connection
+            if ( Settings.USE_OUTBOX )
+                Outbox.setSession(session);
+            setUpstream(session);
+
+            // tell the server which units are running so it knows the relay is not hung, and what the rack can run if clients have come or gone
+            final IoSession heartbeatSession = session;
+            ScheduledFuture<?> heartbeat = TIMER.scheduleAtFixedRate(new Runnable()
+                {
+                    public void run()
+                    {
+                        if ( !heartbeatSession.isConnected() )
+                            return;
+                        ClientInfo rack = describeRack();
+                        if ( !Server.getClients().isEmpty() && !rack.equals(REPORTED) )
+                            {
+                                REPORTED = rack;
+                                heartbeatSession.write(rack);
+                            }
+                        heartbeatSession.write(new Heartbeat(getRunning()));
+                    }
+                }, Settings.HEARTBEAT_INTERVAL, Settings.HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+            session.setAttribute("heartbeat", heartbeat);
+        }
+
+        public void messageReceived(IoSession session, Object message) throws Exception
+        {
+            if (message instanceof WorkEnvelope)
+                {
+                    WorkEnvelope envelope = (WorkEnvelope)message;
+                    EventLog.unit("Received work unit %d.", envelope.serverID);
+                    acceptAll(Collections.singletonList(envelope));
+                }
+            else if (message instanceof WorkBatch)
+                {
+                    WorkBatch batch = (WorkBatch)message;
+                    for (WorkEnvelope envelope : batch.envelopes)
+                        EventLog.unit("Received work unit %d in a batch of %d.", envelope.serverID, batch.envelopes.size());
+                    acceptAll(batch.envelopes);
+                }
+            else if (message instanceof Acknowledgement)
+                {
+                    if ( Settings.USE_OUTBOX )
+                        Outbox.acknowledge((Acknowledgement)message);
+                }
+            else if (message instanceof String)
+                System.out.printf("Connected to server at %s.\n", (String)message);
+            else
+                throw new IllegalArgumentException("unexpected object type");
+        }
+
+        public void sessionClosed(IoSession session)
+        {
+            System.out.println("Connection to server closed.");
+            ScheduledFuture<?> heartbeat = (ScheduledFuture<?>)session.getAttribute("heartbeat");
+            if ( heartbeat != null )
+                heartbeat.cancel(false);
+            UPSTREAM = null;
+
+            // keep the rack working and reconnect in the background, giving up if the server does not come back
+            if ( Settings.USE_OUTBOX )
+                Outbox.setSession(null);
+            final IoService service = session.getService();
+            new Thread("Reconnect")
+                {
+                    public void run()
+                    {
+                        service.dispose();
+                        if ( !connect() )
+                            System.exit(0);
+                    }
+                }.start();
+        }
+
+        public void exceptionCaught(IoSession session, Throwable cause) throws Exception
+        {
+            System.out.println(session.getRemoteAddress() + ":[" + cause.getMessage() + "]");
+            session.close(false);
+            session.getService().dispose();
+        }
+    }
+
+    /** Runs a relay.  The clients in the rack connect to the port given as the argument, or Settings.LISTENING_PORT. */
+    public static void main(String[] args)
+    {
+        int port = Settings.LISTENING_PORT;
+        if ( args.length > 0 )
+            port = Integer.parseInt(args[0]);
+        if ( !Relay.start(port) )
+            System.exit(1);
+    }
+}
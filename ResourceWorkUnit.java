@@ -0,0 +1,14 @@
+/**
+ * A WorkUnit that needs more than one core or a known amount of memory, such as a Gaussian job
+ * with %nprocshared and %mem set.  The server only sends it to clients that have that many cores
+ * and that much memory free, and GeneralThreadService holds that many cores for it while it runs.
+ * Units that do not implement this interface take one core and no memory.
+ */
+public interface ResourceWorkUnit extends WorkUnit
+{
+    /** How many cores this unit uses while it runs.  At least one. */
+    public int getCores();
+
+    /** How much memory this unit uses while it runs in bytes.  Zero means it is too small to count. */
+    public long getMemory();
+}
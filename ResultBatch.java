@@ -0,0 +1,51 @@
+import java.io.*;
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * A group of ResultEnvelopes that are sent back to the server in one network message.
+ */
+public class ResultBatch implements Serializable, Immutable
+{
+    /** For serialization. */
+    public static final long serialVersionUID = 1L;
+
+    /** The results. */
+    public final List<ResultEnvelope> envelopes;
+
+    /** Create a ResultBatch from some ResultEnvelopes. */
+    public ResultBatch(List<ResultEnvelope> envelopes)
+    {
+        if ( envelopes == null )
+            throw new NullPointerException("null envelopes");
+        if ( envelopes.size() == 0 )
+            throw new IllegalArgumentException("empty batch");
+        this.envelopes = ImmutableList.copyOf(envelopes);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("ResultBatch of %d envelopes", envelopes.size());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(envelopes);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if ( obj == null )
+            return false;
+        if ( obj == this )
+            return true;
+        if ( !(obj instanceof ResultBatch) )
+            return false;
+
+        ResultBatch b = (ResultBatch)obj;
+        return Objects.equals(envelopes, b.envelopes);
+    }
+}
@@ -0,0 +1,116 @@
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Collects finished results on a client and sends them back to the server in ResultBatches.
+ * A batch is sent when it reaches Settings.MAX_RESULT_BATCH_SIZE results or when the oldest
+ * result in it has waited Settings.RESULT_BATCH_WINDOW milliseconds, whichever comes first.
+ * If the window is zero, every result is sent as soon as it is ready.
+ */
+public class ResultBatcher
+{
+    /** The session attribute that holds the batcher for a session. */
+    public static final String ATTRIBUTE = "resultBatcher";
+
+    /** How long results take to reach the socket after they are handed to the batcher. */
+    private static final Histogram RESULT_RETURN = Metrics.histogram("client.result.return");
+
+    /** Sends batches whose time window has run out. */
+    private static final ScheduledExecutorService TIMER;
+
+    /** The connection to the server. */
+    private final IoSession session;
+
+    /** Results that have not been sent yet.  Guarded by this. */
+    private List<ResultEnvelope> pending;
+
+    /** When the oldest pending result was added, from System.nanoTime.  Guarded by this. */
+    private long pendingSince;
+
+    /** Sends the pending results when the window runs out, or null if nothing is pending.  Guarded by this. */
+    private ScheduledFuture<?> flushTask;
+
+    /** Static initializer. */
+    static
+    {
+        TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "ResultBatcher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+
+    /** Use ResultBatcher.send instead. */
+    private ResultBatcher(IoSession session)
+    {
+        this.session = session;
+        this.pending = new ArrayList<>();
+    }
+
+    /**
+     * Sends a result back to the server, possibly along with other results.
+     * @param session the connection to the server
+     * @param envelope the result to send
+     */
+    public static void send(IoSession session, ResultEnvelope envelope)
+    {
+        if ( Settings.RESULT_BATCH_WINDOW <= 0 || Settings.MAX_RESULT_BATCH_SIZE <= 1 )
+            {
+                Metrics.timeWrite(session.write(envelope), RESULT_RETURN);
+                return;
+            }
+        ResultBatcher batcher = (ResultBatcher)session.getAttribute(ATTRIBUTE);
+        if ( batcher == null )
+            {
+                ResultBatcher newBatcher = new ResultBatcher(session);
+                batcher = (ResultBatcher)session.setAttributeIfAbsent(ATTRIBUTE, newBatcher);
+                if ( batcher == null )
+                    batcher = newBatcher;
+            }
+        batcher.add(envelope);
+    }
+
+    /** Adds a result to the pending batch and sends the batch if it is full. */
+    private synchronized void add(ResultEnvelope envelope)
+    {
+        if ( pending.size() == 0 )
+            pendingSince = System.nanoTime();
+        pending.add(envelope);
+        if ( pending.size() >= Settings.MAX_RESULT_BATCH_SIZE )
+            flush();
+        else if ( flushTask == null )
+            {
+                flushTask = TIMER.schedule(new Runnable()
+                    {
+                        public void run()
+                        {
+                            flush();
+                        }
+                    }, Settings.RESULT_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+            }
+    }
+
+    /** Sends all pending results now. */
+    public synchronized void flush()
+    {
+        if ( flushTask != null )
+            {
+                flushTask.cancel(false);
+                flushTask = null;
+            }
+        if ( pending.size() == 0 )
+            return;
+        if ( pending.size() == 1 )
+            Metrics.timeWrite(session.write(pending.get(0)), RESULT_RETURN, pendingSince);
+        else
+            Metrics.timeWrite(session.write(new ResultBatch(pending)), RESULT_RETURN, pendingSince);
+        for (ResultEnvelope envelope : pending)
+            EventLog.unit("Sent back work unit %d.", envelope.serverID);
+        pending = new ArrayList<>();
+    }
+}
@@ -0,0 +1,337 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import com.google.common.hash.*;
+
+/**
+ * Remembers the results of units that have already been computed so identical units do not have
+ * to be run again.  Units are identified by the SHA-256 hash of their PayloadSerializers form, so
+ * two units are the same if they serialize to the same bytes.  Units with registered
+ * PayloadSerializers give the most reliable keys.  At most Settings.RESULT_CACHE_SIZE results are
+ * kept, and the least recently used one is forgotten first.  If Settings.RESULT_CACHE_FILE is not
+ * null, the cache is loaded from that file at startup and every new result is appended to it.
+ * Appends are handed to a background thread, so put never waits for the disk, and the file is
+ * rewritten without superseded or evicted records whenever it holds COMPACTION_FACTOR times as
+ * many records as the cache does.
+ */
+public class ResultCache implements Singleton
+{
+    /** The file is compacted when it holds this many times as many records as the cache. */
+    public static final int COMPACTION_FACTOR = 2;
+
+    /** The largest result that load will read, in bytes.  A longer record means the file is corrupt. */
+    public static final int MAX_RESULT_SIZE = 64 * 1024 * 1024;
+
+    /** The most records to write between flushes. */
+    public static final int MAX_BATCH_SIZE = 4096;
+
+    /** Maps hashes of units to their serialized results.  Guarded by itself. */
+    private static final LinkedHashMap<HashCode,byte[]> CACHE;
+
+    /** How many lookups found a result. */
+    private static final AtomicLong HITS = new AtomicLong();
+
+    /** How many lookups did not find a result. */
+    private static final AtomicLong MISSES = new AtomicLong();
+
+    /** Results that have not been appended to the file yet. */
+    private static final BlockingQueue<Record> PENDING = new LinkedBlockingQueue<>();
+
+    /** Whether new results are being appended to the file. */
+    private static volatile boolean WRITING = false;
+
+    /** Where new results are appended.  Only used by the background thread once it is running. */
+    private static DataOutputStream FILE;
+
+    /** How many records are in the file, including superseded ones.  Only used by the background thread once it is running. */
+    private static long RECORDS = 0L;
+
+    /** Not instantiable. */
+    private ResultCache()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /** Static initializer. */
+    static
+    {
+        CACHE = new LinkedHashMap<HashCode,byte[]>(16, 0.75f, true)
+            {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<HashCode,byte[]> eldest)
+                {
+                    return size() > Settings.RESULT_CACHE_SIZE;
+                }
+            };
+        if ( Settings.USE_RESULT_CACHE && Settings.RESULT_CACHE_FILE != null )
+            {
+                final File file = new File(Settings.RESULT_CACHE_FILE);
+                load(file);
+                if ( WRITING )
+                    {
+                        final Thread writer = new Thread("ResultCache")
+                            {
+                                public void run()
+                                {
+                                    write(file);
+                                }
+                            };
+                        writer.setDaemon(true);
+                        writer.start();
+
+                        // append whatever is still queued when the program exits
+                        Runtime.getRuntime().addShutdownHook(new Thread()
+                            {
+                                public void run()
+                                {
+                                    PENDING.add(Record.STOP);
+                                    try { writer.join(); }
+                                    catch (InterruptedException e) {}
+                                }
+                            });
+                    }
+            }
+    }
+
+    /**
+     * Computes the key for a unit.
+     * @param workUnit the unit
+     * @return the key, or null if the unit cannot be serialized
+     */
+    public static HashCode key(WorkUnit workUnit)
+    {
+        try
+            {
+                return Hashing.sha256().hashBytes(PayloadSerializers.toBytes(workUnit));
+            }
+        catch (IOException e)
+            {
+                return null;
+            }
+    }
+
+    /**
+     * Looks up the result for a unit and counts the hit or miss.
+     * @param key the key from key()
+     * @return the result, or null if it is not in the cache
+     */
+    public static Result get(HashCode key)
+    {
+        byte[] bytes = null;
+        synchronized (CACHE)
+            {
+                bytes = CACHE.get(key);
+            }
+        if ( bytes == null )
+            {
+                MISSES.incrementAndGet();
+                return null;
+            }
+        try
+            {
+                Result result = (Result)PayloadSerializers.fromBytes(bytes);
+                HITS.incrementAndGet();
+                return result;
+            }
+        catch (IOException e)
+            {
+                // treat a result that can no longer be read as missing
+                MISSES.incrementAndGet();
+                return null;
+            }
+    }
+
+    /**
+     * Remembers the result for a unit.
+     * @param key the key from key()
+     * @param result the result
+     */
+    public static void put(HashCode key, Result result)
+    {
+        byte[] bytes = null;
+        try
+            {
+                bytes = PayloadSerializers.toBytes(result);
+            }
+        catch (IOException e)
+            {
+                return;
+            }
+        synchronized (CACHE)
+            {
+                CACHE.put(key, bytes);
+            }
+        if ( WRITING )
+            PENDING.add(new Record(key, bytes));
+    }
+
+    /** How many lookups found a result. */
+    public static long getHits()
+    {
+        return HITS.get();
+    }
+
+    /** How many lookups did not find a result. */
+    public static long getMisses()
+    {
+        return MISSES.get();
+    }
+
+    /** How many results are in the cache. */
+    public static int size()
+    {
+        synchronized (CACHE)
+            {
+                return CACHE.size();
+            }
+    }
+
+    /** Writes one record: the key, the length of the result, and the result. */
+    private static void write(DataOutputStream out, HashCode key, byte[] bytes) throws IOException
+    {
+        out.write(key.asBytes());
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Runs on the background thread, appending queued results to the file in batches and
+     * compacting it when it has grown too large.  Stops persisting if the file cannot be written.
+     * @param file the cache file, already compacted and opened by load
+     */
+    private static void write(File file)
+    {
+        List<Record> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        boolean stopping = false;
+        try
+            {
+                while ( !stopping )
+                    {
+                        batch.add(PENDING.take());
+                        PENDING.drainTo(batch, MAX_BATCH_SIZE - 1);
+                        for (Record record : batch)
+                            {
+                                if ( record == Record.STOP )
+                                    stopping = true;
+                                else
+                                    {
+                                        write(FILE, record.key, record.bytes);
+                                        RECORDS++;
+                                    }
+                            }
+                        FILE.flush();
+                        batch.clear();
+                        if ( !stopping && RECORDS > (long)COMPACTION_FACTOR * Math.max(size(), 1) )
+                            compact(file);
+                    }
+                FILE.close();
+            }
+        catch (Exception e)
+            {
+                System.out.printf("Unable to persist result cache %s, continuing in memory only:\n", file);
+                e.printStackTrace();
+                WRITING = false;
+                PENDING.clear();
+            }
+    }
+
+    /**
+     * Rewrites the cache file with just what is in memory and opens it for appending.  Results
+     * that are still queued are appended after the rewrite, so none are lost.
+     * @param file the cache file
+     */
+    private static void compact(File file) throws IOException
+    {
+        List<Map.Entry<HashCode,byte[]>> entries = null;
+        synchronized (CACHE)
+            {
+                entries = new ArrayList<>(CACHE.entrySet());
+            }
+        if ( FILE != null )
+            FILE.close();
+        File temp = new File(file.getPath() + ".tmp");
+        try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp))) )
+            {
+                for (Map.Entry<HashCode,byte[]> e : entries)
+                    write(out, e.getKey(), e.getValue());
+            }
+        if ( !temp.renameTo(file) )
+            throw new IOException("unable to replace " + file);
+        FILE = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        RECORDS = entries.size();
+    }
+
+    /**
+     * Reads the cache file, rewrites it without the records that were superseded or evicted,
+     * and opens it for appending.  A truncated record at the end, left by a crash, is ignored.
+     * So is everything from a record whose length is negative, longer than the rest of the file,
+     * or longer than MAX_RESULT_SIZE, since the file is corrupt from there on.
+     */
+    private static void load(File file)
+    {
+        synchronized (CACHE)
+            {
+                if ( file.exists() )
+                    {
+                        try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))) )
+                            {
+                                byte[] keyBytes = new byte[Hashing.sha256().bits() / 8];
+                                long remaining = file.length();
+                                while (true)
+                                    {
+                                        in.readFully(keyBytes);
+                                        int length = in.readInt();
+                                        remaining -= keyBytes.length + 4;
+                                        if ( length < 0 || length > remaining || length > MAX_RESULT_SIZE )
+                                            {
+                                                System.out.printf("Result cache %s has a corrupt record, ignoring it and everything after it.\n", file);
+                                                break;
+                                            }
+                                        byte[] bytes = new byte[length];
+                                        in.readFully(bytes);
+                                        remaining -= length;
+                                        CACHE.put(HashCode.fromBytes(keyBytes), bytes);
+                                    }
+                            }
+                        catch (EOFException e)
+                            {
+                            }
+                        catch (IOException e)
+                            {
+                                System.out.printf("Unable to read result cache %s:\n", file);
+                                e.printStackTrace();
+                            }
+                    }
+            }
+
+        // compact the file to just what is in memory
+        try
+            {
+                compact(file);
+                WRITING = true;
+                System.out.printf("Loaded %d cached results from %s.\n", size(), file);
+            }
+        catch (IOException e)
+            {
+                System.out.printf("Unable to write result cache %s, continuing in memory only:\n", file);
+                e.printStackTrace();
+            }
+    }
+
+    /** One result waiting to be appended to the file. */
+    private static class Record implements Immutable
+    {
+        /** Tells the background thread to stop. */
+        public static final Record STOP = new Record(null, null);
+
+        public final HashCode key;
+        public final byte[] bytes;
+
+        public Record(HashCode key, byte[] bytes)
+        {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+}
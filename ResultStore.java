@@ -0,0 +1,299 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import com.google.common.collect.*;
+
+/**
+ * Keeps completed results on disk instead of on the heap.  Results are serialized with
+ * PayloadSerializers and appended to fixed-size, memory-mapped segment files in
+ * Settings.RESULT_STORE_DIRECTORY.  Only the location of each result is kept in memory.
+ * The store is emptied when the server starts; WorkUnitJournal is what makes results
+ * durable across restarts.
+ */
+public class ResultStore implements Singleton
+{
+    /** How many bytes each record needs in addition to the result: the serverID and the length. */
+    private static final int HEADER_SIZE = 12;
+
+    /** The segments that have been created so far. */
+    private static final List<MappedByteBuffer> SEGMENTS;
+
+    /** Maps serverIDs to locations.  The upper 32 bits are the segment and the lower 32 bits are the offset. */
+    private static final ConcurrentMap<Long,Long> INDEX;
+
+    /** Where the next record goes in the last segment.  Guarded by SEGMENTS. */
+    private static int POSITION;
+
+    /** How long appends hold the lock. */
+    private static final Histogram LOCK_HOLD = Metrics.histogram("server.resultstore.lock");
+
+    /** Not instantiable. */
+    private ResultStore()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /** Static initializer. */
+    static
+    {
+        SEGMENTS = new CopyOnWriteArrayList<>();
+        INDEX = new ConcurrentHashMap<>();
+        File directory = new File(Settings.RESULT_STORE_DIRECTORY);
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+            throw new IllegalArgumentException("unable to create result store directory " + directory);
+        File[] oldFiles = directory.listFiles();
+        if ( oldFiles != null )
+            {
+                for (File f : oldFiles)
+                    {
+                        if ( f.getName().startsWith("results-") )
+                            f.delete();
+                    }
+            }
+    }
+
+    /**
+     * Writes a result to the store.
+     * @param serverID the ID of the unit that produced the result
+     * @param result the result
+     * @return where the result was written, for remove(long, long)
+     */
+    public static long put(long serverID, Result result)
+    {
+        byte[] bytes = null;
+        try
+            {
+                bytes = PayloadSerializers.toBytes(result);
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("unable to serialize result for unit " + serverID, e);
+            }
+
+        long location = 0L;
+        synchronized (SEGMENTS)
+            {
+                long start = System.nanoTime();
+                int recordSize = HEADER_SIZE + bytes.length;
+                if ( SEGMENTS.size() == 0 || POSITION + recordSize > SEGMENTS.get(SEGMENTS.size()-1).capacity() )
+                    {
+                        SEGMENTS.add(createSegment(SEGMENTS.size(), Math.max(recordSize, Settings.RESULT_STORE_SEGMENT_SIZE)));
+                        POSITION = 0;
+                    }
+                int segmentIndex = SEGMENTS.size()-1;
+                ByteBuffer segment = SEGMENTS.get(segmentIndex).duplicate();
+                segment.position(POSITION);
+                segment.putLong(serverID);
+                segment.putInt(bytes.length);
+                segment.put(bytes);
+                location = ((long)segmentIndex << 32) | POSITION;
+                POSITION += recordSize;
+                LOCK_HOLD.record(Metrics.microsSince(start));
+            }
+        INDEX.put(serverID, location);
+        return location;
+    }
+
+    /**
+     * Reads a result back from disk.
+     * @param serverID the ID of the unit that produced the result
+     * @return the result, or null if there is no such result
+     */
+    public static Result get(long serverID)
+    {
+        Long location = INDEX.get(serverID);
+        if ( location == null )
+            return null;
+        return read(SEGMENTS.get((int)(location >>> 32)).duplicate(), (int)(location & 0xFFFFFFFFL));
+    }
+
+    /**
+     * Checks whether there is a result for the specified unit.
+     * @param serverID the ID of the unit
+     * @return true if the result is in the store
+     */
+    public static boolean contains(long serverID)
+    {
+        return INDEX.containsKey(serverID);
+    }
+
+    /**
+     * Forgets about a result.  The space it took up is not reclaimed.
+     * @param serverID the ID of the unit that produced the result
+     */
+    public static void remove(long serverID)
+    {
+        INDEX.remove(serverID);
+    }
+
+    /**
+     * Forgets about a result, but only if it is the one that was written at the specified location.
+     * Use this to undo a put without losing a result that another thread stored for the same unit since.
+     * @param serverID the ID of the unit that produced the result
+     * @param location what put returned
+     */
+    public static void remove(long serverID, long location)
+    {
+        INDEX.remove(serverID, location);
+    }
+
+    /** Forgets about all results.  The space they took up is not reclaimed. */
+    public static void clear()
+    {
+        INDEX.clear();
+    }
+
+    /** How many results are in the store. */
+    public static int size()
+    {
+        return INDEX.size();
+    }
+
+    /**
+     * Walks through the results in the order they were stored, reading each one from disk only
+     * when it is reached.  Results that are stored during the walk may or may not be included.
+     * @return the results, keyed by serverID
+     */
+    public static Iterator<Map.Entry<Long,Result>> iterator()
+    {
+        final List<MappedByteBuffer> segments;
+        final int end;
+        synchronized (SEGMENTS)
+            {
+                segments = new ArrayList<>(SEGMENTS);
+                end = POSITION;
+            }
+        return new AbstractIterator<Map.Entry<Long,Result>>()
+            {
+                private int segmentIndex = 0;
+                private int position = 0;
+
+                @Override
+                protected Map.Entry<Long,Result> computeNext()
+                {
+                    while ( segmentIndex < segments.size() )
+                        {
+                            ByteBuffer segment = segments.get(segmentIndex).duplicate();
+                            int limit = segmentIndex == segments.size()-1 ? end : segment.capacity();
+                            if ( position + HEADER_SIZE > limit || segment.getLong(position) == 0L && segment.getInt(position+8) == 0 )
+                                {
+                                    // the rest of this segment is unused
+                                    segmentIndex++;
+                                    position = 0;
+                                    continue;
+                                }
+                            int recordPosition = position;
+                            long serverID = segment.getLong(position);
+                            position += HEADER_SIZE + segment.getInt(position+8);
+
+                            // skip results that have been removed or superseded
+                            long location = ((long)segmentIndex << 32) | recordPosition;
+                            Long current = INDEX.get(serverID);
+                            if ( current == null || current != location )
+                                continue;
+                            Result result = read(segment, recordPosition);
+                            return Maps.immutableEntry(serverID, result);
+                        }
+                    return endOfData();
+                }
+            };
+    }
+
+    /** Reads the record at the specified position. */
+    private static Result read(ByteBuffer segment, int position)
+    {
+        int length = segment.getInt(position+8);
+        byte[] bytes = new byte[length];
+        segment.position(position + HEADER_SIZE);
+        segment.get(bytes);
+        try
+            {
+                return (Result)PayloadSerializers.fromBytes(bytes);
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("unable to read result at position " + position, e);
+            }
+    }
+
+    /** Creates and maps a new segment file. */
+    private static MappedByteBuffer createSegment(int index, int size)
+    {
+        File f = new File(Settings.RESULT_STORE_DIRECTORY, String.format("results-%08d.dat", index));
+        try ( RandomAccessFile file = new RandomAccessFile(f, "rw") )
+            {
+                return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("unable to create result store segment " + f, e);
+            }
+    }
+
+    /**
+     * For testing.  Stores results of different sizes, reads them back, overwrites and removes
+     * some, and checks that get, remove(long, long), and iterator agree with what was done.
+     * Like starting a server, this empties Settings.RESULT_STORE_DIRECTORY first.  Exits with
+     * status 1 if anything does not match.
+     */
+    public static void main(String[] args)
+    {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        Random random = new Random(1L);
+        Map<Long,byte[]> expected = new LinkedHashMap<>();
+        List<String> failures = new ArrayList<>();
+        for (long serverID=1; serverID <= count; serverID++)
+            {
+                byte[] payload = new byte[random.nextInt(2000)];
+                random.nextBytes(payload);
+                put(serverID, new LoadResult(payload));
+                expected.put(serverID, payload);
+            }
+
+        // a newer result replaces an older one, and undoing the older put must not remove it
+        long oldLocation = put(1L, new LoadResult(new byte[] { 1 }));
+        byte[] replacement = new byte[] { 2, 3 };
+        long newLocation = put(1L, new LoadResult(replacement));
+        expected.remove(1L);
+        expected.put(1L, replacement);
+        remove(1L, oldLocation);
+        if ( !contains(1L) )
+            failures.add("remove(serverID, location) removed a newer result");
+
+        // undoing the newest put does remove it
+        long location = put(2L, new LoadResult(new byte[] { 4 }));
+        remove(2L, location);
+        expected.remove(2L);
+        if ( contains(2L) )
+            failures.add("remove(serverID, location) did not remove the result at that location");
+        if ( newLocation == oldLocation )
+            failures.add("two puts returned the same location");
+
+        // every remaining result reads back the same, both directly and by walking the store
+        for (Map.Entry<Long,byte[]> e : expected.entrySet())
+            {
+                Result result = get(e.getKey());
+                if ( !(result instanceof LoadResult) || !Arrays.equals(((LoadResult)result).payload, e.getValue()) )
+                    failures.add("get(" + e.getKey() + ") returned the wrong result");
+            }
+        Set<Long> walked = new HashSet<>();
+        Iterator<Map.Entry<Long,Result>> iterator = iterator();
+        while (iterator.hasNext())
+            {
+                Map.Entry<Long,Result> e = iterator.next();
+                byte[] payload = expected.get(e.getKey());
+                if ( payload == null || !walked.add(e.getKey()) || !Arrays.equals(((LoadResult)e.getValue()).payload, payload) )
+                    failures.add("iterator returned the wrong result for " + e.getKey());
+            }
+        if ( walked.size() != expected.size() || size() != expected.size() )
+            failures.add(String.format("expected %d results, but the store has %d and the walk found %d", expected.size(), size(), walked.size()));
+
+        for (String failure : failures.subList(0, Math.min(failures.size(), 20)))
+            System.out.println(failure);
+        System.out.printf("%d results in %d segments: %s.\n", size(), SEGMENTS.size(), failures.size() == 0 ? "ok" : failures.size() + " problems");
+        clear();
+        System.exit(failures.size() == 0 ? 0 : 1);
+    }
+}
@@ -2,11 +2,11 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import com.google.common.collect.*;
 
 import org.apache.mina.core.service.IoAcceptor;  
 import org.apache.mina.core.session.IdleStatus;  
 import org.apache.mina.filter.codec.ProtocolCodecFilter;  
-import org.apache.mina.filter.codec.serialization.ObjectSerializationCodecFactory;  
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;  
 import org.apache.mina.filter.executor.ExecutorFilter;
 import org.apache.mina.core.session.IoSession;
@@ -36,23 +36,39 @@ public class Server implements Singleton
     /** The list of known clients. */
     private static final List<String> KNOWN_CLIENTS = new ArrayList<String>();
 
+    /** The connection to each client, so clients whose leases run out can be disconnected. */
+    private static final ConcurrentMap<String,IoSession> SESSIONS = new ConcurrentHashMap<>();
+
     /** Not instantiable. */
     private Server()
     {
         throw new IllegalArgumentException("not instantiable");
     }
 
-    /** Start the server. */
+    /** Start the server on Settings.LISTENING_PORT. */
     public static void start()
     {
-        // use a thread pool
-        ExecutorFilter executor = new ExecutorFilter(NUMBER_OF_THREADS, NUMBER_OF_THREADS);  // number of threads to start with, max number of threads
+        start(LISTENING_PORT);
+    }
+
+    /**
+     * Start the server.  Attachments are served on the next port up.
+     * @param port the port to listen on
+     */
+    public static void start(int port)
+    {
+        Metrics.start();
+        AttachmentService.start(port + 1);
+
+        // use a thread pool; threads are started as they are needed, since newer JVMs reject a core size above the initial maximum
+        ExecutorFilter executor = new ExecutorFilter(NUMBER_OF_THREADS);  // max number of threads
         
         // setup the connection
-        IoAcceptor acceptor = new NioSocketAcceptor();
+        NioSocketAcceptor acceptor = new NioSocketAcceptor();
+        acceptor.setReuseAddress(true);  // so a restarted server can bind right away
         acceptor.getSessionConfig().setReadBufferSize(READ_BUFFER_SIZE);  
         acceptor.getSessionConfig().setIdleTime(IdleStatus.BOTH_IDLE, IDLE_TIME);  
-        acceptor.getFilterChain().addLast("codec", new ProtocolCodecFilter(new ObjectSerializationCodecFactory()));  
+        acceptor.getFilterChain().addLast("codec", new ProtocolCodecFilter(BinaryCodecFactory.create()));  
         acceptor.getFilterChain().addLast("executor1", executor);
 
         // use this adapter to listen for requests
@@ -66,8 +82,8 @@ public class Server implements Singleton
                 attempts++;
                 try
                     {
-                        acceptor.bind(new InetSocketAddress(LISTENING_PORT));  
-                        System.out.printf("Server listening on port %d.\n", LISTENING_PORT);  
+                        acceptor.bind(new InetSocketAddress(port));  
+                        System.out.printf("Server listening on port %d.\n", port);  
                         success = true;
                         break;
                     }
@@ -84,22 +100,91 @@ public class Server implements Singleton
                 System.out.printf("Giving up after %d attempts, quitting.\n", attempts);
                 System.exit(1);
             }
+
+        // take work away from hung clients
+        ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "LeaseReaper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        reaper.scheduleWithFixedDelay(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                        {
+                            expireLeases();
+                        }
+                    catch (Exception e)
+                        {
+                            e.printStackTrace();
+                        }
+                }
+            }, Settings.HEARTBEAT_INTERVAL, Settings.HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
      }
 
-    /** Quit when all current jobs are complete.  Currently implemented in a stupid way. */
+    /** Requeues units that are past their deadlines and disconnects clients whose leases have expired. */
+    private static void expireLeases()
+    {
+        for (String remoteHostname : WorkUnitDatabase.requeueExpired())
+            {
+                EventLog.warning("Lease on %s has expired.", remoteHostname);
+                IoSession session = SESSIONS.get(remoteHostname);
+                if ( session != null )
+                    session.close(true); // sessionClosed requeues the work
+                else
+                    WorkUnitDatabase.markAsDead(remoteHostname);
+            }
+    }
+
+    /**
+     * Sends queued work to every client that has room for it.  Clients are normally topped up when
+     * they send results or heartbeats, so call this after submitting work that should start right away.
+     */
+    public static void dispatch()
+    {
+        for (Map.Entry<String,IoSession> entry : SESSIONS.entrySet())
+            WorkUnitDatabase.sendOutWork(entry.getKey(), entry.getValue(), WorkUnitDatabase.getInFlightLimit(entry.getKey()));
+    }
+
+    /**
+     * Lists what the connected clients reported about themselves.
+     * @return the clients, under the names they were given
+     */
+    public static List<ClientInfo> getClients()
+    {
+        List<ClientInfo> clients = new ArrayList<>();
+        for (IoSession session : SESSIONS.values())
+            {
+                ClientInfo info = (ClientInfo)session.getAttribute(ServerHandler.INFO_ATTRIBUTE);
+                if ( info != null )
+                    clients.add(info);
+            }
+        return clients;
+    }
+
+    /**
+     * Blocks until all current jobs are complete and then prints the results.  To react to
+     * individual units or campaigns without blocking, use WorkUnitDatabase.addListener,
+     * WorkUnitDatabase.getFuture, or Campaign.getFuture instead.
+     */
     public static void waitForCompletion()
     {
-        while (true)
+        try
             {
-                if (WorkUnitDatabase.finished())
-                    {
-                        System.out.println("All jobs are complete.");
-                        WorkUnitDatabase.printResults();
-                        System.exit(0);
-                    }
-                try { Thread.sleep(500); }
-                catch (InterruptedException e) {}
+                WorkUnitDatabase.whenFinished().get();
+            }
+        catch (InterruptedException | ExecutionException e)
+            {
+                e.printStackTrace();
             }
+        EventLog.flush();
+        System.out.println("All jobs are complete.");
+        WorkUnitDatabase.printResults();
     }
 
     /**
@@ -107,6 +192,12 @@ public class Server implements Singleton
      */
     public static class ServerHandler extends IoHandlerAdapter
     {
+        /** The session attribute that holds what a client reported about itself, under the name it was given. */
+        private static final String INFO_ATTRIBUTE = "info";
+
+        /** The session attribute that marks clients that keep an Outbox and want their results acknowledged. */
+        private static final String OUTBOX_ATTRIBUTE = "outbox";
+
         public static String getHostname(IoSession session)
         {
             String name = (String)(session.getAttribute("hostname"));
@@ -115,57 +206,154 @@ public class Server implements Singleton
             return "unknown";
         }
 
+        /** Records a result in the database.  Results the database does not know about are logged and dropped. */
+        private static void receive(ResultEnvelope envelope, String remoteHostname)
+        {
+            try
+                {
+                    WorkUnitDatabase.receive(envelope, remoteHostname);
+                }
+            catch (IllegalArgumentException e)
+                {
+                    EventLog.unit("Rejected work unit %d from %s (%s).", envelope.serverID, remoteHostname, e.getMessage());
+                    return;
+                }
+            if ( envelope.errorMessage == null )
+                EventLog.unit("Received work unit %d from %s.", envelope.serverID, remoteHostname);
+            else
+                EventLog.unit("Received work unit %d from %s (FAILED : %s).", envelope.serverID, remoteHostname, envelope.errorMessage);
+        }
+
+        /** How long it takes to handle each message from a client. */
+        private static final Histogram HANDLE_TIME = Metrics.histogram("server.handle");
+
         public void messageReceived(IoSession session, Object message) throws Exception
+        {
+            long start = System.nanoTime();
+            try
+                {
+                    handle(session, message);
+                }
+            finally
+                {
+                    HANDLE_TIME.record(Metrics.microsSince(start));
+                }
+        }
+
+        /** Does whatever a message from a client asks for. */
+        private static void handle(IoSession session, Object message)
         {
             if (message instanceof ResultEnvelope)
                 {
                     ResultEnvelope envelope = (ResultEnvelope)message;
                     String remoteHostname = getHostname(session);
-                    WorkUnitDatabase.receive(envelope, remoteHostname);
-                    if ( envelope.errorMessage == null )
-                        System.out.printf("[ %s ] Received work unit %d from %s.\n", new Date().toString(), envelope.serverID, remoteHostname);
-                    else
-                        System.out.printf("[ %s ] Received work unit %d from %s (FAILED : %s).\n", new Date().toString(), envelope.serverID, remoteHostname, envelope.errorMessage);
+                    WorkUnitDatabase.renewLease(remoteHostname);
+                    receive(envelope, remoteHostname);
+                    if ( session.containsAttribute(OUTBOX_ATTRIBUTE) )
+                        session.write(new Acknowledgement(ImmutableList.of(envelope.serverID)));
                     WorkUnitDatabase.sendOutWork(remoteHostname, session);
                 }
+            else if (message instanceof ResultBatch)
+                {
+                    // ingest the whole batch, then refill the client in one go
+                    ResultBatch batch = (ResultBatch)message;
+                    String remoteHostname = getHostname(session);
+                    WorkUnitDatabase.renewLease(remoteHostname);
+                    List<Long> serverIDs = new ArrayList<>(batch.envelopes.size());
+                    for (ResultEnvelope envelope : batch.envelopes)
+                        {
+                            receive(envelope, remoteHostname);
+                            serverIDs.add(envelope.serverID);
+                        }
+                    if ( session.containsAttribute(OUTBOX_ATTRIBUTE) )
+                        session.write(new Acknowledgement(serverIDs));
+                    WorkUnitDatabase.sendOutWork(remoteHostname, session, batch.envelopes.size());
+                }
+            else if (message instanceof Heartbeat)
+                {
+                    // renew the lease and top up the client in case work arrived while it was full
+                    String remoteHostname = getHostname(session);
+                    WorkUnitDatabase.heartbeat(remoteHostname, (Heartbeat)message);
+                    WorkUnitDatabase.sendOutWork(remoteHostname, session, WorkUnitDatabase.getInFlightLimit(remoteHostname));
+                }
+            else if (message instanceof ClientInfo)
+                {
+                    if ( session.containsAttribute(INFO_ATTRIBUTE) )
+                        update(session, (ClientInfo)message);
+                    else
+                        handshake(session, (ClientInfo)message);
+                }
             else if (message instanceof String)
                 {
+                    // older clients only send their hostname
                     String name = (String)message;
-                    synchronized (KNOWN_CLIENTS)
+                    handshake(session, new ClientInfo(name, Settings.getNumberOfThreads(name), 0L));
+                }
+            else
+                throw new IllegalArgumentException("unrecognized object type");
+        }  
+
+        /** Gives a newly connected client a unique name, records its resources, and sends it its first work. */
+        private static void handshake(IoSession session, ClientInfo info)
+        {
+            String name = info.hostname;
+            synchronized (KNOWN_CLIENTS)
+                {
+                    if (KNOWN_CLIENTS.contains(name))
                         {
-                            if (KNOWN_CLIENTS.contains(name))
+                            // deal with possible duplicate client names
+                            int count = 1;
+                            boolean success = false;
+                            while ( count < 1000 )
                                 {
-                                    // deal with possible duplicate client names
-                                    int count = 1;
-                                    boolean success = false;
-                                    while ( count < 1000 )
+                                    String candidate = String.format("%s-%d", name, count);
+                                    if ( !KNOWN_CLIENTS.contains(candidate) )
                                         {
-                                            String candidate = String.format("%s-%d", name, count);
-                                            if ( !KNOWN_CLIENTS.contains(candidate) )
-                                                {
-                                                    name = candidate;
-                                                    success = true;
-                                                    break;
-                                                }
-                                            count++;
+                                            name = candidate;
+                                            success = true;
+                                            break;
                                         }
-                                    if ( !success )
-                                        throw new IllegalArgumentException("couldn't find unique name for " + name);
+                                    count++;
                                 }
-                            session.setAttribute("hostname", name);
-                            KNOWN_CLIENTS.add(name);
+                            if ( !success )
+                                throw new IllegalArgumentException("couldn't find unique name for " + name);
                         }
-                    int remoteThreads = Settings.getNumberOfThreads(name);
-                    System.out.printf("[ %s ] Connected to client at %s (%s, %d threads).\n", new Date().toString(), name, session.getRemoteAddress(), remoteThreads);
-                    
-                    // send the initial batch of jobs
-                    for (int i=0; i < remoteThreads; i++)
-                        WorkUnitDatabase.sendOutWork(name, session);
+                    session.setAttribute("hostname", name);
+                    KNOWN_CLIENTS.add(name);
                 }
-            else
-                throw new IllegalArgumentException("unrecognized object type");
-        }  
+            register(session, name, info);
+            SESSIONS.put(name, session);
+            WorkUnitDatabase.renewLease(name);
+            EventLog.info("Connected to client at %s (%s, %s).", name, session.getRemoteAddress(), WorkUnitDatabase.describeHost(name));
+            
+            // send the initial batch of jobs, including the prefetched ones
+            WorkUnitDatabase.sendOutWork(name, session, WorkUnitDatabase.getInFlightLimit(name));
+        }
           
+        /**
+         * Records new resources for a client that is already connected, such as a Relay whose rack
+         * has changed, and sends it more work if it now has room.
+         */
+        private static void update(IoSession session, ClientInfo info)
+        {
+            String name = getHostname(session);
+            register(session, name, info);
+            EventLog.info("Updated client %s (%s).", name, WorkUnitDatabase.describeHost(name));
+            WorkUnitDatabase.sendOutWork(name, session, WorkUnitDatabase.getInFlightLimit(name));
+        }
+
+        /** Records what a client reported about itself under the name it was given. */
+        private static void register(IoSession session, String name, ClientInfo info)
+        {
+            ClientInfo named = new ClientInfo(name, info.threads, info.cores, info.memory, info.unitMemory, info.usesOutbox);
+            session.setAttribute(INFO_ATTRIBUTE, named);
+            if ( info.usesOutbox )
+                session.setAttribute(OUTBOX_ATTRIBUTE, Boolean.TRUE);
+            else
+                session.removeAttribute(OUTBOX_ATTRIBUTE);
+            WorkUnitDatabase.registerHost(named);
+        }
+
         public void sessionOpened(IoSession session) throws Exception
         {
             // handshake by sending a string that contains the name of this host
@@ -174,14 +362,16 @@ public class Server implements Singleton
 
         public void sessionIdle(IoSession session, IdleStatus status)
         {
+            // top up the client in case work arrived while it was full
             String remoteHostname = getHostname(session);
-            WorkUnitDatabase.sendOutWork(remoteHostname, session);
+            WorkUnitDatabase.sendOutWork(remoteHostname, session, WorkUnitDatabase.getInFlightLimit(remoteHostname));
         }
 
         public void sessionClosed(IoSession session) throws Exception
         {
             String remoteHostname = getHostname(session);
-            System.out.printf("Lost connection to %s.\n", remoteHostname);
+            EventLog.info("Lost connection to %s.", remoteHostname);
+            SESSIONS.remove(remoteHostname, session);
             WorkUnitDatabase.markAsDead(remoteHostname);
             synchronized (KNOWN_CLIENTS)
                 {
@@ -193,7 +383,11 @@ public class Server implements Singleton
     /** For testing. */
     public static void main(String[] args) throws IOException
     {
-        for (int i=0; i < 100; i++)
+        // resume the previous campaign if there is one
+        int recovered = 0;
+        if ( Settings.USE_JOURNAL )
+            recovered = WorkUnitJournal.start();
+        for (int i=0; i < 100 && recovered == 0; i++)
             {
                 DummyWorkUnit unit = new DummyWorkUnit(i==5); // make unit 6 fail
                 WorkEnvelope workEnvelope = new WorkEnvelope(unit);
@@ -201,5 +395,6 @@ public class Server implements Singleton
             }
         Server.start();
         Server.waitForCompletion();
+        System.exit(0);
     }  
 }
@@ -30,6 +30,16 @@ public class Settings implements Immutable, Singleton
         /** number of available threads for this machine */
         public static final int NUMBER_OF_THREADS;
 
+        /**
+         * If true, WaitingWorkUnits run on virtual threads, or on a separate pool of ordinary threads if this
+         * JVM does not have virtual threads, instead of on the NUMBER_OF_THREADS threads that run other units.
+         * Clients then ask the server for MAX_WAITING_UNITS more units than they have threads.
+         */
+        public static final boolean USE_VIRTUAL_THREADS = false;
+
+        /** The most WaitingWorkUnits to run at once when USE_VIRTUAL_THREADS is on. */
+        public static final int MAX_WAITING_UNITS = 256;
+
         /** current working directory */
         public static final String WORKING_DIRECTORY;
 
@@ -50,21 +60,181 @@ public class Settings implements Immutable, Singleton
         /** Where the scratch directory is for this machine. */
         public static final String GAUSSIAN_SCRATCH_DIRECTORY;
 
+        /** Where a client puts the attachments of the units it is running, in a directory for each unit. */
+        public static final String ATTACHMENT_SCRATCH_DIRECTORY;
+
+        /** If true, clients keep the attachments they fetch in BlobCache so units that share files do not fetch them again. */
+        public static final boolean USE_BLOB_CACHE = true;
+
+        /** Where BlobCache keeps its files.  This should be on the same file system as ATTACHMENT_SCRATCH_DIRECTORY. */
+        public static final String BLOB_CACHE_DIRECTORY;
+
+        /** The most bytes BlobCache keeps on disk. */
+        public static final long BLOB_CACHE_SIZE = 20L * 1024 * 1024 * 1024;
+
+    // Server Persistence Settings
+
+        /** If true, the server journals every transition so a campaign can be resumed after a restart. */
+        public static final boolean USE_JOURNAL = false;
+
+        /** Where the journal is kept. */
+        public static final String JOURNAL_DIRECTORY;
+
+        /** How many transitions to journal before writing a compacted snapshot. */
+        public static final int JOURNAL_SNAPSHOT_INTERVAL = 1_000_000;
+
+        /** If true, the server keeps completed results in ResultStore on disk instead of on the heap. */
+        public static final boolean USE_RESULT_STORE = false;
+
+        /** Where ResultStore keeps its files. */
+        public static final String RESULT_STORE_DIRECTORY;
+
+        /** If true, units that are identical to ones that already completed are not run again.  See ResultCache. */
+        public static final boolean USE_RESULT_CACHE = false;
+
+        /** The most results ResultCache keeps. */
+        public static final int RESULT_CACHE_SIZE = 100_000;
+
+        /** Where ResultCache keeps its results between runs.  Set it to null below to keep them in memory only. */
+        public static final String RESULT_CACHE_FILE;
+
+        /** How big each ResultStore file is in bytes. */
+        public static final int RESULT_STORE_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+        /**
+         * Where the server keeps the attachments that clients send with their results, along with an index of
+         * the files attached with AttachmentService.attach, so that units recovered from the journal can still
+         * get their files as long as the originals have not been moved.
+         */
+        public static final String ATTACHMENT_DIRECTORY;
+
+    // Monitoring Settings
+
+        /** How often in seconds Metrics writes a dump.  Set to zero to only expose metrics over JMX. */
+        public static final int METRICS_INTERVAL = 60;
+
+        /** Where Metrics writes its dumps. */
+        public static final String METRICS_DIRECTORY;
+
+        /** The least important events EventLog prints.  At Level.UNIT, there is an event for every dispatch and result. */
+        public static final EventLog.Level LOG_LEVEL = EventLog.Level.UNIT;
+
+        /** EventLog prints the events of one unit in this many.  Set to 1 to print them for every unit. */
+        public static final int UNIT_EVENT_SAMPLING = 1;
+
+        /** How many events EventLog holds before it starts dropping them.  Rounded up to a power of two. */
+        public static final int EVENT_LOG_CAPACITY = 65_536;
+
     // Network Settings
 
         /** If a client runs, where should it look for the server? */
         public static final String SERVER_HOSTNAME = "dae22.rc.fas.harvard.edu";
         //public static final String SERVER_HOSTNAME = "127.0.0.1"; // use for localhost
 
+        /**
+         * Maps substrings of client hostnames to the Relay their rack should connect to instead of the server.
+         * Hosts that match no entry, and the relays themselves, connect to SERVER_HOSTNAME.
+         */
+        public static final Map<String,String> RELAY_MAP;
+
+        /** Where a client on this host connects: the relay for its rack, or the server if there is none. */
+        public static final String UPSTREAM_HOSTNAME;
+
+        /** A Relay asks the server for work as if it were a client with this many threads. */
+        public static final int RELAY_THREADS = 1024;
+
         /** The server will listen for connections on this port. */
         public static final int LISTENING_PORT = 9876;
 
+        /** The server sends and receives attachments on this port, which is always the one after the port it listens on. */
+        public static final int ATTACHMENT_PORT = LISTENING_PORT + 1;
+
         /** The client will try to connect to the server this number of times. */
         public static final int MAX_CONNECTION_ATTEMPTS = 5;
 
         /** How long to wait between connection attempts in seconds. */
         public static final int CONNECTION_RETRY_DELAY = 5;
 
+        /**
+         * If true, a client keeps its results in an Outbox until the server acknowledges them and reconnects
+         * after losing the connection, sending them again.  Otherwise, a client exits when the connection drops.
+         */
+        public static final boolean USE_OUTBOX = false;
+
+        /** Where clients keep their Outbox files. */
+        public static final String OUTBOX_DIRECTORY;
+
+        /**
+         * If true, the server and clients talk using BinaryCodecFactory.  Otherwise, they use Java serialization.
+         * Both ends must agree.
+         */
+        public static final boolean USE_BINARY_CODEC = false;
+
+        /**
+         * The fewest units beyond its thread count the server keeps out on each client.  These wait in the
+         * client's GeneralThreadService queue so a thread can start on the next unit as soon as it finishes
+         * one, without waiting for a round trip to the server.  Set to zero to disable prefetching.
+         */
+        public static final int PREFETCH_DEPTH = 2;
+
+        /** The most units beyond its thread count the server will keep out on a fast client. */
+        public static final int MAX_PREFETCH_DEPTH = 64;
+
+        /**
+         * The server tries to keep this many seconds of work waiting on each client, based on how fast the
+         * client has been finishing units.  Faster clients get deeper queues, up to MAX_PREFETCH_DEPTH.
+         */
+        public static final double PREFETCH_HORIZON = 2.0;
+
+        /** How much weight the newest measurement gets in each client's moving average of completion rate. */
+        public static final double COMPLETION_RATE_SMOOTHING = 0.1;
+
+        /**
+         * If true, once the queue is empty, clients with free threads are given duplicate copies of the units that
+         * have been running the longest.  The first copy to finish wins and the rest are ignored.
+         */
+        public static final boolean SPECULATIVE_EXECUTION = false;
+
+        /** The most extra copies of one unit to run at once when SPECULATIVE_EXECUTION is on. */
+        public static final int MAX_SPECULATIVE_COPIES = 1;
+
+        /** How long in seconds a unit must have been running before it is copied. */
+        public static final int SPECULATION_THRESHOLD = 30;
+
+        /** How often in seconds a client sends a Heartbeat to the server. */
+        public static final int HEARTBEAT_INTERVAL = 5;
+
+        /**
+         * If the server has not heard from a client with work in flight for this many seconds, it
+         * disconnects the client and requeues its work.  Set to zero to wait for the connection to drop.
+         * Older clients that never send a Heartbeat are only dropped when their connections close.
+         */
+        public static final int HOST_LEASE = 30;
+
+        /**
+         * How long in seconds a unit that is not a TimedWorkUnit may run before the server requeues it.
+         * Set to zero for no limit.
+         */
+        public static final long DEFAULT_UNIT_TIMEOUT = 0;
+
+        /** The server will send at most this many work units to a client in one message. */
+        public static final int MAX_DISPATCH_BATCH_SIZE = 16;
+
+        /**
+         * When looking for work for a client, the server passes over at most this many queued ResourceWorkUnits
+         * that need more cores or memory than the client has before giving up on it for now.
+         */
+        public static final int PLACEMENT_SCAN_DEPTH = 64;
+
+        /** A client will send at most this many results back to the server in one message. */
+        public static final int MAX_RESULT_BATCH_SIZE = 16;
+
+        /**
+         * How long in milliseconds a client may hold on to a finished result so it can be sent along
+         * with others.  Set to zero to send every result as soon as it is ready.
+         */
+        public static final int RESULT_BATCH_WINDOW = 0;
+
     /** static initializer */
     static
     {
@@ -114,6 +284,28 @@ public class Settings implements Immutable, Singleton
         if ( !threadBoolean )
             System.out.printf("Defaulting to %d threads for current host (%s).\n", tempThreads, HOSTNAME);
         NUMBER_OF_THREADS = tempThreads;
+
+        // set relays
+        Map<String,String> tempMap3 = new LinkedHashMap<>();
+        //tempMap3.put("holy2a", "holy2a01.rc.fas.harvard.edu");
+        RELAY_MAP = ImmutableMap.copyOf(tempMap3);
+
+        // a relay connects to the server itself
+        String tempUpstream = SERVER_HOSTNAME;
+        for (String thisHostName : tempMap3.keySet())
+            {
+                if (hostname.contains(thisHostName))
+                    {
+                        String thisRelay = tempMap3.get(thisHostName);
+                        if ( !thisRelay.split("\\.")[0].equalsIgnoreCase(HOSTNAME) )
+                            {
+                                System.out.printf("Using relay %s for current host (%s).\n", thisRelay, HOSTNAME);
+                                tempUpstream = thisRelay;
+                            }
+                        break;
+                    }
+            }
+        UPSTREAM_HOSTNAME = tempUpstream;
         
         // get working directory
         temp = System.getProperty("user.dir") + "/";
@@ -124,6 +316,14 @@ public class Settings implements Immutable, Singleton
         StackTraceElement main = stack[stack.length - 1];
         MAIN_CLASS = main.getClassName();
 
+        // for the server journal
+        JOURNAL_DIRECTORY = WORKING_DIRECTORY + "journal/";
+        RESULT_STORE_DIRECTORY = WORKING_DIRECTORY + "results/";
+        RESULT_CACHE_FILE = WORKING_DIRECTORY + "result-cache.dat";
+        OUTBOX_DIRECTORY = WORKING_DIRECTORY + "outbox/";
+        ATTACHMENT_DIRECTORY = WORKING_DIRECTORY + "attachments/";
+        METRICS_DIRECTORY = WORKING_DIRECTORY + "metrics/";
+
         // for Gaussian jobs
         GAUSSIAN_JOB_DIRECTORY = WORKING_DIRECTORY + "g09/";
         
@@ -171,6 +371,8 @@ public class Settings implements Immutable, Singleton
             }
         
         GAUSSIAN_SCRATCH_DIRECTORY = tempScratch;
+        ATTACHMENT_SCRATCH_DIRECTORY = tempScratch + "attachments/";
+        BLOB_CACHE_DIRECTORY = tempScratch + "blobs/";
     }
 
     /** not instantiable */
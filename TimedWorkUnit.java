@@ -0,0 +1,10 @@
+/**
+ * A WorkUnit that declares how long it may run.  If it runs longer than this on a client, the
+ * server assumes it is hung and sends it to another client.  Units that do not implement this
+ * interface use Settings.DEFAULT_UNIT_TIMEOUT.
+ */
+public interface TimedWorkUnit extends WorkUnit
+{
+    /** How long this unit may run in seconds.  Zero means there is no limit. */
+    public long getTimeout();
+}
@@ -0,0 +1,10 @@
+/**
+ * A WorkUnit that spends most of its time waiting: on an external g09 process, on file I/O, or on
+ * a license server.  When Settings.USE_VIRTUAL_THREADS is on, GeneralThreadService runs these on
+ * virtual threads, up to Settings.MAX_WAITING_UNITS at once, instead of tying up one of its
+ * Settings.NUMBER_OF_THREADS threads each.  Any CPU-heavy part of call() should be wrapped in
+ * GeneralThreadService.runOnCpu so that the cores are not oversubscribed.
+ */
+public interface WaitingWorkUnit extends WorkUnit
+{
+}
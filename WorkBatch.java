@@ -0,0 +1,51 @@
+import java.io.*;
+import java.util.*;
+import com.google.common.collect.*;
+
+/**
+ * A group of WorkEnvelopes that are sent to a client in one network message.
+ */
+public class WorkBatch implements Serializable, Immutable
+{
+    /** For serialization. */
+    public static final long serialVersionUID = 1L;
+
+    /** The work that will be performed. */
+    public final List<WorkEnvelope> envelopes;
+
+    /** Create a WorkBatch from some WorkEnvelopes. */
+    public WorkBatch(List<WorkEnvelope> envelopes)
+    {
+        if ( envelopes == null )
+            throw new NullPointerException("null envelopes");
+        if ( envelopes.size() == 0 )
+            throw new IllegalArgumentException("empty batch");
+        this.envelopes = ImmutableList.copyOf(envelopes);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("WorkBatch of %d envelopes", envelopes.size());
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return Objects.hash(envelopes);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if ( obj == null )
+            return false;
+        if ( obj == this )
+            return true;
+        if ( !(obj instanceof WorkBatch) )
+            return false;
+
+        WorkBatch b = (WorkBatch)obj;
+        return Objects.equals(envelopes, b.envelopes);
+    }
+}
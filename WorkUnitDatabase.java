@@ -2,25 +2,67 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import com.google.common.base.Function;
+import com.google.common.base.Supplier;
 import com.google.common.collect.*;
+import com.google.common.hash.HashCode;
+import com.google.common.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.core.future.WriteFuture;
 
 /**
  * Keeps track of which work units are currently running on other machines.
- * Designed to work with Server.
+ * Designed to work with Server.  There is no global lock: entries are immutable and
+ * move between states by compare-and-set on the entry table, so work for different
+ * hosts can be dispatched and received in parallel.
  */
 public class WorkUnitDatabase implements Singleton
 {
+    /** Whether finished results are moved to ResultStore.  See disableResultStore. */
+    private static volatile boolean USE_RESULT_STORE = Settings.USE_RESULT_STORE;
+
     /** Maps IDs to work units and the threads that are running them. */
-    private static final Map<Long,DatabaseEntry> MAP;
+    private static final ConcurrentMap<Long,DatabaseEntry> MAP;
+
+    /** The work that is to be done, with a lane for each campaign. */
+    private static final FairShareQueue QUEUE;
+
+    /** Maps hostnames to the work units that are currently dispatched to them. */
+    private static final ConcurrentMap<String,HostRecord> HOSTS;
+
+    /** How many entries are in each state. */
+    private static final Multiset<Status> STATUS_COUNTS;
+
+    /** Told whenever any unit finishes. */
+    private static final List<CompletionListener> LISTENERS;
+
+    /** Futures for individual units that someone is waiting on. */
+    private static final ConcurrentMap<Long,SettableFuture<ResultEnvelope>> FUTURES;
+
+    /** Futures that complete the next time all work is done. */
+    private static final Queue<SettableFuture<Void>> FINISHED_FUTURES;
+
+    /** The ResultCache keys of units that have not finished yet, if the cache is in use. */
+    private static final ConcurrentMap<Long,HashCode> CACHE_KEYS;
+
+    /** How long units wait in the queue before they are sent out. */
+    private static final Histogram QUEUE_WAIT = Metrics.histogram("server.queue.wait");
+
+    /** How long it takes from sending a unit out to getting its result back, over all hosts. */
+    private static final Histogram ROUND_TRIP = Metrics.histogram("server.roundtrip");
+
+    /** How long it takes to send work to a client once it has been taken out of the queue. */
+    private static final Histogram DISPATCH_WRITE = Metrics.histogram("server.dispatch.write");
+
+    /** How many times a transition lost a race with another thread and had to be retried. */
+    private static final LongAdder RETRIES = Metrics.counter("server.database.retries");
 
-    /** Synchronizes the parallel lists. */
-    private static final Object INTERNAL_LOCK;
+    /** How many units were put back in the queue. */
+    private static final LongAdder REQUEUED = Metrics.counter("server.requeued");
 
-    /** The work that is to be done. */
-    private static final LinkedList<WorkEnvelope> QUEUE; 
+    /** How many results arrived for units that had already finished. */
+    private static final LongAdder DUPLICATES = Metrics.counter("server.duplicates");
 
     /** Standard constructor. */
     public WorkUnitDatabase()
@@ -31,25 +73,195 @@ public class WorkUnitDatabase implements Singleton
     /** Static initializer. */
     static
     {
-        MAP = new HashMap<>();
-        INTERNAL_LOCK = new Object();
-        QUEUE = new LinkedList<>();
+        MAP = new ConcurrentHashMap<>();
+        QUEUE = new FairShareQueue();
+        HOSTS = new ConcurrentHashMap<>();
+        STATUS_COUNTS = ConcurrentHashMultiset.create();
+        LISTENERS = new CopyOnWriteArrayList<>();
+        FUTURES = new ConcurrentHashMap<>();
+        FINISHED_FUTURES = new ConcurrentLinkedQueue<>();
+        CACHE_KEYS = new ConcurrentHashMap<>();
+        for (final Status status : Status.values())
+            {
+                Metrics.gauge("server.units." + status.toString().toLowerCase(), new Supplier<Integer>()
+                    {
+                        public Integer get()
+                        {
+                            return STATUS_COUNTS.count(status);
+                        }
+                    });
+            }
+    }
+
+    /**
+     * Gets the bookkeeping for the specified host, creating it if necessary.
+     * @param hostname the host to look up
+     * @return the record for that host
+     */
+    private static HostRecord getHost(String hostname)
+    {
+        HostRecord host = HOSTS.get(hostname);
+        if ( host == null )
+            {
+                HostRecord newHost = new HostRecord(hostname, Settings.getNumberOfThreads(hostname));
+                host = HOSTS.putIfAbsent(hostname, newHost);
+                if ( host == null )
+                    {
+                        host = newHost;
+                        final HostRecord record = newHost;
+                        Metrics.gauge("server.rate." + hostname, new Supplier<Double>()
+                            {
+                                public Double get()
+                                {
+                                    return record.getRate();
+                                }
+                            });
+                        Metrics.gauge("server.inflight." + hostname, new Supplier<Integer>()
+                            {
+                                public Integer get()
+                                {
+                                    return record.inFlight.size();
+                                }
+                            });
+                    }
+            }
+        return host;
+    }
+
+    /**
+     * Records the resources a host reported when it connected.  Hosts that never register are
+     * assumed to have Settings.getNumberOfThreads threads, one core per thread, and unknown memory.
+     * A host that was marked as dead can be given work again once it registers.  Its lease is
+     * not enforced until it sends a Heartbeat.
+     * @param info what the host reported
+     */
+    public static void registerHost(ClientInfo info)
+    {
+        HostRecord host = getHost(info.hostname);
+        host.dead = false;
+        host.heartbeats = false;
+        host.memory = info.memory;
+        host.unitMemory = info.unitMemory;
+        host.cores = info.cores;
+        host.setThreads(info.threads);
+    }
+
+    /**
+     * Determines how many units may be out on a host at once: one per thread, plus units that
+     * wait on the client so that its threads never sit idle waiting for the next unit to arrive.
+     * The number that wait covers Settings.PREFETCH_HORIZON seconds of work at the rate the host
+     * has been finishing units, between Settings.PREFETCH_DEPTH and Settings.MAX_PREFETCH_DEPTH.
+     * @param hostname the host to check
+     * @return the most units that will be sent out to that host at once
+     */
+    public static int getInFlightLimit(String hostname)
+    {
+        return getHost(hostname).capacity;
+    }
+
+    /**
+     * Describes the resources and measured speed of a host.
+     * @param hostname the host to describe
+     * @return a summary for logging
+     */
+    public static String describeHost(String hostname)
+    {
+        HostRecord host = getHost(hostname);
+        return String.format("%d threads, %d cores, %d MB, %.2f units/s, %d in flight max", host.threads, host.cores, host.memory / (1024*1024), host.getRate(), host.capacity);
+    }
+
+    /**
+     * Atomically replaces an entry and keeps the indices consistent.
+     * @param oldEntry the entry that is expected to be in the table
+     * @param newEntry the entry to replace it with
+     * @return true if the replacement happened, false if some other thread changed the entry first
+     */
+    private static boolean transition(DatabaseEntry oldEntry, DatabaseEntry newEntry)
+    {
+        // hosts that are taking the unit list it before it is theirs, so a concurrent markAsDead cannot miss it
+        for (String hostname : newEntry.getHosts())
+            {
+                if ( !oldEntry.isOn(hostname) )
+                    getHost(hostname).inFlight.add(newEntry.serverID);
+            }
+        if ( !MAP.replace(oldEntry.serverID, oldEntry, newEntry) )
+            {
+                // unlist the unit unless the thread that got there first gave it to the same host
+                DatabaseEntry current = MAP.get(oldEntry.serverID);
+                for (String hostname : newEntry.getHosts())
+                    {
+                        if ( !oldEntry.isOn(hostname) && ( current == null || !current.isOn(hostname) ) )
+                            getHost(hostname).inFlight.remove(newEntry.serverID);
+                    }
+                RETRIES.increment();
+                return false;
+            }
+
+        // count the new state before uncounting the old one so finished() never sees a false zero
+        if ( newEntry.status != oldEntry.status )
+            {
+                STATUS_COUNTS.add(newEntry.status);
+                STATUS_COUNTS.remove(oldEntry.status);
+            }
+
+        // hosts that are no longer running the unit give back their slots
+        for (String hostname : oldEntry.getHosts())
+            {
+                if ( !newEntry.isOn(hostname) )
+                    {
+                        HostRecord host = getHost(hostname);
+                        host.inFlight.remove(oldEntry.serverID);
+                        host.started.remove(oldEntry.serverID);
+                        host.release(oldEntry.workUnit);
+                    }
+            }
+        return true;
     }
 
     /** Submit a job to the queue. */
     public static void submit(WorkEnvelope workEnvelope, boolean addToHead)
     {
-        DatabaseEntry entry = new DatabaseEntry(workEnvelope.serverID, workEnvelope.workUnit, null, Status.SUBMITTED, null, null);
-        synchronized (INTERNAL_LOCK)
-        {
-            if ( MAP.containsKey(workEnvelope.serverID) )
-                throw new IllegalArgumentException("serverID already in database, cannot create new key");
-            if ( addToHead )
-                QUEUE.addFirst(workEnvelope);
-            else
-                QUEUE.add(workEnvelope);
-            MAP.put(workEnvelope.serverID, entry);
-        }
+        submit(workEnvelope, addToHead, null);
+    }
+
+    /**
+     * Submit a job to the queue as part of a campaign.  Use Campaign.submit instead.
+     * @param workEnvelope the work to do
+     * @param campaign the campaign to tell when the work is done
+     */
+    public static void submit(WorkEnvelope workEnvelope, Campaign campaign)
+    {
+        submit(workEnvelope, false, campaign);
+    }
+
+    /** Submit a job to the queue, or complete it right away if its result is in ResultCache. */
+    private static void submit(WorkEnvelope workEnvelope, boolean addToHead, Campaign campaign)
+    {
+        DatabaseEntry entry = new DatabaseEntry(workEnvelope.serverID, workEnvelope.workUnit, null, Status.SUBMITTED, null, null, campaign, System.currentTimeMillis(), ImmutableSet.<String>of());
+        HashCode key = Settings.USE_RESULT_CACHE ? ResultCache.key(workEnvelope.workUnit) : null;
+        Result cachedResult = key == null ? null : ResultCache.get(key);
+        if ( cachedResult != null )
+            {
+                DatabaseEntry newEntry = entry.finished(Settings.HOSTNAME, cachedResult, null);
+                if ( MAP.putIfAbsent(workEnvelope.serverID, newEntry) != null )
+                    throw new IllegalArgumentException("serverID already in database, cannot create new key");
+                STATUS_COUNTS.add(Status.COMPLETED);
+                store(newEntry);
+                WorkUnitJournal.submitted(workEnvelope);
+                WorkUnitJournal.completed(workEnvelope.serverID, Settings.HOSTNAME, cachedResult);
+                fireFinished(newEntry, new ResultEnvelope(cachedResult, null, Settings.HOSTNAME, workEnvelope.serverID));
+                return;
+            }
+        if ( MAP.putIfAbsent(workEnvelope.serverID, entry) != null )
+            throw new IllegalArgumentException("serverID already in database, cannot create new key");
+        if ( key != null )
+            CACHE_KEYS.put(workEnvelope.serverID, key);
+        STATUS_COUNTS.add(Status.SUBMITTED);
+        WorkUnitJournal.submitted(workEnvelope);
+        if ( addToHead )
+            QUEUE.addFirst(workEnvelope, campaign);
+        else
+            QUEUE.add(workEnvelope, campaign);
     }
 
     /** Submit a job to the queue. */
@@ -58,162 +270,753 @@ public class WorkUnitDatabase implements Singleton
         submit(workEnvelope, false);
     }
 
+    /**
+     * Takes a job out of the queue and marks it as sent out to the specified client,
+     * if there is any work and the client has room for it.  ResourceWorkUnits that need
+     * more cores or memory than the client has are passed over and left at the front of
+     * the queue for other clients.  A unit that the client could run once some of its
+     * current work finishes is also left in the queue, and nothing is sent to the client
+     * until then, so that a stream of smaller units cannot keep a large unit waiting forever.
+     * @param remoteHostname the client that will run the work
+     * @return the work to send, or null if there is nothing to send
+     */
+    public static WorkEnvelope checkOut(String remoteHostname)
+    {
+        // return if there is no work to send out
+        if ( QUEUE.isEmpty() && !Settings.SPECULATIVE_EXECUTION )
+            return null;
+
+        // check if this client is gone or full
+        HostRecord host = getHost(remoteHostname);
+        int sweeps = host.sweeps.get();
+        if ( host.dead || !host.hasRoom() )
+            return null;
+
+        // units that were passed over, in queue order
+        List<WorkEnvelope> skipped = null;
+        try
+            {
+                while (true)
+                    {
+                        // get one piece of work
+                        WorkEnvelope envelope = QUEUE.poll();
+                        if ( envelope == null )
+                            {
+                                // the queue has drained, so this client can help with the stragglers
+                                if ( Settings.SPECULATIVE_EXECUTION && skipped == null )
+                                    return checkOutCopy(host, remoteHostname, sweeps);
+                                return null;
+                            }
+
+                        // skip work that finished after it was requeued, since a late result can arrive from a host whose lease expired
+                        DatabaseEntry oldEntry = MAP.get(envelope.serverID);
+                        if ( oldEntry == null || oldEntry.status != Status.SUBMITTED )
+                            {
+                                if ( oldEntry != null )
+                                    QUEUE.refund(oldEntry.campaign);
+                                continue;
+                            }
+
+                        // leave work that does not fit for other clients
+                        if ( !host.fits(oldEntry.workUnit) || !host.tryReserve(oldEntry.workUnit) )
+                            {
+                                if ( skipped == null )
+                                    skipped = new ArrayList<>();
+                                skipped.add(envelope);
+                                if ( host.fits(oldEntry.workUnit) || skipped.size() >= Settings.PLACEMENT_SCAN_DEPTH )
+                                    return null;
+                                continue;
+                            }
+
+                        // the reservation is handed over to the entry and released when it leaves SENT_OUT
+                        DatabaseEntry newEntry = oldEntry.sentOut(remoteHostname);
+                        if ( !transition(oldEntry, newEntry) )
+                            {
+                                // the unit finished in the meantime, so its lane did not really use this turn
+                                host.release(oldEntry.workUnit);
+                                QUEUE.refund(oldEntry.campaign);
+                                continue;
+                            }
+                        if ( wasSwept(host, sweeps) )
+                            {
+                                abandon(envelope.serverID, remoteHostname);
+                                return null;
+                            }
+                        WorkUnitJournal.dispatched(envelope.serverID, remoteHostname);
+                        QUEUE_WAIT.record((newEntry.since - oldEntry.since) * 1000L);
+                        host.dispatched.increment();
+                        return envelope;
+                    }
+            }
+        finally
+            {
+                // put the work that was passed over back where it was
+                if ( skipped != null )
+                    {
+                        for (int i=skipped.size()-1; i >= 0; i--)
+                            {
+                                WorkEnvelope envelope = skipped.get(i);
+                                DatabaseEntry entry = MAP.get(envelope.serverID);
+                                if ( entry != null && entry.status == Status.SUBMITTED )
+                                    QUEUE.pushBack(envelope, entry.campaign);
+                                else if ( entry != null )
+                                    QUEUE.refund(entry.campaign);
+                            }
+                    }
+            }
+    }
+
+    /**
+     * Finds the unit that has been running the longest on other clients and marks a duplicate
+     * copy of it as sent out to the specified client.  Whichever copy finishes first wins.
+     * @param target the record of the client that will run the copy
+     * @param remoteHostname the client that will run the copy
+     * @param sweeps what target.sweeps was before the caller looked at the client
+     * @return the copy to send, or null if no unit qualifies or the client has no room for it
+     */
+    private static WorkEnvelope checkOutCopy(HostRecord target, String remoteHostname, int sweeps)
+    {
+        long cutoff = System.currentTimeMillis() - Settings.SPECULATION_THRESHOLD * 1000L;
+        while (true)
+            {
+                DatabaseEntry oldest = null;
+                for (HostRecord host : HOSTS.values())
+                    {
+                        for (Long serverID : host.inFlight)
+                            {
+                                DatabaseEntry entry = MAP.get(serverID);
+                                if ( entry == null || entry.status != Status.SENT_OUT || entry.isOn(remoteHostname) ||
+                                     entry.speculativeHosts.size() >= Settings.MAX_SPECULATIVE_COPIES || entry.since > cutoff ||
+                                     !target.fits(entry.workUnit) )
+                                    continue;
+                                if ( oldest == null || entry.since < oldest.since )
+                                    oldest = entry;
+                            }
+                    }
+                if ( oldest == null || !target.tryReserve(oldest.workUnit) )
+                    return null;
+                if ( transition(oldest, oldest.withCopy(remoteHostname)) )
+                    {
+                        if ( wasSwept(target, sweeps) )
+                            {
+                                abandon(oldest.serverID, remoteHostname);
+                                return null;
+                            }
+                        EventLog.unit("Speculatively running a copy of work unit %d (out on %s) on %s.", oldest.serverID, oldest.hostname, remoteHostname);
+                        return new WorkEnvelope(oldest.workUnit, Settings.HOSTNAME, oldest.serverID);
+                    }
+                target.release(oldest.workUnit);
+            }
+    }
+
+    /**
+     * Checks whether markAsDead has gone through a host since a dispatch to it started.  A unit that
+     * was marked as sent to the host while that happened may have been missed, so the dispatcher
+     * has to take it back itself.
+     * @param host the host
+     * @param sweeps what host.sweeps was before the dispatch looked at the host
+     * @return true if the host is dead or was swept in the meantime
+     */
+    private static boolean wasSwept(HostRecord host, int sweeps)
+    {
+        return host.dead || host.sweeps.get() != sweeps;
+    }
+
+    /**
+     * Takes a unit away from a host.  If copies of the unit are still running on other hosts,
+     * only this copy is dropped.  Otherwise, the unit goes back to SUBMITTED at the front of its lane.
+     * @param serverID the unit to take away
+     * @param remoteHostname the host to take it away from
+     * @return the work that was requeued, or null if nothing was requeued
+     */
+    private static WorkEnvelope abandon(long serverID, String remoteHostname)
+    {
+        while (true)
+            {
+                DatabaseEntry oldEntry = MAP.get(serverID);
+                if ( oldEntry == null || !oldEntry.isOn(remoteHostname) )
+                    return null;
+                if ( oldEntry.getHosts().size() > 1 )
+                    {
+                        if ( transition(oldEntry, oldEntry.without(remoteHostname)) )
+                            return null;
+                    }
+                else if ( transition(oldEntry, oldEntry.requeued()) )
+                    {
+                        WorkUnitJournal.requeued(serverID);
+                        REQUEUED.increment();
+                        WorkEnvelope envelope = new WorkEnvelope(oldEntry.workUnit, Settings.HOSTNAME, serverID);
+                        QUEUE.addFirst(envelope, oldEntry.campaign);
+                        return envelope;
+                    }
+            }
+    }
+
+    /**
+     * Takes up to the specified number of jobs out of the queue and marks them as sent out
+     * to the specified client, stopping early if the queue runs dry or the client is full.
+     * @param remoteHostname the client that will run the work
+     * @param maxUnits the most units to take
+     * @return the work to send, which may be empty
+     */
+    public static List<WorkEnvelope> checkOut(String remoteHostname, int maxUnits)
+    {
+        List<WorkEnvelope> envelopes = new ArrayList<>(Math.min(maxUnits, Settings.MAX_DISPATCH_BATCH_SIZE));
+        for (int i=0; i < maxUnits; i++)
+            {
+                WorkEnvelope envelope = checkOut(remoteHostname);
+                if ( envelope == null )
+                    break;
+                envelopes.add(envelope);
+            }
+        return envelopes;
+    }
+
+    /**
+     * Puts work that could not be delivered back in the queue.
+     * @param envelope work that was checked out with checkOut
+     * @param remoteHostname the client it was checked out to
+     */
+    private static void returnToQueue(WorkEnvelope envelope, String remoteHostname)
+    {
+        abandon(envelope.serverID, remoteHostname);
+    }
+
     /** Take a job out of the queue and send it to a client. */
     public static void sendOutWork(String remoteHostname, IoSession session)
     {
-        synchronized (INTERNAL_LOCK)
-        {
-            // return if there is no work to send out
-            if ( QUEUE.size() == 0 )
-                return;
-
-            // check how many jobs are running on this client
-            int alreadyRunning = 0;
-            for (Long serverID : MAP.keySet())
-                {
-                    DatabaseEntry entry = MAP.get(serverID);
-                    if ( entry.status == Status.SENT_OUT && entry.hostname.equals(remoteHostname) )
-                        alreadyRunning++;
-                }
+        sendOutWork(remoteHostname, session, 1);
+    }
 
-            // check if this client is full
-            int remoteThreads = Settings.getNumberOfThreads(remoteHostname);
-            if ( alreadyRunning >= remoteThreads )
-                return;
+    /**
+     * Takes up to the specified number of jobs out of the queue and sends them to a client.
+     * Several jobs are packed into WorkBatches of up to Settings.MAX_DISPATCH_BATCH_SIZE
+     * units so that they cost one message instead of one message each.
+     * @param remoteHostname the client that will run the work
+     * @param session the connection to the client
+     * @param maxUnits the most units to send
+     */
+    public static void sendOutWork(String remoteHostname, IoSession session, int maxUnits)
+    {
+        while ( maxUnits > 0 )
+            {
+                List<WorkEnvelope> envelopes = checkOut(remoteHostname, Math.min(maxUnits, Settings.MAX_DISPATCH_BATCH_SIZE));
+                if ( envelopes.size() == 0 )
+                    return;
+                maxUnits -= envelopes.size();
 
-            // get one piece of work and check the consistency of the database
-            WorkEnvelope envelope = QUEUE.poll();
-            if ( !MAP.containsKey(envelope.serverID)  )
-                throw new IllegalArgumentException("database is in an inconsistent state");
-            DatabaseEntry oldEntry = MAP.get(envelope.serverID);
-            if ( oldEntry.status != Status.SUBMITTED )
-                throw new IllegalArgumentException("expected status to be SUBMITTED to change it to SENT_OUT");
-            
-            // send out the work
-            try
-                {
-                    WriteFuture future = session.write(envelope);
-                    System.out.printf("[ %s ] Sent work unit %d to %s.\n", new Date().toString(), envelope.serverID, remoteHostname);
+                // send out the work
+                try
+                    {
+                        if ( envelopes.size() == 1 )
+                            {
+                                WorkEnvelope envelope = envelopes.get(0);
+                                WriteFuture future = session.write(envelope);
+                                Metrics.timeWrite(future, DISPATCH_WRITE);
+                                EventLog.unit("Sent work unit %d to %s.", envelope.serverID, remoteHostname);
+                            }
+                        else
+                            {
+                                WriteFuture future = session.write(new WorkBatch(envelopes));
+                                Metrics.timeWrite(future, DISPATCH_WRITE);
+                                for (WorkEnvelope envelope : envelopes)
+                                    EventLog.unit("Sent work unit %d to %s in a batch of %d.", envelope.serverID, remoteHostname, envelopes.size());
+                            }
+                    }
+                catch (Exception e)
+                    {
+                        // print out the problem
+                        EventLog.warning("Problem sending work units %s to %s: %s", describe(envelopes), remoteHostname, e);
+                        e.printStackTrace();
 
-                    // update database
-                    DatabaseEntry newEntry = new DatabaseEntry(envelope.serverID, oldEntry.workUnit, remoteHostname, Status.SENT_OUT, null, null);
-                    MAP.put(envelope.serverID, newEntry);
-                }
-            catch (Exception e)
-                {
-                    // print out the problem
-                    System.out.printf("Problem sending work unit %d:\n", envelope.serverID);
-                    e.printStackTrace();
+                        // return the jobs to the queue
+                        for (WorkEnvelope envelope : envelopes)
+                            returnToQueue(envelope, remoteHostname);
+                        return;
+                    }
+            }
+    }
 
-                    // return the job to the queue
-                    QUEUE.add(envelope);
-                }
-        }
+    /**
+     * Lists the IDs of some work.
+     * @param envelopes the work to describe
+     * @return a comma-separated list of serverIDs
+     */
+    private static String describe(List<WorkEnvelope> envelopes)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (WorkEnvelope e : envelopes)
+            {
+                if ( builder.length() > 0 )
+                    builder.append(", ");
+                builder.append(e.serverID);
+            }
+        return builder.toString();
     }
 
     /** Receive a work unit. */
     public static ResultEnvelope receive(ResultEnvelope resultEnvelope, String origin)
     {
         long serverID = resultEnvelope.serverID;
-        synchronized (INTERNAL_LOCK)
+        HostRecord host = getHost(origin);
+        host.recordCompletion();
+        WorkUnit hungUnit = host.hung.remove(serverID);
+        if ( hungUnit != null )
+            host.release(hungUnit);
+        DatabaseEntry newEntry = null;
+        while ( newEntry == null )
             {
-                if ( !MAP.containsKey(serverID) )
-                    throw new IllegalArgumentException("expected to find key");
                 DatabaseEntry oldEntry = MAP.get(serverID);
-                if ( oldEntry.status != Status.SENT_OUT )
-                    throw new IllegalArgumentException("expected status to be SENT_OUT");
-                DatabaseEntry newEntry = null;
-                if ( resultEnvelope.result != null )
-                    newEntry = new DatabaseEntry(serverID, oldEntry.workUnit, origin, Status.COMPLETED, resultEnvelope.result, null);
-                else
-                    newEntry = new DatabaseEntry(serverID, oldEntry.workUnit, origin, Status.FAILED, null, resultEnvelope.errorMessage);
-                MAP.put(serverID, newEntry);
+                if ( oldEntry == null )
+                    throw new IllegalArgumentException("expected to find key");
+                if ( oldEntry.status == Status.COMPLETED || oldEntry.status == Status.FAILED )
+                    {
+                        // the first copy to finish wins and the others are ignored
+                        DUPLICATES.increment();
+                        EventLog.unit("Ignored duplicate copy of work unit %d from %s.", serverID, origin);
+                        return resultEnvelope;
+                    }
+
+                // a unit that is SUBMITTED again was taken away from a host that turned out to be alive, so take its result anyway
+
+                // a copy that fails while other copies are still running is just dropped
+                if ( resultEnvelope.result == null && oldEntry.isOn(origin) && oldEntry.getHosts().size() > 1 )
+                    {
+                        if ( transition(oldEntry, oldEntry.without(origin)) )
+                            return resultEnvelope;
+                        continue;
+                    }
+
+                DatabaseEntry finishedEntry = oldEntry.finished(origin, resultEnvelope.result, resultEnvelope.errorMessage);
+                if ( transition(oldEntry, finishedEntry) )
+                    {
+                        newEntry = finishedEntry;
+                        store(finishedEntry);
+                        if ( oldEntry.status == Status.SENT_OUT )
+                            {
+                                long roundTrip = (finishedEntry.since - oldEntry.since) * 1000L;
+                                ROUND_TRIP.record(roundTrip);
+                                host.roundTrip.record(roundTrip);
+                            }
+                        if ( finishedEntry.status == Status.COMPLETED )
+                            host.completed.increment();
+                        else
+                            host.failed.increment();
+                    }
             }
+        if ( newEntry.status == Status.COMPLETED )
+            WorkUnitJournal.completed(serverID, origin, resultEnvelope.result);
+        else
+            WorkUnitJournal.failed(serverID, origin, newEntry.errorMessage);
+        HashCode key = CACHE_KEYS.remove(serverID);
+        if ( key != null && newEntry.status == Status.COMPLETED )
+            ResultCache.put(key, resultEnvelope.result);
+        fireFinished(newEntry, resultEnvelope);
         return resultEnvelope;
     }
 
+    /**
+     * Tells everyone who is waiting that a unit has finished.
+     * @param entry the entry for the finished unit
+     * @param envelope the result or error message
+     */
+    private static void fireFinished(DatabaseEntry entry, ResultEnvelope envelope)
+    {
+        for (CompletionListener listener : LISTENERS)
+            {
+                try
+                    {
+                        listener.unitFinished(envelope);
+                    }
+                catch (Exception e)
+                    {
+                        System.out.println("Completion listener failed:");
+                        e.printStackTrace();
+                    }
+            }
+        SettableFuture<ResultEnvelope> future = FUTURES.remove(entry.serverID);
+        if ( future != null )
+            future.set(envelope);
+        if ( entry.campaign != null )
+            entry.campaign.unitFinished(envelope);
+        if ( finished() )
+            {
+                SettableFuture<Void> finishedFuture = null;
+                while ( (finishedFuture = FINISHED_FUTURES.poll()) != null )
+                    finishedFuture.set(null);
+            }
+    }
+
+    /**
+     * Keeps finished results on the heap instead of in ResultStore, whatever Settings.USE_RESULT_STORE
+     * says.  For processes like Relay that purge results seconds after they arrive, since ResultStore
+     * never reclaims the space they took.  Call this before any work is submitted.
+     */
+    public static void disableResultStore()
+    {
+        USE_RESULT_STORE = false;
+    }
+
+    /**
+     * Adds a listener that is told whenever any unit finishes.
+     * @param listener the listener to add
+     */
+    public static void addListener(CompletionListener listener)
+    {
+        LISTENERS.add(listener);
+    }
+
+    /**
+     * Removes a listener added with addListener.
+     * @param listener the listener to remove
+     */
+    public static void removeListener(CompletionListener listener)
+    {
+        LISTENERS.remove(listener);
+    }
+
+    /**
+     * Gets a future that completes when the specified unit finishes.  If the unit has already
+     * finished, the future is already complete.
+     * @param serverID the ID of the unit
+     * @return the future result or error message
+     */
+    public static ListenableFuture<ResultEnvelope> getFuture(long serverID)
+    {
+        SettableFuture<ResultEnvelope> newFuture = SettableFuture.create();
+        SettableFuture<ResultEnvelope> future = FUTURES.putIfAbsent(serverID, newFuture);
+        if ( future == null )
+            future = newFuture;
+
+        // the unit may have finished before the future was registered
+        DatabaseEntry entry = MAP.get(serverID);
+        if ( entry == null )
+            {
+                FUTURES.remove(serverID, future);
+                future.setException(new IllegalArgumentException("unknown serverID " + serverID));
+            }
+        else if ( entry.status == Status.COMPLETED )
+            {
+                FUTURES.remove(serverID, future);
+                future.set(new ResultEnvelope(getResult(serverID), null, entry.hostname, serverID));
+            }
+        else if ( entry.status == Status.FAILED )
+            {
+                FUTURES.remove(serverID, future);
+                future.set(new ResultEnvelope(null, entry.errorMessage, entry.hostname, serverID));
+            }
+        return future;
+    }
+
+    /**
+     * Gets a future that completes the next time there is no work left in the queue or out on
+     * clients.  If that is already the case, the future is already complete.
+     * @return the future
+     */
+    public static ListenableFuture<Void> whenFinished()
+    {
+        SettableFuture<Void> future = SettableFuture.create();
+        FINISHED_FUTURES.add(future);
+        if ( finished() && FINISHED_FUTURES.remove(future) )
+            future.set(null);
+        return future;
+    }
+
+    /**
+     * Moves the result of a finished entry into ResultStore so that it does not stay on the heap.
+     * This is only done once the entry is in MAP, so a copy that loses the race to finish a unit
+     * never touches the store.  Until the entry is replaced, getResult finds the result on the entry.
+     * @param entry the entry that was just put in MAP
+     */
+    private static void store(DatabaseEntry entry)
+    {
+        if ( entry.result == null || !USE_RESULT_STORE )
+            return;
+        long location = ResultStore.put(entry.serverID, entry.result);
+
+        // the entry may have been purged in the meantime
+        if ( !MAP.replace(entry.serverID, entry, entry.stored()) )
+            ResultStore.remove(entry.serverID, location);
+    }
+
     /** Mark all the work that has been dispatched to the specified host as dead. */
     public static void markAsDead(String remoteHostname)
     {
         // determine which entries are dead
         List<WorkEnvelope> newWork = new ArrayList<>();
-        synchronized (INTERNAL_LOCK)
+        HostRecord host = HOSTS.get(remoteHostname);
+        if ( host != null )
             {
-                List<Long> toBeRequeued = new ArrayList<>();
-                for (Long serverID : MAP.keySet())
+                // dispatches that are under way check these afterwards and take back anything the sweep misses
+                host.dead = true;
+                host.sweeps.incrementAndGet();
+
+                // copy the IDs because requeuing entries modifies the index
+                for (Long serverID : new ArrayList<>(host.inFlight))
                     {
-                        DatabaseEntry oldEntry = MAP.get(serverID);
-                        if ( oldEntry.status == Status.SENT_OUT && oldEntry.hostname.equals(remoteHostname) )
-                            {
-                                toBeRequeued.add(serverID);
-                                WorkEnvelope envelope = new WorkEnvelope(oldEntry.workUnit, Settings.HOSTNAME, oldEntry.serverID);
-                                newWork.add(envelope);
-                            }
+                        WorkEnvelope envelope = abandon(serverID, remoteHostname);
+                        if ( envelope != null )
+                            newWork.add(envelope);
+                    }
+                for (Long serverID : new ArrayList<>(host.hung.keySet()))
+                    {
+                        WorkUnit hungUnit = host.hung.remove(serverID);
+                        if ( hungUnit != null )
+                            host.release(hungUnit);
                     }
-                MAP.keySet().removeAll(toBeRequeued);
-            }   
+            }
 
-        // requeue work
-        for (WorkEnvelope e : newWork)
-            WorkUnitDatabase.submit(e, true);
         if ( newWork.size() > 0 )
+            EventLog.info("%d units (%s) that were previously dispatched to %s have been requeued.", newWork.size(), describe(newWork), remoteHostname);
+        else
+            EventLog.info("No work to requeue for %s.", remoteHostname);
+    }
+
+    /**
+     * Renews the lease of a host.  Any message from a host counts as a sign of life.
+     * @param remoteHostname the host that was heard from
+     */
+    public static void renewLease(String remoteHostname)
+    {
+        getHost(remoteHostname).lastHeard = System.currentTimeMillis();
+    }
+
+    /**
+     * Renews the lease of a host and notes when its units started running, so that their
+     * deadlines can be enforced.  From now on the host is disconnected if it goes quiet.
+     * @param remoteHostname the host that sent the heartbeat
+     * @param heartbeat the units that are running on the host
+     */
+    public static void heartbeat(String remoteHostname, Heartbeat heartbeat)
+    {
+        HostRecord host = getHost(remoteHostname);
+        long now = System.currentTimeMillis();
+        host.lastHeard = now;
+        host.heartbeats = true;
+        for (Long serverID : heartbeat.running)
             {
-                String workString = "";
-                for (WorkEnvelope e : newWork)
-                    workString += String.format("%d, ", e.serverID);
-                workString = workString.substring(0, workString.length()-2);
-                System.out.printf("[ %s ] %d units (%s) that were previously dispatched to %s have been requeued.\n", new Date().toString(), newWork.size(), workString, remoteHostname);
+                if ( host.inFlight.contains(serverID) && !host.hung.containsKey(serverID) )
+                    host.started.putIfAbsent(serverID, now);
             }
-        else
-            System.out.printf("[ %s ] No work to requeue for %s.\n", new Date().toString(), remoteHostname);
     }
 
-    /** Forget about all jobs that have completed successfully or failed to save memory. */
-    public static void purge()
+    /**
+     * How long a unit may run before it is taken away from its host.
+     * @param workUnit the unit
+     * @return the timeout in seconds, or zero if there is none
+     */
+    private static long getTimeout(WorkUnit workUnit)
     {
-        synchronized (INTERNAL_LOCK)
+        if ( workUnit instanceof TimedWorkUnit )
+            return ((TimedWorkUnit)workUnit).getTimeout();
+        return Settings.DEFAULT_UNIT_TIMEOUT;
+    }
+
+    /**
+     * How many cores a unit needs.  Each core takes one of its host's slots.
+     * @param workUnit the unit
+     * @return the number of cores, which is one unless the unit is a ResourceWorkUnit
+     */
+    private static int getCores(WorkUnit workUnit)
+    {
+        if ( workUnit instanceof ResourceWorkUnit )
+            return Math.max(1, ((ResourceWorkUnit)workUnit).getCores());
+        return 1;
+    }
+
+    /**
+     * How much memory a unit needs.
+     * @param workUnit the unit
+     * @return the memory in bytes, which is zero unless the unit is a ResourceWorkUnit
+     */
+    private static long getMemory(WorkUnit workUnit)
+    {
+        if ( workUnit instanceof ResourceWorkUnit )
+            return Math.max(0L, ((ResourceWorkUnit)workUnit).getMemory());
+        return 0L;
+    }
+
+    /**
+     * Requeues the units that have run past their deadlines and finds the hosts whose leases
+     * have run out.  The caller should disconnect those hosts, which requeues the rest of their
+     * work through markAsDead.  Hosts that have never sent a Heartbeat, such as older clients,
+     * hold no lease and keep their work until their connections close.  Units that are taken away are not cancelled on the host, so
+     * their results may still arrive and are accepted if the unit has not finished elsewhere.
+     * @return the hosts whose leases have expired
+     */
+    public static List<String> requeueExpired()
+    {
+        long now = System.currentTimeMillis();
+        List<String> expiredHosts = new ArrayList<>();
+        List<WorkEnvelope> newWork = new ArrayList<>();
+        for (Map.Entry<String,HostRecord> e : HOSTS.entrySet())
             {
-                List<Long> toBePurged = new ArrayList<>();
-                for (Long serverID : MAP.keySet())
+                String remoteHostname = e.getKey();
+                HostRecord host = e.getValue();
+                if ( host.inFlight.isEmpty() )
+                    continue;
+                if ( Settings.HOST_LEASE > 0 && host.heartbeats && now - host.lastHeard > Settings.HOST_LEASE * 1000L )
+                    {
+                        expiredHosts.add(remoteHostname);
+                        continue;
+                    }
+                for (Map.Entry<Long,Long> s : host.started.entrySet())
                     {
+                        long serverID = s.getKey();
                         DatabaseEntry entry = MAP.get(serverID);
-                        if ( entry.status == Status.COMPLETED || entry.status == Status.FAILED )
-                            toBePurged.add(serverID);
+                        if ( entry == null || !entry.isOn(remoteHostname) )
+                            continue;
+                        long timeout = getTimeout(entry.workUnit);
+                        if ( timeout <= 0 || now - s.getValue() <= timeout * 1000L )
+                            continue;
+                        // keep the slots until the unit finishes or the host goes away so the host is not given more work than it has threads
+                        host.reserve(entry.workUnit);
+                        host.hung.put(serverID, entry.workUnit);
+                        WorkEnvelope envelope = abandon(serverID, remoteHostname);
+                        if ( envelope != null )
+                            newWork.add(envelope);
+                        EventLog.warning("Work unit %d has been running on %s for more than %d seconds.", serverID, remoteHostname, timeout);
                     }
-                for (Long serverID : toBePurged)
-                    MAP.remove(serverID);
             }
+        if ( newWork.size() > 0 )
+            EventLog.info("%d units (%s) have been requeued after running past their deadlines.", newWork.size(), describe(newWork));
+        return expiredHosts;
     }
 
-    /** Check if all work is done. */
-    public static boolean finished()
+    /** Forget about all jobs that have completed successfully or failed to save memory. */
+    public static void purge()
     {
-        synchronized (INTERNAL_LOCK)
+        if ( STATUS_COUNTS.count(Status.COMPLETED) + STATUS_COUNTS.count(Status.FAILED) == 0 )
+            return;
+        for (DatabaseEntry entry : MAP.values())
             {
-                for (Long serverID : MAP.keySet())
+                if ( ( entry.status == Status.COMPLETED || entry.status == Status.FAILED ) && MAP.remove(entry.serverID, entry) )
                     {
-                        DatabaseEntry entry = MAP.get(serverID);
-                        if ( entry.status == Status.SUBMITTED || entry.status == Status.SENT_OUT )
-                            return false;
+                        STATUS_COUNTS.remove(entry.status);
+                        if ( entry.status == Status.COMPLETED && USE_RESULT_STORE )
+                            ResultStore.remove(entry.serverID);
+                        WorkUnitJournal.purged(entry.serverID);
                     }
             }
-        return true;
+    }
+
+    /**
+     * Puts a finished unit back in the database.  Used when recovering from the journal.
+     * @param serverID the ID of the unit
+     * @param hostname where the unit was run
+     * @param result the result, or null if the unit failed
+     * @param errorMessage why the unit failed, or null if it completed
+     */
+    public static void restore(long serverID, String hostname, Result result, String errorMessage)
+    {
+        if ( MAP.containsKey(serverID) )
+            throw new IllegalArgumentException("serverID already in database, cannot create new key");
+        DatabaseEntry unfinished = new DatabaseEntry(serverID, null, null, Status.SUBMITTED, null, null, null, 0L, ImmutableSet.<String>of());
+        DatabaseEntry entry = unfinished.finished(hostname, result, errorMessage);
+        if ( MAP.putIfAbsent(serverID, entry) != null )
+            throw new IllegalArgumentException("serverID already in database, cannot create new key");
+        STATUS_COUNTS.add(entry.status);
+        store(entry);
+    }
+
+    /**
+     * Looks up the result of a completed unit, reading it from the result store if necessary.
+     * @param serverID the ID of the unit
+     * @return the result, or null if the unit has not completed
+     */
+    public static Result getResult(long serverID)
+    {
+        DatabaseEntry entry = MAP.get(serverID);
+        if ( entry == null || entry.status != Status.COMPLETED )
+            return null;
+        if ( entry.result != null )
+            return entry.result;
+        return ResultStore.get(serverID);
+    }
+
+    /**
+     * Looks up the state of a unit.
+     * @param serverID the ID of the unit
+     * @return the state, or null if the unit is not in the database
+     */
+    public static Status getStatus(long serverID)
+    {
+        DatabaseEntry entry = MAP.get(serverID);
+        if ( entry == null )
+            return null;
+        return entry.status;
+    }
+
+    /**
+     * Describes the contents of the database as journal records, for writing snapshots.
+     * Units that are out on clients are described as submitted, since they will have
+     * to be run again if the snapshot is ever replayed.
+     * @return a weakly consistent view of the database
+     */
+    public static Iterator<WorkUnitJournal.Record> journalRecords()
+    {
+        return Iterators.transform(MAP.values().iterator(), new Function<DatabaseEntry,WorkUnitJournal.Record>()
+            {
+                public WorkUnitJournal.Record apply(DatabaseEntry entry)
+                {
+                    if ( entry.status == Status.COMPLETED )
+                        return new WorkUnitJournal.Record(WorkUnitJournal.Record.COMPLETED, entry.serverID, entry.hostname, getResult(entry.serverID), null);
+                    else if ( entry.status == Status.FAILED )
+                        return new WorkUnitJournal.Record(WorkUnitJournal.Record.FAILED, entry.serverID, entry.hostname, null, entry.errorMessage);
+                    return new WorkUnitJournal.Record(WorkUnitJournal.Record.SUBMITTED, entry.serverID, null, entry.workUnit, null);
+                }
+            });
+    }
+
+    /** Check if all work is done. */
+    public static boolean finished()
+    {
+        return STATUS_COUNTS.count(Status.SUBMITTED) + STATUS_COUNTS.count(Status.SENT_OUT) == 0;
+    }
+
+    /**
+     * Counts how many entries are in the specified state.
+     * @param status the state to count
+     * @return the number of entries in that state
+     */
+    public static int count(Status status)
+    {
+        return STATUS_COUNTS.count(status);
+    }
+
+    /**
+     * Forget about everything, including any queued work, listeners, and futures.  Futures that are
+     * still waiting are cancelled.  Not safe to call while work is in progress.  For testing.
+     */
+    public static void clear()
+    {
+        MAP.clear();
+        QUEUE.clear();
+        HOSTS.clear();
+        STATUS_COUNTS.clear();
+        CACHE_KEYS.clear();
+        LISTENERS.clear();
+        for (SettableFuture<ResultEnvelope> future : FUTURES.values())
+            future.cancel(false);
+        FUTURES.clear();
+        SettableFuture<Void> finishedFuture = null;
+        while ( (finishedFuture = FINISHED_FUTURES.poll()) != null )
+            finishedFuture.cancel(false);
+        if ( USE_RESULT_STORE )
+            ResultStore.clear();
     }
 
     /** Get all the results. */
     public static void printResults()
     {
         TreeMap<Long,String> toBePrinted = new TreeMap<>();
-        synchronized (INTERNAL_LOCK)
+        for (DatabaseEntry entry : MAP.values())
             {
-                for (Long serverID : MAP.keySet())
-                    {
-                        DatabaseEntry entry = MAP.get(serverID);
-                        if ( entry.status == Status.COMPLETED )
-                            toBePrinted.put(serverID, String.format("Unit %5d (%s)", serverID, entry.hostname));
-                        else if ( entry.status == Status.FAILED )
-                            toBePrinted.put(serverID, String.format("Unit %5d (%s) -- FAILED : %s", serverID, entry.hostname, entry.errorMessage));
-                    }
+                long serverID = entry.serverID;
+                if ( entry.status == Status.COMPLETED )
+                    toBePrinted.put(serverID, String.format("Unit %5d (%s)", serverID, entry.hostname));
+                else if ( entry.status == Status.FAILED )
+                    toBePrinted.put(serverID, String.format("Unit %5d (%s) -- FAILED : %s", serverID, entry.hostname, entry.errorMessage));
             }
         if ( toBePrinted.size() == 0 )
             System.out.println("No results to show.");
@@ -224,6 +1027,8 @@ public class WorkUnitDatabase implements Singleton
                     System.out.println("   " + toBePrinted.get(serverID));
                 System.out.printf("%d total results.\n", toBePrinted.size());
             }
+        if ( Settings.USE_RESULT_CACHE )
+            System.out.printf("Result cache: %d hits, %d misses, %d results cached.\n", ResultCache.getHits(), ResultCache.getMisses(), ResultCache.size());
     }
 
     /** Represents the state of each job. */
@@ -242,6 +1047,196 @@ public class WorkUnitDatabase implements Singleton
         FAILED;
     }
 
+    /** Keeps track of the work that has been dispatched to one host. */
+    private static class HostRecord
+    {
+        /** How long it takes this host to send back results, measured from when they are sent out. */
+        private final Histogram roundTrip;
+
+        /** How many units have been sent to this host. */
+        private final LongAdder dispatched;
+
+        /** How many units this host has completed. */
+        private final LongAdder completed;
+
+        /** How many units have failed on this host. */
+        private final LongAdder failed;
+
+        /** How many threads this host runs units on. */
+        private volatile int threads;
+
+        /** How many cores this host has for ResourceWorkUnits. */
+        private volatile int cores;
+
+        /** How much memory this host has in bytes, or zero if it did not say. */
+        private volatile long memory;
+
+        /** The most memory one unit may need on this host in bytes, or zero if one unit may use all of memory. */
+        private volatile long unitMemory;
+
+        /** How many units may be out on this host at once. */
+        private volatile int capacity;
+
+        /** A moving average of how many units this host finishes per second, or zero before it is measured.  Guarded by this. */
+        private double rate;
+
+        /** When the current measurement started in milliseconds since the epoch, or zero before the first completion.  Guarded by this. */
+        private long sampleStart;
+
+        /** How many units have finished since the current measurement started.  Guarded by this. */
+        private int sampleCount;
+
+        /** How many slots are reserved, including units that are about to be sent out.  A unit takes one slot per core. */
+        private final AtomicInteger reserved = new AtomicInteger();
+
+        /** How much memory the units that hold slots need in bytes. */
+        private final AtomicLong reservedMemory = new AtomicLong();
+
+        /** The IDs of the units that are currently dispatched to this host. */
+        private final Set<Long> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+
+        /** When each unit was first reported running in a heartbeat, in milliseconds since the epoch. */
+        private final ConcurrentMap<Long,Long> started = new ConcurrentHashMap<>();
+
+        /** Units that ran past their deadlines here.  They still hold their slots because they are still using threads. */
+        private final ConcurrentMap<Long,WorkUnit> hung = new ConcurrentHashMap<>();
+
+        /** Whether markAsDead has been called since the host last registered.  Dead hosts are not given work. */
+        private volatile boolean dead;
+
+        /** How many times markAsDead has been called for this host. */
+        private final AtomicInteger sweeps = new AtomicInteger();
+
+        /** Whether this host has sent a Heartbeat since it last registered.  Only such hosts hold leases. */
+        private volatile boolean heartbeats;
+
+        /** When this host was last heard from, in milliseconds since the epoch. */
+        private volatile long lastHeard = System.currentTimeMillis();
+
+        public HostRecord(String hostname, int threads)
+        {
+            roundTrip = Metrics.histogram("server.roundtrip." + hostname);
+            dispatched = Metrics.counter("server.dispatched." + hostname);
+            completed = Metrics.counter("server.completed." + hostname);
+            failed = Metrics.counter("server.failed." + hostname);
+            cores = threads;
+            setThreads(threads);
+        }
+
+        /** Changes the number of threads and recomputes the capacity. */
+        public synchronized void setThreads(int threads)
+        {
+            this.threads = threads;
+            updateCapacity();
+        }
+
+        /** The measured completion rate in units per second, or zero if it is not known yet. */
+        public synchronized double getRate()
+        {
+            return rate;
+        }
+
+        /**
+         * Updates the completion rate when a unit finishes.  Completions are counted over periods of
+         * at least a second so that results that arrive in batches do not look infinitely fast.
+         */
+        public synchronized void recordCompletion()
+        {
+            long now = System.currentTimeMillis();
+            if ( sampleStart == 0L )
+                {
+                    // the first completion starts the clock
+                    sampleStart = now;
+                    return;
+                }
+            sampleCount++;
+            long elapsed = now - sampleStart;
+            if ( elapsed < 1000L )
+                return;
+            double sample = sampleCount * 1000.0 / elapsed;
+            if ( rate == 0.0 )
+                rate = sample;
+            else
+                rate += Settings.COMPLETION_RATE_SMOOTHING * (sample - rate);
+            sampleStart = now;
+            sampleCount = 0;
+            updateCapacity();
+        }
+
+        /** Sizes the prefetch queue to cover Settings.PREFETCH_HORIZON seconds of work.  Guarded by this. */
+        private void updateCapacity()
+        {
+            int prefetch = (int)Math.ceil(rate * Settings.PREFETCH_HORIZON);
+            prefetch = Math.max(Settings.PREFETCH_DEPTH, Math.min(Settings.MAX_PREFETCH_DEPTH, prefetch));
+            capacity = threads + prefetch;
+        }
+
+        /** Whether this host has a free slot at all. */
+        public boolean hasRoom()
+        {
+            return reserved.get() < capacity;
+        }
+
+        /**
+         * Whether this host could ever run a unit, ignoring what it is running now.
+         * @param workUnit the unit
+         * @return false if the unit needs more cores or memory than this host has
+         */
+        public boolean fits(WorkUnit workUnit)
+        {
+            if ( !(workUnit instanceof ResourceWorkUnit) )
+                return true;
+            long needed = getMemory(workUnit);
+            return getCores(workUnit) <= cores && ( memory == 0L || needed <= memory ) && ( unitMemory == 0L || needed <= unitMemory );
+        }
+
+        /**
+         * Reserves slots and memory for one more unit if this host has room for it.
+         * @param workUnit the unit
+         * @return true if the unit's slots and memory were reserved
+         */
+        public boolean tryReserve(WorkUnit workUnit)
+        {
+            int slots = getCores(workUnit);
+            while (true)
+                {
+                    int current = reserved.get();
+                    if ( current + slots > capacity )
+                        return false;
+                    if ( reserved.compareAndSet(current, current+slots) )
+                        break;
+                }
+            long needed = getMemory(workUnit);
+            if ( needed == 0L )
+                return true;
+            while (true)
+                {
+                    long current = reservedMemory.get();
+                    if ( memory > 0L && current + needed > memory )
+                        {
+                            reserved.addAndGet(-slots);
+                            return false;
+                        }
+                    if ( reservedMemory.compareAndSet(current, current+needed) )
+                        return true;
+                }
+        }
+
+        /** Reserves slots and memory for a unit whether or not there is room, for units that are still running when they should not be. */
+        public void reserve(WorkUnit workUnit)
+        {
+            reserved.addAndGet(getCores(workUnit));
+            reservedMemory.addAndGet(getMemory(workUnit));
+        }
+
+        /** Gives back the slots and memory of a unit. */
+        public void release(WorkUnit workUnit)
+        {
+            reserved.addAndGet(-getCores(workUnit));
+            reservedMemory.addAndGet(-getMemory(workUnit));
+        }
+    }
+
     /** Keeps track of each piece of work. */
     private static class DatabaseEntry implements Immutable
     {
@@ -257,13 +1252,23 @@ public class WorkUnitDatabase implements Singleton
         /** The current status of the job. */
         private final Status status;
 
-        /** The result of the computation. */
+        /** The result of the computation.  Null if the result is in ResultStore. */
         private final Result result;
 
         /** The error message obtained. */
         private final String errorMessage;
 
-        public DatabaseEntry(long serverID, WorkUnit workUnit, String hostname, Status status, Result result, String errorMessage)
+        /** The campaign this job belongs to, or null if it does not belong to one. */
+        private final Campaign campaign;
+
+        /** When the job entered its current state in milliseconds since the epoch.  Speculative copies do not change it. */
+        private final long since;
+
+        /** Other hosts that are running speculative copies of the job. */
+        private final ImmutableSet<String> speculativeHosts;
+
+        public DatabaseEntry(long serverID, WorkUnit workUnit, String hostname, Status status, Result result, String errorMessage,
+                             Campaign campaign, long since, ImmutableSet<String> speculativeHosts)
         {
             this.serverID = serverID;
             this.workUnit = workUnit;
@@ -271,6 +1276,66 @@ public class WorkUnitDatabase implements Singleton
             this.status = status;
             this.result = result;
             this.errorMessage = errorMessage;
+            this.campaign = campaign;
+            this.since = since;
+            this.speculativeHosts = speculativeHosts;
+        }
+
+        /** Creates the entry for this job once it has been sent to the specified host. */
+        public DatabaseEntry sentOut(String hostname)
+        {
+            return new DatabaseEntry(serverID, workUnit, hostname, Status.SENT_OUT, null, null, campaign, System.currentTimeMillis(), ImmutableSet.<String>of());
+        }
+
+        /** Creates the entry for this job once a speculative copy has been sent to the specified host. */
+        public DatabaseEntry withCopy(String hostname)
+        {
+            ImmutableSet<String> newHosts = ImmutableSet.<String>builder().addAll(speculativeHosts).add(hostname).build();
+            return new DatabaseEntry(serverID, workUnit, this.hostname, status, null, null, campaign, since, newHosts);
+        }
+
+        /** Creates the entry for this job once the specified host has stopped running its copy.  Another copy must still be running. */
+        public DatabaseEntry without(String hostname)
+        {
+            List<String> hosts = new ArrayList<>(getHosts());
+            hosts.remove(hostname);
+            ImmutableSet<String> newHosts = ImmutableSet.copyOf(hosts.subList(1, hosts.size()));
+            return new DatabaseEntry(serverID, workUnit, hosts.get(0), status, null, null, campaign, since, newHosts);
+        }
+
+        /** Creates the entry for this job once it has been put back in the queue. */
+        public DatabaseEntry requeued()
+        {
+            return new DatabaseEntry(serverID, workUnit, null, Status.SUBMITTED, null, null, campaign, System.currentTimeMillis(), ImmutableSet.<String>of());
+        }
+
+        /** Creates the entry for this job once it has finished.  The result should be null if it failed or is in ResultStore. */
+        public DatabaseEntry finished(String hostname, Result result, String errorMessage)
+        {
+            Status status = errorMessage == null ? Status.COMPLETED : Status.FAILED;
+            return new DatabaseEntry(serverID, null, hostname, status, result, errorMessage, campaign, System.currentTimeMillis(), ImmutableSet.<String>of());
+        }
+
+        /** Creates a copy of this finished entry whose result has been written to ResultStore. */
+        public DatabaseEntry stored()
+        {
+            return new DatabaseEntry(serverID, workUnit, hostname, status, null, errorMessage, campaign, since, speculativeHosts);
+        }
+
+        /** The hosts that are running this job, starting with the one it was first sent to.  Empty unless the job is SENT_OUT. */
+        public List<String> getHosts()
+        {
+            if ( status != Status.SENT_OUT )
+                return ImmutableList.of();
+            if ( speculativeHosts.size() == 0 )
+                return ImmutableList.of(hostname);
+            return ImmutableList.<String>builder().add(hostname).addAll(speculativeHosts).build();
+        }
+
+        /** Whether the specified host is running this job. */
+        public boolean isOn(String hostname)
+        {
+            return status == Status.SENT_OUT && ( this.hostname.equals(hostname) || speculativeHosts.contains(hostname) );
         }
 
         @Override
@@ -282,7 +1347,7 @@ public class WorkUnitDatabase implements Singleton
         @Override
         public int hashCode()
         {
-            return Objects.hash(serverID, workUnit, hostname, status, result, errorMessage);
+            return Objects.hash(serverID, workUnit, hostname, status, result, errorMessage, campaign, since, speculativeHosts);
         }
 
         @Override
@@ -301,7 +1366,10 @@ public class WorkUnitDatabase implements Singleton
                  Objects.equals(hostname, d.hostname) &&
                  status == d.status &&
                  Objects.equals(result, d.result) &&
-                 Objects.equals(errorMessage, d.errorMessage) )
+                 Objects.equals(errorMessage, d.errorMessage) &&
+                 campaign == d.campaign &&
+                 since == d.since &&
+                 Objects.equals(speculativeHosts, d.speculativeHosts) )
                 return true;
             return false;
         }
@@ -0,0 +1,239 @@
+import java.util.*;
+import java.util.concurrent.*;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Measures how long it takes WorkUnitDatabase to submit, dispatch, receive and requeue
+ * work units as the number of entries in the database grows, and how it holds up when
+ * many server threads use it at once.  The cost per unit should stay flat as the
+ * database gets bigger.
+ */
+public class WorkUnitDatabaseBenchmark implements Singleton
+{
+    /** The database sizes to try. */
+    public static final int[] TABLE_SIZES = { 1_000, 10_000, 100_000, 1_000_000 };
+
+    /** How many units to submit, dispatch and receive, or requeue per measurement. */
+    public static final int OPERATIONS = 20_000;
+
+    /**
+     * The numbers of server threads to try in the contention benchmark.  Counts above the number of
+     * processors are skipped, and the whole benchmark is skipped if no count above one is left.
+     */
+    public static final int[] THREAD_COUNTS = { 1, 16, 32, 64 };
+
+    /** How many units to dispatch and receive per measurement in the contention benchmark. */
+    public static final int CONTENDED_OPERATIONS = 200_000;
+
+    /** Not instantiable. */
+    private WorkUnitDatabaseBenchmark()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /**
+     * Fills the database with the specified number of submitted units and then times submitting
+     * the specified number of additional ones.
+     * @param tableSize how many entries to put in the database first
+     * @param operations how many units to submit
+     * @return how long the submissions took in nanoseconds
+     */
+    public static long runSubmit(int tableSize, int operations)
+    {
+        WorkUnitDatabase.clear();
+        WorkUnit unit = new DummyWorkUnit(false);
+        for (int i=0; i < tableSize; i++)
+            WorkUnitDatabase.submit(new WorkEnvelope(unit));
+
+        List<WorkEnvelope> envelopes = new ArrayList<>(operations);
+        for (int i=0; i < operations; i++)
+            envelopes.add(new WorkEnvelope(unit));
+        long start = System.nanoTime();
+        for (WorkEnvelope envelope : envelopes)
+            WorkUnitDatabase.submit(envelope);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Fills the database with the specified number of submitted units and then times dispatching
+     * and receiving the specified number of them.
+     * @param tableSize how many entries to put in the database
+     * @param operations how many units to dispatch and receive
+     * @return how long the dispatches and receives took in nanoseconds
+     */
+    public static long run(int tableSize, int operations)
+    {
+        WorkUnitDatabase.clear();
+        WorkUnit unit = new DummyWorkUnit(false);
+        List<WorkEnvelope> envelopes = new ArrayList<>(tableSize);
+        for (int i=0; i < tableSize; i++)
+            {
+                WorkEnvelope envelope = new WorkEnvelope(unit);
+                envelopes.add(envelope);
+                WorkUnitDatabase.submit(envelope);
+            }
+
+        // some units are already running on other clients
+        IoSession session = new DummySession();
+        String hostname = "benchmark";
+        operations = Math.min(operations, tableSize/2);
+        for (int i=0; i < 64 && WorkUnitDatabase.count(WorkUnitDatabase.Status.SENT_OUT) < tableSize/4; i++)
+            {
+                String otherHostname = String.format("holy%d", i);
+                for (int j=0; j < Settings.getNumberOfThreads(otherHostname); j++)
+                    WorkUnitDatabase.sendOutWork(otherHostname, session);
+            }
+
+        // units are dispatched in queue order, so the next unit to go out is predictable
+        Result result = new DummyResult();
+        int next = WorkUnitDatabase.count(WorkUnitDatabase.Status.SENT_OUT);
+        long start = System.nanoTime();
+        for (int i=0; i < operations; i++)
+            {
+                WorkUnitDatabase.sendOutWork(hostname, session);
+                long serverID = envelopes.get(next++).serverID;
+                WorkUnitDatabase.receive(new ResultEnvelope(result, null, hostname, serverID), hostname);
+            }
+        long elapsed = System.nanoTime() - start;
+        if ( WorkUnitDatabase.count(WorkUnitDatabase.Status.COMPLETED) != operations )
+            throw new IllegalArgumentException("unexpected number of completed units");
+        return elapsed;
+    }
+
+    /**
+     * Fills the database with the specified number of submitted units, dispatches some of them
+     * to one client, and then times declaring that client dead, which requeues its units.
+     * @param tableSize how many entries to put in the database
+     * @param operations how many units the dead client was running
+     * @return how long it took to requeue the units in nanoseconds
+     */
+    public static long runMarkAsDead(int tableSize, int operations)
+    {
+        WorkUnitDatabase.clear();
+        WorkUnit unit = new DummyWorkUnit(false);
+        for (int i=0; i < tableSize; i++)
+            WorkUnitDatabase.submit(new WorkEnvelope(unit));
+
+        // the client has a thread for every unit so none of them are held back
+        String hostname = "benchmark";
+        operations = Math.min(operations, tableSize);
+        WorkUnitDatabase.registerHost(new ClientInfo(hostname, operations, 0L));
+        for (int i=0; i < operations; i++)
+            {
+                if ( WorkUnitDatabase.checkOut(hostname) == null )
+                    throw new IllegalArgumentException("unable to dispatch unit");
+            }
+        long start = System.nanoTime();
+        WorkUnitDatabase.markAsDead(hostname);
+        long elapsed = System.nanoTime() - start;
+        if ( WorkUnitDatabase.count(WorkUnitDatabase.Status.SENT_OUT) != 0 )
+            throw new IllegalArgumentException("some units were not requeued");
+        return elapsed;
+    }
+
+    /**
+     * Has several threads dispatch and receive units at the same time, the way the
+     * server's executor threads do.  Each thread plays the part of a different client.
+     * @param numberOfThreads how many threads to use
+     * @param operations how many units to dispatch and receive in total
+     * @return how long the dispatches and receives took in nanoseconds
+     */
+    public static long runContended(int numberOfThreads, int operations)
+    {
+        WorkUnitDatabase.clear();
+        WorkUnit unit = new DummyWorkUnit(false);
+        for (int i=0; i < operations; i++)
+            WorkUnitDatabase.submit(new WorkEnvelope(unit));
+
+        final int operationsPerThread = operations / numberOfThreads;
+        final Result result = new DummyResult();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(numberOfThreads);
+        for (int i=0; i < numberOfThreads; i++)
+            {
+                final String hostname = String.format("holy%d", i);
+                Thread thread = new Thread()
+                    {
+                        public void run()
+                        {
+                            try { startLatch.await(); }
+                            catch (InterruptedException e) { return; }
+                            for (int j=0; j < operationsPerThread; j++)
+                                {
+                                    WorkEnvelope envelope = WorkUnitDatabase.checkOut(hostname);
+                                    WorkUnitDatabase.receive(new ResultEnvelope(result, null, hostname, envelope.serverID), hostname);
+                                }
+                            doneLatch.countDown();
+                        }
+                    };
+                thread.start();
+            }
+
+        long start = System.nanoTime();
+        startLatch.countDown();
+        try { doneLatch.await(); }
+        catch (InterruptedException e) { e.printStackTrace(); }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Lists the benchmarks.
+     * @return a benchmark for each operation at each table size, and one for each thread count
+     */
+    public static List<Benchmark> benchmarks()
+    {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        for (final int tableSize : TABLE_SIZES)
+            {
+                String parameter = "size=" + tableSize;
+                benchmarks.add(new Benchmark("WorkUnitDatabase.submit", parameter, OPERATIONS)
+                    {
+                        public long run(int operations) { return runSubmit(tableSize, operations); }
+                    });
+                benchmarks.add(new Benchmark("WorkUnitDatabase.sendOutWork+receive", parameter, Math.min(OPERATIONS, tableSize/2))
+                    {
+                        public long run(int operations) { return WorkUnitDatabaseBenchmark.run(tableSize, operations); }
+                    });
+                benchmarks.add(new Benchmark("WorkUnitDatabase.markAsDead", parameter, Math.min(OPERATIONS, tableSize))
+                    {
+                        public long run(int operations) { return runMarkAsDead(tableSize, operations); }
+                    });
+            }
+        for (final int numberOfThreads : getContentionThreadCounts())
+            {
+                int operations = CONTENDED_OPERATIONS / numberOfThreads * numberOfThreads;
+                benchmarks.add(new Benchmark("WorkUnitDatabase.checkOut+receive", "threads=" + numberOfThreads, operations)
+                    {
+                        public long run(int operations) { return runContended(numberOfThreads, operations); }
+                    });
+            }
+        return benchmarks;
+    }
+
+    /**
+     * Picks the numbers of server threads this host can run the contention benchmark with.  With
+     * more threads than processors it would measure time-slicing, not contention, and one thread
+     * on its own says nothing about contention.
+     * @return the thread counts, which are empty if the host has only one processor
+     */
+    public static List<Integer> getContentionThreadCounts()
+    {
+        List<Integer> counts = new ArrayList<>();
+        for (int numberOfThreads : THREAD_COUNTS)
+            {
+                if ( numberOfThreads <= Runtime.getRuntime().availableProcessors() )
+                    counts.add(numberOfThreads);
+            }
+        if ( counts.size() < 2 )
+            counts.clear();
+        return counts;
+    }
+
+    /** Runs the benchmarks.  Any arguments pick which ones to run by name. */
+    public static void main(String[] args) throws Exception
+    {
+        Benchmark.runAll(benchmarks(), args);
+        WorkUnitDatabase.clear();
+    }
+}
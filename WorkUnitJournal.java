@@ -0,0 +1,638 @@
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only record of everything that happens in WorkUnitDatabase, so that a campaign
+ * can be resumed after the server is restarted.  Transitions are handed to a background
+ * thread that writes them in batches with one fsync per batch, so recording a transition
+ * never waits for the disk.  Every Settings.JOURNAL_SNAPSHOT_INTERVAL records, the journal
+ * starts a new segment and writes a compacted snapshot of the database, after which the
+ * older segments are deleted.
+ *
+ * Replaying is idempotent: a submission is ignored if the unit is already known, COMPLETED
+ * and FAILED are final, and anything that was SENT_OUT is requeued.  That means a snapshot
+ * can be taken while transitions are still being recorded.  PURGED is final too: a unit's
+ * COMPLETED record is written by the thread that finished it and its PURGED record by the
+ * thread that purged it, so the two can reach the journal in either order.  Each snapshot
+ * repeats the PURGED records of the segment before it so that this still holds across a
+ * snapshot.
+ */
+public class WorkUnitJournal implements Singleton
+{
+    /** The most records to write between fsyncs. */
+    public static final int MAX_BATCH_SIZE = 4096;
+
+    /** Records that have not been written yet. */
+    private static final BlockingQueue<Record> PENDING;
+
+    /** Whether the journal is recording transitions. */
+    private static volatile boolean RUNNING;
+
+    /** The background thread that writes the journal. */
+    private static Thread WRITER;
+
+    /** Not instantiable. */
+    private WorkUnitJournal()
+    {
+        throw new IllegalArgumentException("not instantiable");
+    }
+
+    /** Static initializer. */
+    static
+    {
+        PENDING = new LinkedBlockingQueue<>();
+    }
+
+    /**
+     * Replays any existing journal into WorkUnitDatabase and then starts recording.
+     * Call this before submitting any work.
+     * @return the number of units that were recovered
+     */
+    public static synchronized int start()
+    {
+        if ( RUNNING )
+            throw new IllegalArgumentException("journal already started");
+        File directory = new File(Settings.JOURNAL_DIRECTORY);
+        if ( !directory.isDirectory() && !directory.mkdirs() )
+            throw new IllegalArgumentException("unable to create journal directory " + directory);
+
+        // replay the latest snapshot and everything written after it
+        int index = 0;
+        int recovered = 0;
+        try
+            {
+                int snapshotIndex = latestIndex(directory, "snapshot-");
+                int segmentIndex = latestIndex(directory, "journal-");
+                Map<Long,Record> state = new LinkedHashMap<>();
+                Set<Long> purged = new HashSet<>();
+                if ( snapshotIndex >= 0 )
+                    replay(file(directory, "snapshot-", snapshotIndex), state, purged);
+                for (int i=Math.max(snapshotIndex,0); i <= segmentIndex; i++)
+                    replay(file(directory, "journal-", i), state, purged);
+                recovered = restore(state);
+                index = Math.max(snapshotIndex, segmentIndex) + 1;
+                if ( recovered > 0 )
+                    System.out.printf("[ %s ] Recovered %d units from the journal in %s.\n", new Date().toString(), recovered, directory);
+            }
+        catch (IOException e)
+            {
+                throw new IllegalArgumentException("unable to replay journal", e);
+            }
+
+        // start recording
+        RUNNING = true;
+        final int firstIndex = index;
+        WRITER = new Thread("WorkUnitJournal")
+            {
+                public void run()
+                {
+                    write(firstIndex);
+                }
+            };
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread()
+            {
+                public void run()
+                {
+                    WorkUnitJournal.stop();
+                }
+            });
+        return recovered;
+    }
+
+    /** Writes out everything that has been recorded so far and stops recording. */
+    public static void stop()
+    {
+        Thread writer = null;
+        synchronized (WorkUnitJournal.class)
+            {
+                if ( !RUNNING )
+                    return;
+                RUNNING = false;
+                writer = WRITER;
+            }
+        PENDING.add(Record.STOP);
+        try { writer.join(); }
+        catch (InterruptedException e) {}
+    }
+
+    /** Records a new unit.  Must be called before the unit can be dispatched. */
+    public static void submitted(WorkEnvelope envelope)
+    {
+        if ( RUNNING )
+            PENDING.add(new Record(Record.SUBMITTED, envelope.serverID, null, envelope.workUnit, null));
+    }
+
+    /** Records that a unit was sent to a client. */
+    public static void dispatched(long serverID, String hostname)
+    {
+        if ( RUNNING )
+            PENDING.add(new Record(Record.SENT_OUT, serverID, hostname, null, null));
+    }
+
+    /** Records that a unit went back in the queue. */
+    public static void requeued(long serverID)
+    {
+        if ( RUNNING )
+            PENDING.add(new Record(Record.REQUEUED, serverID, null, null, null));
+    }
+
+    /** Records a successful result. */
+    public static void completed(long serverID, String hostname, Result result)
+    {
+        if ( RUNNING )
+            PENDING.add(new Record(Record.COMPLETED, serverID, hostname, result, null));
+    }
+
+    /** Records a failure. */
+    public static void failed(long serverID, String hostname, String errorMessage)
+    {
+        if ( RUNNING )
+            PENDING.add(new Record(Record.FAILED, serverID, hostname, null, errorMessage));
+    }
+
+    /** Records that a finished unit was forgotten. */
+    public static void purged(long serverID)
+    {
+        if ( RUNNING )
+            PENDING.add(new Record(Record.PURGED, serverID, null, null, null));
+    }
+
+    /**
+     * Runs on the writer thread until the journal is stopped.
+     * @param index the number of the first segment to write
+     */
+    private static void write(int index)
+    {
+        File directory = new File(Settings.JOURNAL_DIRECTORY);
+        List<Record> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        Set<Long> purged = new HashSet<>();
+        try
+            {
+                // start from a compacted copy of whatever was recovered
+                writeSnapshot(directory, index, purged);
+                Segment segment = new Segment(file(directory, "journal-", index));
+                long sinceSnapshot = 0;
+                boolean stopping = false;
+                while ( !stopping )
+                    {
+                        batch.add(PENDING.take());
+                        PENDING.drainTo(batch, MAX_BATCH_SIZE - 1);
+                        for (Record record : batch)
+                            {
+                                if ( record == Record.STOP )
+                                    stopping = true;
+                                else
+                                    {
+                                        segment.append(record);
+                                        if ( record.type == Record.PURGED )
+                                            purged.add(record.serverID);
+                                    }
+                            }
+                        segment.sync();
+                        sinceSnapshot += batch.size();
+                        batch.clear();
+
+                        // compact
+                        if ( sinceSnapshot >= Settings.JOURNAL_SNAPSHOT_INTERVAL && !stopping )
+                            {
+                                segment.close();
+                                index++;
+                                segment = new Segment(file(directory, "journal-", index));
+                                writeSnapshot(directory, index, purged);
+                                purged.clear();
+                                sinceSnapshot = 0;
+                            }
+                    }
+                segment.close();
+            }
+        catch (Exception e)
+            {
+                System.out.println("=== JOURNAL FAILURE, CAMPAIGN IS NO LONGER BEING RECORDED ===");
+                e.printStackTrace();
+                RUNNING = false;
+                PENDING.clear();
+            }
+    }
+
+    /**
+     * Writes the current contents of WorkUnitDatabase to a snapshot and deletes the files it replaces.
+     * @param directory where the journal lives
+     * @param index the number of the first segment that is not covered by the snapshot
+     * @param purged the units purged in the segments the snapshot replaces, whose COMPLETED or FAILED records may still be on the way
+     */
+    private static void writeSnapshot(File directory, int index, Set<Long> purged) throws IOException
+    {
+        File snapshot = file(directory, "snapshot-", index);
+        File temporary = new File(snapshot.getPath() + ".tmp");
+        Segment segment = new Segment(temporary);
+        for (Long serverID : purged)
+            segment.append(new Record(Record.PURGED, serverID, null, null, null));
+        Iterator<Record> iterator = WorkUnitDatabase.journalRecords();
+        while (iterator.hasNext())
+            segment.append(iterator.next());
+        segment.sync();
+        segment.close();
+        Files.move(temporary.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        File[] files = directory.listFiles();
+        if ( files == null )
+            return;
+        for (File f : files)
+            {
+                int i = indexOf(f, "snapshot-");
+                if ( i < 0 )
+                    i = indexOf(f, "journal-");
+                if ( i >= 0 && i < index )
+                    f.delete();
+            }
+    }
+
+    /**
+     * Applies the records in a file to the recovered state.  Stops quietly at a torn record,
+     * which is what a crash in the middle of a write leaves behind.  Records for units in
+     * purged are ignored, and units that are purged are added to it.
+     */
+    private static void replay(File f, Map<Long,Record> state, Set<Long> purged) throws IOException
+    {
+        if ( !f.exists() )
+            return;
+        try ( DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f))) )
+            {
+                while (true)
+                    {
+                        Record record = Segment.read(in);
+                        if ( record == null )
+                            break;
+                        if ( purged.contains(record.serverID) )
+                            continue;
+                        Record previous = state.get(record.serverID);
+                        switch (record.type)
+                            {
+                                case Record.SUBMITTED:
+                                    if ( previous == null )
+                                        state.put(record.serverID, record);
+                                    break;
+                                case Record.COMPLETED:
+                                case Record.FAILED:
+                                    if ( previous == null || previous.type == Record.SUBMITTED )
+                                        state.put(record.serverID, record);
+                                    break;
+                                case Record.PURGED:
+                                    state.remove(record.serverID);
+                                    purged.add(record.serverID);
+                                    break;
+                                default:
+                                    // dispatched units will be requeued, so there is nothing to do
+                                    break;
+                            }
+                    }
+            }
+    }
+
+    /**
+     * Loads recovered state into WorkUnitDatabase.
+     * @return the number of units loaded
+     */
+    private static int restore(Map<Long,Record> state)
+    {
+        long maxID = 0;
+        for (Record record : state.values())
+            {
+                if ( record.type == Record.SUBMITTED )
+                    WorkUnitDatabase.submit(new WorkEnvelope((WorkUnit)record.payload, Settings.HOSTNAME, record.serverID));
+                else
+                    WorkUnitDatabase.restore(record.serverID, record.hostname, (Result)record.payload, record.errorMessage);
+                maxID = Math.max(maxID, record.serverID);
+            }
+
+        // make sure new units don't reuse old IDs
+        while (true)
+            {
+                long current = WorkEnvelope.ID_GENERATOR.get();
+                if ( current >= maxID || WorkEnvelope.ID_GENERATOR.compareAndSet(current, maxID) )
+                    break;
+            }
+        return state.size();
+    }
+
+    /** Gets the name of a numbered journal file. */
+    private static File file(File directory, String prefix, int index)
+    {
+        String suffix = prefix.equals("snapshot-") ? ".dat" : ".log";
+        return new File(directory, String.format("%s%08d%s", prefix, index, suffix));
+    }
+
+    /** Gets the number of a journal file, or -1 if the file is not of the specified kind. */
+    private static int indexOf(File f, String prefix)
+    {
+        String name = f.getName();
+        if ( !name.startsWith(prefix) || name.endsWith(".tmp") )
+            return -1;
+        try
+            {
+                return Integer.parseInt(name.substring(prefix.length(), name.lastIndexOf('.')));
+            }
+        catch (Exception e)
+            {
+                return -1;
+            }
+    }
+
+    /** Gets the highest number of any journal file of the specified kind, or -1 if there are none. */
+    private static int latestIndex(File directory, String prefix)
+    {
+        int latest = -1;
+        File[] files = directory.listFiles();
+        if ( files != null )
+            {
+                for (File f : files)
+                    latest = Math.max(latest, indexOf(f, prefix));
+            }
+        return latest;
+    }
+
+    /**
+     * Checks that what was recovered from the journal matches what was recorded.
+     * @param recovered how many units start said it recovered
+     * @param results the payload of each completed unit, by serverID
+     * @param errors the error message of each failed unit, by serverID
+     * @param units how many units were submitted in all
+     * @return what did not match
+     */
+    private static List<String> checkRecovered(int recovered, Map<Long,byte[]> results, Map<Long,String> errors, int units) throws Exception
+    {
+        List<String> failures = new ArrayList<>();
+        if ( recovered != units )
+            failures.add(String.format("recovered %d units instead of %d", recovered, units));
+        int submitted = units - results.size() - errors.size();
+        if ( WorkUnitDatabase.count(WorkUnitDatabase.Status.SUBMITTED) != submitted || WorkUnitDatabase.count(WorkUnitDatabase.Status.SENT_OUT) != 0 ||
+             WorkUnitDatabase.count(WorkUnitDatabase.Status.COMPLETED) != results.size() || WorkUnitDatabase.count(WorkUnitDatabase.Status.FAILED) != errors.size() )
+            failures.add(String.format("expected %d submitted, %d completed, and %d failed units, but found %d, %d, and %d (and %d sent out)",
+                                       submitted, results.size(), errors.size(), WorkUnitDatabase.count(WorkUnitDatabase.Status.SUBMITTED),
+                                       WorkUnitDatabase.count(WorkUnitDatabase.Status.COMPLETED), WorkUnitDatabase.count(WorkUnitDatabase.Status.FAILED),
+                                       WorkUnitDatabase.count(WorkUnitDatabase.Status.SENT_OUT)));
+        for (Map.Entry<Long,byte[]> e : results.entrySet())
+            {
+                Result result = WorkUnitDatabase.getResult(e.getKey());
+                if ( !(result instanceof LoadResult) || !Arrays.equals(((LoadResult)result).payload, e.getValue()) )
+                    failures.add("wrong result for unit " + e.getKey());
+            }
+        for (Map.Entry<Long,String> e : errors.entrySet())
+            {
+                // the future would never complete for a unit that is not finished
+                if ( WorkUnitDatabase.getStatus(e.getKey()) != WorkUnitDatabase.Status.FAILED )
+                    failures.add("unit " + e.getKey() + " is not marked failed");
+                else if ( !e.getValue().equals(WorkUnitDatabase.getFuture(e.getKey()).get().errorMessage) )
+                    failures.add("wrong error message for unit " + e.getKey());
+            }
+        long maxID = 0L;
+        for (long serverID : results.keySet())
+            maxID = Math.max(maxID, serverID);
+        if ( WorkEnvelope.ID_GENERATOR.get() < maxID )
+            failures.add("new units would reuse recovered serverIDs");
+        return failures;
+    }
+
+    /**
+     * For testing.  Records a campaign in which some units complete, some fail, some are out on a
+     * client, and the rest are waiting, and one is purged before its COMPLETED record is written,
+     * as when purge races a result.  Then it replays the campaign twice: once from the journal, with a torn
+     * record at the end, and once from the snapshot that the first replay wrote.  Checks that the
+     * right units come back in the right states with their results and error messages.  Uses
+     * Settings.JOURNAL_DIRECTORY, which must be empty, and deletes what it wrote if everything
+     * matches.  Exits with status 1 if anything does not match.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        File directory = new File(Settings.JOURNAL_DIRECTORY);
+        String[] existing = directory.list();
+        if ( existing != null && existing.length > 0 )
+            {
+                System.out.printf("%s is not empty, so this test would replay a real journal.\n", directory);
+                System.exit(1);
+            }
+        int units = 1_000;
+        if ( start() != 0 )
+            throw new IllegalArgumentException("unexpected recovery");
+
+        // 100 units complete, 100 fail, 100 are still running, and the rest are waiting
+        for (int i=0; i < units; i++)
+            WorkUnitDatabase.submit(new WorkEnvelope(new DummyWorkUnit(false)));
+        String hostname = "journal";
+        WorkUnitDatabase.registerHost(new ClientInfo(hostname, 300, 0L));
+        Random random = new Random(1L);
+        Map<Long,byte[]> results = new HashMap<>();
+        Map<Long,String> errors = new HashMap<>();
+        for (int i=0; i < 300; i++)
+            {
+                WorkEnvelope envelope = WorkUnitDatabase.checkOut(hostname);
+                if ( i < 100 )
+                    {
+                        byte[] payload = new byte[random.nextInt(1000)];
+                        random.nextBytes(payload);
+                        results.put(envelope.serverID, payload);
+                        WorkUnitDatabase.receive(new ResultEnvelope(new LoadResult(payload), null, hostname, envelope.serverID), hostname);
+                    }
+                else if ( i < 200 )
+                    {
+                        String errorMessage = "contrived error " + i;
+                        errors.put(envelope.serverID, errorMessage);
+                        WorkUnitDatabase.receive(new ResultEnvelope(null, errorMessage, hostname, envelope.serverID), hostname);
+                    }
+            }
+
+        // the purge of a unit gets to the journal before the result that finished it
+        long purgedID = results.keySet().iterator().next();
+        purged(purgedID);
+        completed(purgedID, hostname, new LoadResult(results.remove(purgedID)));
+        units--;
+        stop();
+
+        // a crash in the middle of a write leaves half a record at the end
+        try ( FileOutputStream out = new FileOutputStream(file(directory, "journal-", latestIndex(directory, "journal-")), true) )
+            {
+                out.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+            }
+
+        List<String> failures = new ArrayList<>();
+        for (String replay : new String[] { "journal", "snapshot" })
+            {
+                WorkUnitDatabase.clear();
+                int recovered = start();
+                stop();
+                List<String> problems = checkRecovered(recovered, results, errors, units);
+                if ( WorkUnitDatabase.getStatus(purgedID) != null )
+                    problems.add("purged unit " + purgedID + " came back");
+                System.out.printf("replay from %-10s %d units, %s\n", replay, recovered, problems.size() == 0 ? "ok" : problems.size() + " problems");
+                failures.addAll(problems);
+            }
+        WorkUnitDatabase.clear();
+
+        for (String failure : failures.subList(0, Math.min(failures.size(), 20)))
+            System.out.println(failure);
+        if ( failures.size() > 0 )
+            System.exit(1);
+        File[] files = directory.listFiles();
+        if ( files != null )
+            {
+                for (File f : files)
+                    f.delete();
+            }
+        System.exit(0);
+    }
+
+    /** One file of the journal.  Each record is a length, a checksum, and the record itself. */
+    private static class Segment
+    {
+        private final FileOutputStream file;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final DataOutputStream bufferOut = new DataOutputStream(buffer);
+        private final CRC32 crc = new CRC32();
+
+        public Segment(File f) throws IOException
+        {
+            file = new FileOutputStream(f, true);
+            out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+        }
+
+        /** Adds a record. */
+        public void append(Record record) throws IOException
+        {
+            buffer.reset();
+            bufferOut.writeByte(record.type);
+            bufferOut.writeLong(record.serverID);
+            writeString(record.hostname, bufferOut);
+            writeString(record.errorMessage, bufferOut);
+            bufferOut.writeBoolean(record.payload != null);
+            if ( record.payload != null )
+                PayloadSerializers.write(record.payload, bufferOut);
+            bufferOut.flush();
+
+            crc.reset();
+            crc.update(buffer.toByteArray(), 0, buffer.size());
+            out.writeInt(buffer.size());
+            out.writeInt((int)crc.getValue());
+            buffer.writeTo(out);
+        }
+
+        /** Makes sure everything appended so far is on disk. */
+        public void sync() throws IOException
+        {
+            out.flush();
+            file.getChannel().force(false);
+        }
+
+        public void close() throws IOException
+        {
+            out.close();
+        }
+
+        /**
+         * Reads the next record.
+         * @return the record, or null if there are no more intact records
+         */
+        public static Record read(DataInputStream in) throws IOException
+        {
+            try
+                {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    if ( length < 0 )
+                        return null;
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes, 0, length);
+                    if ( (int)crc.getValue() != checksum )
+                        return null;
+
+                    DataInputStream recordIn = new DataInputStream(new ByteArrayInputStream(bytes));
+                    byte type = recordIn.readByte();
+                    long serverID = recordIn.readLong();
+                    String hostname = readString(recordIn);
+                    String errorMessage = readString(recordIn);
+                    Object payload = recordIn.readBoolean() ? PayloadSerializers.read(recordIn) : null;
+                    return new Record(type, serverID, hostname, payload, errorMessage);
+                }
+            catch (EOFException e)
+                {
+                    return null;
+                }
+        }
+
+        private static void writeString(String string, DataOutput out) throws IOException
+        {
+            out.writeBoolean(string != null);
+            if ( string != null )
+                {
+                    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+        }
+
+        private static String readString(DataInput in) throws IOException
+        {
+            if ( !in.readBoolean() )
+                return null;
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /** One transition of one unit. */
+    public static class Record implements Immutable
+    {
+        /** The unit was submitted.  The payload is the WorkUnit. */
+        public static final byte SUBMITTED = 1;
+
+        /** The unit was sent to a client. */
+        public static final byte SENT_OUT = 2;
+
+        /** The unit went back in the queue. */
+        public static final byte REQUEUED = 3;
+
+        /** The unit finished.  The payload is the Result. */
+        public static final byte COMPLETED = 4;
+
+        /** The unit failed. */
+        public static final byte FAILED = 5;
+
+        /** The unit was forgotten. */
+        public static final byte PURGED = 6;
+
+        /** Tells the writer to stop. */
+        private static final Record STOP = new Record((byte)0, 0L, null, null, null);
+
+        public final byte type;
+        public final long serverID;
+        public final String hostname;
+        public final Object payload;
+        public final String errorMessage;
+
+        public Record(byte type, long serverID, String hostname, Object payload, String errorMessage)
+        {
+            this.type = type;
+            this.serverID = serverID;
+            this.hostname = hostname;
+            this.payload = payload;
+            this.errorMessage = errorMessage;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("Record %d for serverID %d", type, serverID);
+        }
+    }
+}